@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An append-only write buffer in front of a file channel. The compressors write each member as a series of small
+ * pieces (headers, deflate output blocks, trailers) which would otherwise each be a separate write() call. That's
+ * particularly slow on network filesystems. The position includes buffered bytes so it can still be used to record
+ * exact member offsets.
+ */
+class BufferedChannel implements SeekableByteChannel {
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private final SeekableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long position;
+
+    BufferedChannel(SeekableByteChannel channel) throws IOException {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    BufferedChannel(SeekableByteChannel channel, int capacity) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.position = channel.position();
+    }
+
+    /**
+     * Copies a region of a file to the given channel using FileChannel.transferTo(). If the destination is a
+     * buffered channel and the region is at least as big as the buffer then the buffer is flushed and the data
+     * transferred straight to the underlying file so the kernel can copy it without going through the JVM.
+     */
+    static void transfer(FileChannel source, long offset, long length, WritableByteChannel target) throws IOException {
+        if (target instanceof BufferedChannel && length >= ((BufferedChannel) target).buffer.capacity()) {
+            BufferedChannel buffered = (BufferedChannel) target;
+            buffered.flush();
+            transferFully(source, offset, length, buffered.channel);
+            buffered.position += length;
+        } else {
+            transferFully(source, offset, length, target);
+        }
+    }
+
+    private static void transferFully(FileChannel source, long offset, long length, WritableByteChannel target)
+            throws IOException {
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            long n = source.transferTo(position, end - position, target);
+            if (n <= 0 && position >= source.size()) {
+                throw new EOFException("source is shorter than expected");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        int n = src.remaining();
+        if (n > buffer.remaining()) {
+            flush();
+            if (n >= buffer.capacity()) {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+                position += n;
+                return n;
+            }
+        }
+        buffer.put(src);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Writes any buffered data to the underlying channel.
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        throw new UnsupportedOperationException("append only");
+    }
+
+    @Override
+    public long size() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new UnsupportedOperationException("append only");
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        throw new NonReadableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!isOpen()) return;
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -16,15 +16,20 @@
 
 package au.gov.nla.httrack2warc;
 
+import au.gov.nla.httrack2warc.httrack.CanonicalUrls;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
@@ -33,43 +38,101 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
 
 public class CdxWriter implements Closeable {
+    public enum Format {
+        /**
+         * Space separated CDX11 lines keyed by the URL.
+         */
+        CDX,
+
+        /**
+         * CDXJ lines keyed by SURT and timestamp with the remaining fields as a JSON object.
+         */
+        CDXJ,
+
+        /**
+         * CDXJ lines compressed in gzip blocks with a summary index of the first key of each block (ZipNum).
+         */
+        ZIPNUM
+    }
+
     private static final Logger log = LoggerFactory.getLogger(CdxWriter.class);
     private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.US).withZone(UTC);
 
-    private final BufferedWriter writer;
+    private BufferedWriter writer;
     private final Path tmpCdxPath;
     private final Path cdxPath;
+    private final ExternalSort sorter;
+    private final Format format;
+    private final CanonicalUrls canonicalUrls;
     boolean cdx11Format = true;
 
     CdxWriter(Path file) throws IOException {
+        this(file, ExternalSort.DEFAULT_MEMORY_BUDGET, Format.CDX, new CanonicalUrls());
+    }
+
+    /**
+     * @param sortMemory approximate number of bytes of memory to use when sorting the index in finish()
+     * @param format for ZIPNUM the blocks are written to file.gz, the summary to file.idx and the location of the
+     *               blocks to file.loc
+     * @param canonicalUrls used to look up the SURT keys for the CDXJ and ZIPNUM formats
+     */
+    CdxWriter(Path file, long sortMemory, Format format, CanonicalUrls canonicalUrls) throws IOException {
         this.cdxPath = file;
+        this.sorter = new ExternalSort(sortMemory);
+        this.format = format;
+        this.canonicalUrls = canonicalUrls;
         tmpCdxPath = Paths.get(file.toString() + ".tmp");
         writer = Files.newBufferedWriter(tmpCdxPath, UTF_8);
-        writer.write(" CDX N b a m s k r M S V g\n");
+        if (format == Format.CDX) {
+            writer.write(" CDX N b a m s k r M S V g\n");
+        }
     }
 
-    public void finish() throws IOException {
+    /**
+     * Replaces the lines written so far with the given ones, which are expected to include the header. Used when
+     * resuming from a journal checkpoint.
+     */
+    void restore(StreamWriter lines) throws IOException {
         writer.close();
-        externalSort(tmpCdxPath, cdxPath);
+        try (OutputStream out = Files.newOutputStream(tmpCdxPath)) {
+            lines.writeTo(out);
+        }
+        writer = Files.newBufferedWriter(tmpCdxPath, UTF_8, StandardOpenOption.APPEND);
     }
 
-    private void externalSort(Path source, Path destination) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder("sort", source.toString());
-        pb.environment().put("LC_ALL", "C");
-        pb.environment().put("LANG", "C");
-        pb.redirectOutput(destination.toFile());
-        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-        int exitValue;
-        try {
-            exitValue = pb.start().waitFor();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        if (exitValue != 0) {
-            throw new RuntimeException("sort returned non-zero exit value: " + exitValue);
+    /**
+     * Writes out buffered lines and returns the length of the unsorted index so far.
+     */
+    long flush() throws IOException {
+        writer.flush();
+        return Files.size(tmpCdxPath);
+    }
+
+    /**
+     * Copies a region of the unsorted index, such as the lines written since the last journal checkpoint.
+     */
+    void copyTo(long start, long end, WritableByteChannel out) throws IOException {
+        try (FileChannel channel = FileChannel.open(tmpCdxPath)) {
+            BufferedChannel.transfer(channel, start, end - start, out);
         }
     }
 
+    public void finish() throws IOException {
+        writer.close();
+        if (format == Format.ZIPNUM) {
+            Path sortedPath = Paths.get(cdxPath.toString() + ".sorted");
+            try {
+                sorter.sort(tmpCdxPath, sortedPath);
+                ZipNumWriter.write(sortedPath, Paths.get(cdxPath.toString() + ".gz"),
+                        Paths.get(cdxPath.toString() + ".idx"), Paths.get(cdxPath.toString() + ".loc"),
+                        ZipNumWriter.DEFAULT_BLOCK_LINES);
+            } finally {
+                Files.deleteIfExists(sortedPath);
+            }
+        } else {
+            sorter.sort(tmpCdxPath, cdxPath);
+        }
+    }
 
     @Override
     public void close() throws IOException {
@@ -77,10 +140,44 @@ public class CdxWriter implements Closeable {
         Files.deleteIfExists(tmpCdxPath);
     }
 
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
     void writeLine(String url, String contentType, int status, String digest, Instant date, WarcWriter.RecordPosition recordPosition, Path filename) throws IOException {
         String cdxLine;
         String digestField = digest != null ? digest : "-";
-        if (cdx11Format) {
+        if (format != Format.CDX) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(canonicalUrls.surt(url)).append(' ').append(ARC_DATE.format(date)).append(" {\"url\": ");
+            appendJsonString(sb, url);
+            if (contentType != null) {
+                sb.append(", \"mime\": ");
+                appendJsonString(sb, contentType);
+            }
+            sb.append(", \"status\": \"").append(status).append('"');
+            if (digest != null) {
+                sb.append(", \"digest\": ");
+                appendJsonString(sb, digest);
+            }
+            sb.append(", \"length\": \"").append(recordPosition.length()).append('"');
+            sb.append(", \"offset\": \"").append(recordPosition.start).append('"');
+            sb.append(", \"filename\": ");
+            appendJsonString(sb, filename.toString());
+            sb.append("}\n");
+            cdxLine = sb.toString();
+        } else if (cdx11Format) {
             cdxLine = url + " " + ARC_DATE.format(date) + " " + url + " " + contentType + " " + status + " " +
                     digestField + " - - " + recordPosition.length() + " " + recordPosition.start + " " + filename + "\n";
         } else {
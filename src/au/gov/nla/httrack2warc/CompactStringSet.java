@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A set of paths or URLs that uses much less memory than a HashSet. Used to track filenames on crawls with
+ * millions of files.
+ * <p>
+ * Each string is split after its last '/'. The directory part is stored once in a table of directories and each
+ * entry is stored as a reference to its directory followed by the remaining name, so the long prefixes shared by
+ * files in the same directory aren't repeated. Both tables keep their strings UTF-8 encoded in large byte pages and
+ * index them with an open addressing table of longs, each packing a reference to the bytes with some hash bits to
+ * skip most non-matching comparisons. A match is always confirmed by comparing the bytes.
+ * <p>
+ * Like HashSet a null element is permitted. Not thread-safe.
+ */
+public class CompactStringSet {
+    private final ByteTable directories = new ByteTable();
+    private final ByteTable entries = new ByteTable();
+    private byte[] key = new byte[256];
+    private boolean containsNull = false;
+
+    /**
+     * Adds the string, returning true if it wasn't already present.
+     */
+    public boolean add(String s) {
+        if (s == null) {
+            boolean added = !containsNull;
+            containsNull = true;
+            return added;
+        }
+        int slash = s.lastIndexOf('/') + 1;
+        long directory = slash == 0 ? 0 : directories.add(s.substring(0, slash).getBytes(UTF_8));
+        int length = encodeKey(directory, s.substring(slash));
+        int size = entries.size;
+        entries.add(key, length);
+        return entries.size != size;
+    }
+
+    public boolean contains(String s) {
+        if (s == null) return containsNull;
+        int slash = s.lastIndexOf('/') + 1;
+        long directory = 0;
+        if (slash > 0) {
+            byte[] bytes = s.substring(0, slash).getBytes(UTF_8);
+            directory = directories.find(bytes, bytes.length);
+            if (directory < 0) return false;
+        }
+        int length = encodeKey(directory, s.substring(slash));
+        return entries.find(key, length) >= 0;
+    }
+
+    /**
+     * Encodes the directory reference as a varint followed by the name into the key buffer.
+     */
+    private int encodeKey(long directory, String name) {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        if (key.length < nameBytes.length + 10) {
+            key = new byte[nameBytes.length + 10];
+        }
+        int p = 0;
+        while (directory >= 0x80) {
+            key[p++] = (byte) (directory | 0x80);
+            directory >>>= 7;
+        }
+        key[p++] = (byte) directory;
+        System.arraycopy(nameBytes, 0, key, p, nameBytes.length);
+        return p + nameBytes.length;
+    }
+
+    public int size() {
+        return entries.size + (containsNull ? 1 : 0);
+    }
+
+    /**
+     * The approximate number of bytes of heap used.
+     */
+    public long footprint() {
+        return directories.footprint() + entries.footprint();
+    }
+
+    /**
+     * A set of byte strings. Each stored string is identified by a reference of its page number and offset plus
+     * one, so zero is never a valid reference.
+     */
+    private static class ByteTable {
+        private static final int OFFSET_BITS = 20;
+        private static final int PAGE_SIZE = 1 << OFFSET_BITS;
+        private static final int HASH_BITS = 24;
+        private static final long HASH_MASK = (1L << HASH_BITS) - 1;
+
+        private byte[][] pages = new byte[16][];
+        private int pageCount = 0;
+        private int pagePosition = 0;
+
+        // each slot is reference << HASH_BITS | hash bits, zero for an empty slot
+        private long[] slots = new long[1024];
+        int size = 0;
+
+        /**
+         * Adds the bytes if not already present and returns the reference to them.
+         */
+        long add(byte[] bytes) {
+            return add(bytes, bytes.length);
+        }
+
+        long add(byte[] bytes, int length) {
+            long hash = hash(bytes, 0, length);
+            int slot = findSlot(bytes, length, hash);
+            if (slots[slot] != 0) {
+                return slots[slot] >>> HASH_BITS;
+            }
+            long ref = store(bytes, length);
+            slots[slot] = ref << HASH_BITS | (hash & HASH_MASK);
+            size++;
+            if (size * 3L > slots.length * 2L) {
+                grow();
+            }
+            return ref;
+        }
+
+        /**
+         * Returns the reference to the bytes or -1 if they're not present.
+         */
+        long find(byte[] bytes, int length) {
+            int slot = findSlot(bytes, length, hash(bytes, 0, length));
+            return slots[slot] == 0 ? -1 : slots[slot] >>> HASH_BITS;
+        }
+
+        private int findSlot(byte[] bytes, int length, long hash) {
+            int mask = slots.length - 1;
+            for (int i = slotFor(hash) & mask; ; i = (i + 1) & mask) {
+                long slot = slots[i];
+                if (slot == 0 || ((slot & HASH_MASK) == (hash & HASH_MASK)
+                        && storedEquals(slot >>> HASH_BITS, bytes, length))) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * Doubles the table. Only some of the hash bits are kept in the slots so the stored bytes are hashed again.
+         */
+        private void grow() {
+            long[] oldSlots = slots;
+            slots = new long[oldSlots.length * 2];
+            int mask = slots.length - 1;
+            for (long slot : oldSlots) {
+                if (slot == 0) continue;
+                long ref = slot >>> HASH_BITS;
+                byte[] page = pages[(int) ((ref - 1) >>> OFFSET_BITS)];
+                int p = (int) ((ref - 1) & (PAGE_SIZE - 1));
+                int length = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = page[p++];
+                    length |= (b & 0x7f) << shift;
+                    if (b >= 0) break;
+                }
+                int i = slotFor(hash(page, p, length)) & mask;
+                while (slots[i] != 0) i = (i + 1) & mask;
+                slots[i] = slot;
+            }
+        }
+
+        /**
+         * Appends a varint length and the bytes to the current page. Strings too long for a normal page get one to
+         * themselves, which they always start at offset zero of.
+         */
+        private long store(byte[] bytes, int length) {
+            int needed = length + 5;
+            if (pageCount == 0 || pagePosition + needed > pages[pageCount - 1].length) {
+                if (pageCount == pages.length) {
+                    pages = Arrays.copyOf(pages, pageCount * 2);
+                }
+                pages[pageCount++] = new byte[Math.max(PAGE_SIZE, needed)];
+                pagePosition = 0;
+            }
+            int pageNumber = pageCount - 1;
+            byte[] page = pages[pageNumber];
+            int offset = pagePosition;
+            int p = offset;
+            int n = length;
+            while (n >= 0x80) {
+                page[p++] = (byte) (n | 0x80);
+                n >>>= 7;
+            }
+            page[p++] = (byte) n;
+            System.arraycopy(bytes, 0, page, p, length);
+            pagePosition = p + length;
+            return ((long) pageNumber << OFFSET_BITS | offset) + 1;
+        }
+
+        private boolean storedEquals(long ref, byte[] bytes, int length) {
+            byte[] page = pages[(int) ((ref - 1) >>> OFFSET_BITS)];
+            int p = (int) ((ref - 1) & (PAGE_SIZE - 1));
+            int storedLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = page[p++];
+                storedLength |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            if (storedLength != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (page[p + i] != bytes[i]) return false;
+            }
+            return true;
+        }
+
+        long footprint() {
+            long bytes = (long) pages.length * 8 + slots.length * 8L;
+            for (int i = 0; i < pageCount; i++) {
+                bytes += pages[i].length;
+            }
+            return bytes;
+        }
+
+        /**
+         * 64-bit FNV-1a followed by the MurmurHash3 finalizer so all the bits are well mixed.
+         */
+        private static long hash(byte[] bytes, int start, int length) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = start; i < start + length; i++) {
+                h ^= bytes[i] & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        /**
+         * The slot index comes from the high bits so it's independent of the hash bits stored in the slot.
+         */
+        private static int slotFor(long hash) {
+            return (int) (hash >>> 32);
+        }
+    }
+}
@@ -16,27 +16,103 @@
 
 package au.gov.nla.httrack2warc;
 
+import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
+
 import java.io.IOException;
-import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
-import java.util.zip.GZIPOutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
 
 public enum Compression {
     NONE {
         @Override
-        public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
-            streamWriter.writeTo(Channels.newOutputStream(channel));
+        MemberCompressor newCompressor(int level, int strategy) {
+            return MemberCompressor.UNCOMPRESSED;
         }
     },
 
     GZIP {
         @Override
-        public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
-            GZIPOutputStream stream = new GZIPOutputStream(Channels.newOutputStream(channel));
-            streamWriter.writeTo(stream);
-            stream.finish();
+        MemberCompressor newCompressor(int level, int strategy) {
+            return new GzipCompressor(level, strategy);
+        }
+    },
+
+    ZSTD {
+        @Override
+        MemberCompressor newCompressor(int level, int strategy) {
+            return new ZstdCompressor(level, null);
+        }
+
+        @Override
+        MemberCompressor newCompressor(int level, int strategy, HttrackCrawl crawl) throws IOException {
+            return new ZstdCompressor(level, ZstdCompressor.trainDictionary(crawl));
+        }
+
+        @Override
+        String fileNamePattern(String pattern) {
+            return pattern.endsWith(".warc.gz") ? pattern.substring(0, pattern.length() - 3) + ".zst" : pattern;
         }
     };
 
-    public abstract void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException;
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+    public static final int DEFAULT_STRATEGY = Deflater.DEFAULT_STRATEGY;
+
+    private MemberCompressor defaultCompressor;
+
+    /**
+     * Writes a single member with the default settings. Conversions use a compressor from newCompressor() instead so
+     * they can configure it and release it when they're done.
+     */
+    public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
+        defaultCompressor().writeMember(channel, streamWriter);
+    }
+
+    private synchronized MemberCompressor defaultCompressor() {
+        if (defaultCompressor == null) {
+            defaultCompressor = newCompressor();
+        }
+        return defaultCompressor;
+    }
+
+    /**
+     * Creates a compressor for writing members. The level and strategy are as for {@link Deflater} and are ignored
+     * when they don't apply.
+     */
+    abstract MemberCompressor newCompressor(int level, int strategy);
+
+    MemberCompressor newCompressor() {
+        return newCompressor(DEFAULT_LEVEL, DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Creates a compressor for converting the given crawl. Compressors that use a dictionary train it from a sample
+     * of the crawl.
+     */
+    MemberCompressor newCompressor(int level, int strategy, HttrackCrawl crawl) throws IOException {
+        return newCompressor(level, strategy);
+    }
+
+    /**
+     * Adjusts a WARC file name pattern to use the conventional extension for this type of compression.
+     */
+    String fileNamePattern(String pattern) {
+        return pattern;
+    }
+
+    /**
+     * Parses a strategy name as used on the command-line: default, filtered or huffman.
+     */
+    public static int parseStrategy(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "default":
+                return Deflater.DEFAULT_STRATEGY;
+            case "filtered":
+                return Deflater.FILTERED;
+            case "huffman":
+                return Deflater.HUFFMAN_ONLY;
+            default:
+                throw new IllegalArgumentException("Unknown compression strategy: " + name);
+        }
+    }
 }
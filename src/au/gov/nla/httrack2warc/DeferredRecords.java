@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Records whose payload is waiting to be read from a later position in an archive. The record metadata is spilled
+ * to a temporary file, one escaped line per record prefixed with the archive position, and sorted with ExternalSort
+ * so it can be read back in archive order alongside the archive itself without holding it all in memory.
+ */
+class DeferredRecords implements Closeable {
+    private final Path unsortedPath;
+    private final Path sortedPath;
+    private final long sortMemory;
+    private BufferedWriter writer;
+    private BufferedReader reader;
+    private int sequence = 0;
+    private String nextLine;
+
+    DeferredRecords(Path dir, long sortMemory) throws IOException {
+        this.unsortedPath = Files.createTempFile(dir, "httrack2warc", ".deferred");
+        this.sortedPath = Files.createTempFile(dir, "httrack2warc", ".sorted");
+        this.sortMemory = sortMemory;
+        this.writer = Files.newBufferedWriter(unsortedPath, UTF_8);
+    }
+
+    /**
+     * Adds a record to be read back when the archive reaches the given position. Records with the same position
+     * are returned in the order they were added.
+     */
+    void add(int position, HttrackRecord record) throws IOException {
+        StringBuilder line = new StringBuilder(512);
+        line.append(String.format("%010d\t%010d", position, sequence++));
+        for (String field : new String[]{record.getFilename(), record.getTimestamp().toString(), record.getUrl(),
+                record.getMime(), record.getRequestHeader(), record.getResponseHeader(), record.getReferrer(),
+                Integer.toString(record.getStatus())}) {
+            line.append('\t');
+            escape(line, field);
+        }
+        line.append('\n');
+        writer.write(line.toString());
+    }
+
+    int size() {
+        return sequence;
+    }
+
+    /**
+     * Finishes adding records and sorts them ready for reading.
+     */
+    void sort() throws IOException {
+        writer.close();
+        writer = null;
+        new ExternalSort(sortMemory).sort(unsortedPath, sortedPath);
+        Files.deleteIfExists(unsortedPath);
+        reader = Files.newBufferedReader(sortedPath, UTF_8);
+        nextLine = reader.readLine();
+    }
+
+    /**
+     * The archive position of the next record, or -1 if there are none left.
+     */
+    int peekPosition() {
+        return nextLine == null ? -1 : Integer.parseInt(nextLine.substring(0, 10));
+    }
+
+    /**
+     * Removes and returns the next record. It has no file of its own, the caller should attach the payload.
+     */
+    HttrackRecord next() throws IOException {
+        String[] fields = nextLine.split("\t", -1);
+        nextLine = reader.readLine();
+        return new HttrackRecord(unescape(fields[2]), LocalDateTime.parse(unescape(fields[3])), unescape(fields[4]),
+                unescape(fields[5]), unescape(fields[6]), unescape(fields[7]), unescape(fields[8]), null, null,
+                Integer.parseInt(unescape(fields[9])));
+    }
+
+    /**
+     * Escapes backslash, tab and line breaks so the field fits on one tab separated line. Null is written as \0.
+     */
+    private static void escape(StringBuilder out, String s) {
+        if (s == null) {
+            out.append("\\0");
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if (s.equals("\\0")) return null;
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    default: out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writer != null) writer.close();
+            if (reader != null) reader.close();
+        } finally {
+            Files.deleteIfExists(unsortedPath);
+            Files.deleteIfExists(sortedPath);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates a raw deflate stream (RFC 1951) while noting where the final block starts and where the stream ends, as
+ * bit offsets. That's what's needed to splice the stream into the middle of another one and java.util.zip.Inflater
+ * has no way to report it. Doing both from the same bit reader means the stream is only read once.
+ */
+class DeflateScanner {
+    private static final int[] LENGTH_EXTRA_BITS = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3,
+            4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+            59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] DISTANCE_EXTRA_BITS = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8,
+            9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257,
+            385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1,
+            15};
+    private static final int MAX_BITS = 15;
+    private static final int WINDOW_SIZE = 1 << 15;
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        FIXED_LITERALS = new Huffman();
+        FIXED_DISTANCES = new Huffman();
+        try {
+            FIXED_LITERALS.build(lengths, 0, 288);
+            Arrays.fill(lengths, 0, 30, 5);
+            FIXED_DISTANCES.build(lengths, 0, 30);
+        } catch (ZipException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private long bits = 0; // bits read from the stream but not yet consumed, least significant first
+    private int bitCount = 0;
+    private long consumed = 0;
+    private final Huffman literals = new Huffman();
+    private final Huffman distances = new Huffman();
+    private final Huffman codeLengths = new Huffman();
+    private final byte[] window = new byte[WINDOW_SIZE]; // doubles as the output buffer
+    private int windowPosition = 0;
+    private int flushedPosition = 0;
+    private boolean windowFull = false;
+
+    private DeflateScanner(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Inflates the stream to out and returns the bit offset of the final block's header and the bit offset just past
+     * the end of the stream.
+     */
+    static long[] scan(InputStream in, OutputStream out) throws IOException {
+        return new DeflateScanner(in, out).scan();
+    }
+
+    private long[] scan() throws IOException {
+        long lastBlock;
+        boolean last;
+        do {
+            lastBlock = consumed;
+            last = take(1) == 1;
+            int type = take(2);
+            switch (type) {
+                case 0:
+                    copyStored();
+                    break;
+                case 1:
+                    inflateCodes(FIXED_LITERALS, FIXED_DISTANCES);
+                    break;
+                case 2:
+                    readDynamicTables();
+                    inflateCodes(literals, distances);
+                    break;
+                default:
+                    throw new ZipException("Invalid deflate block type");
+            }
+        } while (!last);
+        flush();
+        return new long[]{lastBlock, consumed};
+    }
+
+    private void copyStored() throws IOException {
+        take(bitCount & 7); // to the byte boundary
+        int length = take(16);
+        if ((take(16) ^ 0xffff) != length) throw new ZipException("Invalid stored block length");
+        for (; length > 0 && bitCount >= 8; length--) {
+            output((byte) take(8));
+        }
+        while (length > 0) {
+            if (bufferPosition == bufferLimit && !refill()) throw new EOFException("Truncated deflate stream");
+            int n = Math.min(Math.min(length, bufferLimit - bufferPosition), WINDOW_SIZE - windowPosition);
+            System.arraycopy(buffer, bufferPosition, window, windowPosition, n);
+            bufferPosition += n;
+            consumed += n * 8L;
+            length -= n;
+            windowPosition += n;
+            if (windowPosition == WINDOW_SIZE) wrap();
+        }
+    }
+
+    private void readDynamicTables() throws IOException {
+        int literalCount = take(5) + 257;
+        int distanceCount = take(5) + 1;
+        int codeLengthCount = take(4) + 4;
+        int[] lengths = new int[19];
+        for (int i = 0; i < codeLengthCount; i++) {
+            lengths[CODE_LENGTH_ORDER[i]] = take(3);
+        }
+        codeLengths.build(lengths, 0, 19);
+
+        lengths = new int[literalCount + distanceCount];
+        for (int i = 0; i < lengths.length; ) {
+            int symbol = decode(codeLengths);
+            if (symbol < 16) {
+                lengths[i++] = symbol;
+                continue;
+            }
+            int repeat;
+            int value = 0;
+            if (symbol == 16) {
+                if (i == 0) throw new ZipException("Repeated code length with no previous length");
+                value = lengths[i - 1];
+                repeat = 3 + take(2);
+            } else if (symbol == 17) {
+                repeat = 3 + take(3);
+            } else {
+                repeat = 11 + take(7);
+            }
+            if (i + repeat > lengths.length) throw new ZipException("Too many code lengths");
+            Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+        if (lengths[256] == 0) throw new ZipException("No end of block code");
+        literals.build(lengths, 0, literalCount);
+        distances.build(lengths, literalCount, distanceCount);
+    }
+
+    private void inflateCodes(Huffman literals, Huffman distances) throws IOException {
+        for (;;) {
+            int symbol = decode(literals);
+            if (symbol < 256) {
+                output((byte) symbol);
+                continue;
+            }
+            if (symbol == 256) return;
+            symbol -= 257;
+            if (symbol >= LENGTH_EXTRA_BITS.length) throw new ZipException("Invalid length code");
+            int length = LENGTH_BASE[symbol] + take(LENGTH_EXTRA_BITS[symbol]);
+            symbol = decode(distances);
+            if (symbol >= DISTANCE_EXTRA_BITS.length) throw new ZipException("Invalid distance code");
+            int distance = DISTANCE_BASE[symbol] + take(DISTANCE_EXTRA_BITS[symbol]);
+            if (distance > windowPosition && !windowFull) throw new ZipException("Invalid distance too far back");
+            for (int from = (windowPosition - distance) & (WINDOW_SIZE - 1); length > 0; length--) {
+                output(window[from]);
+                from = (from + 1) & (WINDOW_SIZE - 1);
+            }
+        }
+    }
+
+    private void output(byte b) throws IOException {
+        window[windowPosition++] = b;
+        if (windowPosition == WINDOW_SIZE) wrap();
+    }
+
+    private void wrap() throws IOException {
+        flush();
+        windowPosition = 0;
+        flushedPosition = 0;
+        windowFull = true;
+    }
+
+    private void flush() throws IOException {
+        out.write(window, flushedPosition, windowPosition - flushedPosition);
+        flushedPosition = windowPosition;
+    }
+
+    private int decode(Huffman huffman) throws IOException {
+        // near the end of the stream there may be fewer bits left than the longest code
+        while (bitCount < huffman.maxLength && load()) {
+        }
+        int entry = huffman.table[(int) bits & ((1 << huffman.maxLength) - 1)];
+        int length = entry & 0xf;
+        if (length == 0) throw new ZipException("Invalid Huffman code");
+        if (length > bitCount) throw new EOFException("Truncated deflate stream");
+        bits >>>= length;
+        bitCount -= length;
+        consumed += length;
+        return entry >>> 4;
+    }
+
+    private int take(int n) throws IOException {
+        while (bitCount < n) {
+            if (!load()) throw new EOFException("Truncated deflate stream");
+        }
+        int value = (int) bits & ((1 << n) - 1);
+        bits >>>= n;
+        bitCount -= n;
+        consumed += n;
+        return value;
+    }
+
+    private boolean load() throws IOException {
+        if (bufferPosition == bufferLimit && !refill()) return false;
+        bits |= (long) (buffer[bufferPosition++] & 0xff) << bitCount;
+        bitCount += 8;
+        return true;
+    }
+
+    private boolean refill() throws IOException {
+        int n = in.read(buffer);
+        if (n <= 0) return false;
+        bufferPosition = 0;
+        bufferLimit = n;
+        return true;
+    }
+
+    /**
+     * A lookup table for a canonical Huffman code indexed by the next maxLength bits of input in stream order.
+     * Each entry holds the symbol shifted left by four and the code length, zero for unused codes.
+     */
+    private static class Huffman {
+        int[] table = new int[0];
+        int maxLength;
+
+        void build(int[] lengths, int offset, int count) throws ZipException {
+            int[] lengthCounts = new int[MAX_BITS + 1];
+            maxLength = 1;
+            for (int i = 0; i < count; i++) {
+                lengthCounts[lengths[offset + i]]++;
+                maxLength = Math.max(maxLength, lengths[offset + i]);
+            }
+            int[] nextCode = new int[MAX_BITS + 1];
+            lengthCounts[0] = 0;
+            for (int length = 1, code = 0; length <= MAX_BITS; length++) {
+                code = (code + lengthCounts[length - 1]) << 1;
+                nextCode[length] = code;
+            }
+            if (table.length < 1 << maxLength) {
+                table = new int[1 << maxLength];
+            } else {
+                Arrays.fill(table, 0, 1 << maxLength, 0);
+            }
+            for (int symbol = 0; symbol < count; symbol++) {
+                int length = lengths[offset + symbol];
+                if (length == 0) continue;
+                int code = nextCode[length]++;
+                if (code >= 1 << length) throw new ZipException("Over-subscribed Huffman code");
+                int reversed = Integer.reverse(code) >>> (32 - length);
+                for (int i = reversed; i < 1 << maxLength; i += 1 << length) {
+                    table[i] = symbol << 4 | length;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * A record body whose payload is already available as a raw deflate stream, such as a deflated entry of a zip
+ * cache. GzipCompressor splices the stream into the member as is instead of inflating and deflating it again. Other
+ * compressors write the inflated payload as usual.
+ * <p>
+ * To splice, the final block's BFINAL bit is cleared and the stream is padded to a byte boundary with an empty
+ * stored block, like zlib's gzjoin example, so that more deflate data can follow.
+ */
+class DeflatedBody implements StreamWriter {
+    // an empty non-final stored block after the three header bits: padding, LEN 0 and NLEN 0xffff
+    private static final byte[] EMPTY_STORED_BLOCK = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final HttrackRecord source;
+    final long length;
+    final long crc;
+    final String digest;
+    final long lastBlockBit;
+    final long endBit;
+
+    private DeflatedBody(HttrackRecord source, long length, long crc, String digest, long lastBlockBit, long endBit) {
+        this.source = source;
+        this.length = length;
+        this.crc = crc;
+        this.digest = digest;
+        this.lastBlockBit = lastBlockBit;
+        this.endBit = endBit;
+    }
+
+    /**
+     * Inflates the payload's deflate stream once to digest it and find its block boundaries. Returns null if the
+     * record's payload isn't stored deflated.
+     */
+    static DeflatedBody read(HttrackRecord source) throws IOException {
+        MessageDigest sha1 = Digests.newSha1();
+        CRC32 crc = new CRC32();
+        long[] length = {0};
+        long[] blocks;
+        try (InputStream stream = source.openDeflatedStream()) {
+            if (stream == null) return null;
+            blocks = DeflateScanner.scan(stream, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    sha1.update(b, off, len);
+                    crc.update(b, off, len);
+                    length[0] += len;
+                }
+            });
+        }
+        return new DeflatedBody(source, length[0], crc.getValue(), Digests.base32(sha1.digest()), blocks[0],
+                blocks[1]);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try (InputStream stream = source.openStream()) {
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Writes the deflate stream with its final block made non-final and padded to a byte boundary.
+     */
+    void writeDeflatedTo(WritableByteChannel channel) throws IOException {
+        long lastBlockByte = lastBlockBit >>> 3;
+        long endByte = (endBit + 7) >>> 3;
+        int endBits = (int) (endBit & 7);
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = 0;
+        try (InputStream stream = source.openDeflatedStream()) {
+            while (position < endByte) {
+                int n = stream.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), endByte - position));
+                if (n < 0) throw new IOException("Deflate stream changed while reading it");
+                if (lastBlockByte >= position && lastBlockByte < position + n) {
+                    buffer.array()[(int) (lastBlockByte - position)] &= ~(1 << (lastBlockBit & 7));
+                }
+                if (endBits != 0 && endByte - 1 < position + n) {
+                    // zero the unused high bits, which become the start of the empty stored block
+                    buffer.array()[(int) (endByte - 1 - position)] &= (1 << endBits) - 1;
+                }
+                buffer.clear().limit(n);
+                writeFully(channel, buffer);
+                position += n;
+            }
+        }
+        // the stored block's three header bits overflow into a new byte unless they fit in the last one
+        if (endBits == 0 || endBits > 5) {
+            writeFully(channel, ByteBuffer.wrap(new byte[1]));
+        }
+        writeFully(channel, ByteBuffer.wrap(EMPTY_STORED_BLOCK));
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * An upper bound on the number of bytes writeDeflatedTo() writes.
+     */
+    long maxDeflatedLength() {
+        return ((endBit + 7) >>> 3) + 5;
+    }
+}
@@ -32,13 +32,16 @@ public class Digests {
         return out.toString();
     }
 
-    static String sha1(InputStream stream) throws IOException {
-        MessageDigest digest;
+    static MessageDigest newSha1() {
         try {
-            digest = MessageDigest.getInstance("SHA1");
+            return MessageDigest.getInstance("SHA1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    static String sha1(InputStream stream) throws IOException {
+        MessageDigest digest = newSha1();
         byte[] buffer = new byte[1024 * 1024];
         for (; ; ) {
             int n = stream.read(buffer);
@@ -0,0 +1,606 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Sorts the lines of a file by comparing their bytes as unsigned values, the same order as LC_ALL=C sort.
+ * <p>
+ * The input is read in chunks which are sorted in parallel and written out as runs. The chunk size is chosen so
+ * that all the chunks in flight fit within the memory budget. If there are more runs than can be merged in one
+ * pass, groups of them are merged in parallel into longer runs. The final k-way merge streams straight into the
+ * destination file.
+ */
+class ExternalSort {
+    private static final Logger log = LoggerFactory.getLogger(ExternalSort.class);
+
+    static final long DEFAULT_MEMORY_BUDGET = 256 * 1024 * 1024;
+    static final int DEFAULT_MERGE_WIDTH = 64;
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 64;
+    private static final int MIN_BUFFER_SIZE = 4096;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final long memoryBudget;
+    private final int threads;
+    private final int mergeWidth;
+
+    ExternalSort(long memoryBudget) {
+        this(memoryBudget, Runtime.getRuntime().availableProcessors(), DEFAULT_MERGE_WIDTH);
+    }
+
+    ExternalSort(long memoryBudget, int threads, int mergeWidth) {
+        if (memoryBudget <= 0) throw new IllegalArgumentException("memory budget must be positive");
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if (mergeWidth < 2) throw new IllegalArgumentException("merge width must be at least 2");
+        this.memoryBudget = memoryBudget;
+        this.threads = threads;
+        this.mergeWidth = mergeWidth;
+    }
+
+    /**
+     * Sorts the lines of source into destination. Temporary runs are written alongside the destination. The last
+     * line is given a terminating newline if it doesn't have one.
+     */
+    void sort(Path source, Path destination) throws IOException {
+        Path tempDir = destination.toAbsolutePath().getParent();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "httrack2warc-sort");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Path> runs = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            createRuns(source, tempDir, executor, runs);
+            log.debug("Sorted {} into {} runs in {} ms", source, runs.size(), (System.nanoTime() - start) / 1000000);
+
+            while (runs.size() > mergeWidth) {
+                mergePass(tempDir, executor, runs);
+            }
+
+            if (runs.isEmpty()) {
+                Files.write(destination, new byte[0]);
+            } else if (runs.size() == 1) {
+                Files.move(runs.remove(0), destination, REPLACE_EXISTING);
+            } else {
+                try (LineWriter out = new LineWriter(Files.newOutputStream(destination))) {
+                    merge(runs, out, bufferSize(runs.size()));
+                }
+            }
+            log.debug("Finished sorting {} in {} ms", source, (System.nanoTime() - start) / 1000000);
+        } finally {
+            executor.shutdownNow();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Reads the source in chunks and hands each one to the executor to be sorted and written out as a run. The
+     * chunks are recycled through a pool so that at most threads + 1 of them exist at once.
+     */
+    private void createRuns(Path source, Path tempDir, ExecutorService executor, List<Path> runs) throws IOException {
+        int chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkBudget()));
+        int chunksAllocated = 1;
+        BlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(threads + 1);
+        List<Future<Path>> pending = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(source)) {
+            // don't allocate a whole chunk for a small file
+            byte[] chunk = new byte[(int) Math.min(chunkSize, Files.size(source) + 1)];
+            int filled = 0;
+            boolean eof = false;
+            while (!eof) {
+                int n = in.read(chunk, filled, chunk.length - filled);
+                if (n < 0) {
+                    eof = true;
+                    if (filled > 0 && chunk[filled - 1] != '\n') {
+                        if (filled == chunk.length) chunk = Arrays.copyOf(chunk, filled + 1);
+                        chunk[filled++] = '\n';
+                    }
+                } else {
+                    filled += n;
+                    if (filled < chunk.length) continue;
+                }
+                if (filled == 0) break;
+
+                int end = lastIndexOf(chunk, (byte) '\n', filled) + 1;
+                if (end == 0) {
+                    // a single line longer than the whole chunk
+                    chunk = Arrays.copyOf(chunk, chunk.length <= MAX_CHUNK_SIZE / 2 ? chunk.length * 2 : MAX_CHUNK_SIZE);
+                    if (filled == chunk.length) throw new IOException("line too long to sort in " + source);
+                    continue;
+                }
+
+                byte[] next;
+                if (eof) {
+                    next = null;
+                } else if (chunksAllocated <= threads) {
+                    next = new byte[chunkSize];
+                    chunksAllocated++;
+                } else {
+                    next = take(pool);
+                }
+                int remainder = filled - end;
+                if (next != null) {
+                    if (next.length < remainder) next = new byte[Math.max(chunkSize, remainder * 2)];
+                    System.arraycopy(chunk, end, next, 0, remainder);
+                }
+
+                byte[] data = chunk;
+                pending.add(executor.submit(() -> {
+                    try {
+                        return writeRun(new Chunk(data, end), tempDir);
+                    } finally {
+                        pool.offer(data);
+                    }
+                }));
+
+                chunk = next;
+                filled = remainder;
+            }
+        } finally {
+            // collect every run even if something failed so that they all get cleaned up
+            IOException failure = null;
+            for (Future<Path> future : pending) {
+                try {
+                    runs.add(get(future));
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null) failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    private long chunkBudget() {
+        // leave a fifth of each chunk's share for the line index
+        return memoryBudget / (threads + 1) / 5 * 4;
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> pool) throws InterruptedIOException {
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static int lastIndexOf(byte[] data, byte b, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static Path writeRun(Chunk chunk, Path tempDir) throws IOException {
+        int[] order = chunk.sort();
+        Path run = Files.createTempFile(tempDir, "httrack2warc", ".run");
+        try (LineWriter out = new LineWriter(Files.newOutputStream(run))) {
+            for (int line : order) {
+                int start = chunk.starts[line];
+                out.write(chunk.data, start, chunk.starts[line + 1] - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        return run;
+    }
+
+    /**
+     * Merges groups of runs in parallel until there are few enough for the final merge.
+     */
+    private void mergePass(Path tempDir, ExecutorService executor, List<Path> runs) throws IOException {
+        int bufferSize = bufferSize(mergeWidth * threads);
+        List<Future<Path>> pending = new ArrayList<>();
+        List<Path> merged = new ArrayList<>();
+        List<Path> inputs = new ArrayList<>(runs);
+        runs.clear();
+        try {
+            for (int i = 0; i < inputs.size(); i += mergeWidth) {
+                List<Path> group = inputs.subList(i, Math.min(inputs.size(), i + mergeWidth));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                pending.add(executor.submit(() -> {
+                    Path run = Files.createTempFile(tempDir, "httrack2warc", ".run");
+                    try (LineWriter out = new LineWriter(Files.newOutputStream(run))) {
+                        merge(group, out, bufferSize);
+                    } catch (IOException | RuntimeException e) {
+                        Files.deleteIfExists(run);
+                        throw e;
+                    }
+                    return run;
+                }));
+            }
+        } finally {
+            IOException failure = null;
+            for (Future<Path> future : pending) {
+                try {
+                    merged.add(get(future));
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null) failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+            for (Path input : inputs) {
+                if (!merged.contains(input)) Files.deleteIfExists(input);
+            }
+            runs.addAll(merged);
+            if (failure != null) throw failure;
+        }
+    }
+
+    private int bufferSize(int readers) {
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, memoryBudget / (readers + 1)));
+    }
+
+    private static void merge(List<Path> runs, LineWriter out, int bufferSize) throws IOException {
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            // a binary heap ordered by each reader's current line. The smallest is written out and then replaced
+            // with that reader's next line in a single sift down, rather than a separate remove and insert.
+            RunReader[] heap = new RunReader[runs.size()];
+            int size = 0;
+            for (Path run : runs) {
+                RunReader reader = new RunReader(Files.newInputStream(run), bufferSize);
+                readers.add(reader);
+                if (reader.next()) heap[size++] = reader;
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(heap, size, i);
+            }
+            while (size > 0) {
+                RunReader reader = heap[0];
+                out.write(reader.buffer, reader.start, reader.end - reader.start);
+                if (!reader.next()) {
+                    heap[0] = heap[--size];
+                    heap[size] = null;
+                }
+                siftDown(heap, size, 0);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void siftDown(RunReader[] heap, int size, int i) {
+        RunReader x = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0) child++;
+            if (x.compareTo(heap[child]) <= 0) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Compares two byte ranges as unsigned bytes, like memcmp() but with a shorter range sorting first when it's a
+     * prefix of the other.
+     */
+    static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int n = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < n; i++) {
+            int x = a[aStart + i] & 0xff;
+            int y = b[bStart + i] & 0xff;
+            if (x != y) return x - y;
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    /**
+     * A buffer of newline terminated lines to be sorted in memory. This is a multikey quicksort which compares
+     * eight bytes of each line at a time as an unsigned long. CDX lines often share a long prefix (a scheme and
+     * host) so ranges of lines with the same eight bytes are sorted on the next eight instead of comparing the
+     * lines from the start.
+     */
+    static class Chunk {
+        final byte[] data;
+        final int[] starts;
+        private final int lines;
+
+        Chunk(byte[] data, int end) {
+            this.data = data;
+            int[] starts = new int[1024];
+            int count = 0;
+            for (int i = 0; i < end; i++) {
+                if (data[i] == '\n') {
+                    if (++count == starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+                    starts[count] = i + 1;
+                }
+            }
+            this.lines = count;
+            this.starts = starts;
+        }
+
+        private int length(int line) {
+            return starts[line + 1] - starts[line] - 1;
+        }
+
+        /**
+         * The bytes of a line from depth onwards packed into a long, padded with zeros if the line is shorter.
+         */
+        private long key(int line, int depth) {
+            int start = starts[line] + depth;
+            int n = Math.min(8, length(line) - depth);
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (i < n ? data[start + i] & 0xff : 0);
+            }
+            return key;
+        }
+
+        /**
+         * Returns the line numbers in sorted order.
+         */
+        int[] sort() {
+            int[] order = new int[lines];
+            long[] keys = new long[lines];
+            for (int i = 0; i < lines; i++) {
+                order[i] = i;
+                keys[i] = key(i, 0);
+            }
+
+            // ranges still to be sorted as (lo, hi, depth) triples, using our own stack as the depth can be large
+            int[] stack = new int[96];
+            int top = 0;
+            stack[top++] = 0;
+            stack[top++] = lines;
+            stack[top++] = 0;
+            while (top > 0) {
+                int depth = stack[--top];
+                int hi = stack[--top];
+                int lo = stack[--top];
+                if (hi - lo < INSERTION_SORT_THRESHOLD) {
+                    insertionSort(order, lo, hi, depth);
+                    continue;
+                }
+
+                // three-way partition on the keys at this depth
+                long pivot = median(keys[lo], keys[(lo + hi) >>> 1], keys[hi - 1]);
+                int lt = lo, i = lo, gt = hi;
+                while (i < gt) {
+                    int c = Long.compareUnsigned(keys[i], pivot);
+                    if (c < 0) {
+                        swap(order, keys, lt++, i++);
+                    } else if (c > 0) {
+                        swap(order, keys, i, --gt);
+                    } else {
+                        i++;
+                    }
+                }
+                if (top + 9 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                if (lt - lo > 1) {
+                    stack[top++] = lo;
+                    stack[top++] = lt;
+                    stack[top++] = depth;
+                }
+                if (hi - gt > 1) {
+                    stack[top++] = gt;
+                    stack[top++] = hi;
+                    stack[top++] = depth;
+                }
+
+                // lines that end within this key are prefixes of the rest of the range so they go first, shortest
+                // first. The remainder are sorted on their next eight bytes.
+                int rest = lt;
+                for (int j = lt; j < gt; j++) {
+                    if (length(order[j]) <= depth + 8) swap(order, keys, rest++, j);
+                }
+                sortByLength(order, lt, rest);
+                if (gt - rest > 1) {
+                    for (int j = rest; j < gt; j++) {
+                        keys[j] = key(order[j], depth + 8);
+                    }
+                    stack[top++] = rest;
+                    stack[top++] = gt;
+                    stack[top++] = depth + 8;
+                }
+            }
+            return order;
+        }
+
+        private void insertionSort(int[] order, int lo, int hi, int depth) {
+            for (int i = lo + 1; i < hi; i++) {
+                int x = order[i];
+                int j = i - 1;
+                for (; j >= lo && compare(order[j], x, depth) > 0; j--) {
+                    order[j + 1] = order[j];
+                }
+                order[j + 1] = x;
+            }
+        }
+
+        private void sortByLength(int[] order, int lo, int hi) {
+            if (hi - lo < 2) return;
+            long[] packed = new long[hi - lo];
+            for (int i = lo; i < hi; i++) {
+                packed[i - lo] = (long) length(order[i]) << 32 | order[i];
+            }
+            Arrays.sort(packed);
+            for (int i = lo; i < hi; i++) {
+                order[i] = (int) packed[i - lo];
+            }
+        }
+
+        private int compare(int x, int y, int depth) {
+            return ExternalSort.compare(data, starts[x] + depth, starts[x + 1] - 1,
+                    data, starts[y] + depth, starts[y + 1] - 1);
+        }
+
+        private static long median(long a, long b, long c) {
+            if (Long.compareUnsigned(a, b) > 0) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            if (Long.compareUnsigned(b, c) > 0) {
+                b = c;
+            }
+            return Long.compareUnsigned(a, b) > 0 ? a : b;
+        }
+
+        private static void swap(int[] order, long[] keys, int i, int j) {
+            int o = order[i];
+            order[i] = order[j];
+            order[j] = o;
+            long k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+    }
+
+    /**
+     * Reads a sorted run back one line at a time. The current line is left in place in the read buffer.
+     */
+    private static class RunReader {
+        private final InputStream in;
+        byte[] buffer;
+        int start = 0;
+        int end = 0;
+        private int limit = 0;
+
+        RunReader(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * Advances to the next line, which is buffer[start, end) including its newline. Returns false at the end
+         * of the run.
+         */
+        boolean next() throws IOException {
+            start = end;
+            int i = start;
+            while (true) {
+                while (i < limit && buffer[i] != '\n') i++;
+                if (i < limit) {
+                    end = i + 1;
+                    return true;
+                }
+
+                // the line continues past the end of the buffer, move it to the front and read some more
+                int partial = limit - start;
+                if (partial == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                } else {
+                    System.arraycopy(buffer, start, buffer, 0, partial);
+                }
+                start = 0;
+                i = partial;
+                int n = in.read(buffer, partial, buffer.length - partial);
+                limit = partial + Math.max(n, 0);
+                if (n < 0) {
+                    end = limit;
+                    if (partial > 0) throw new IOException("truncated run");
+                    return false;
+                }
+            }
+        }
+
+        int compareTo(RunReader other) {
+            return compare(buffer, start, end - 1, other.buffer, other.start, other.end - 1);
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * An unsynchronized output buffer. BufferedOutputStream takes a lock on every write which is noticeable when
+     * writing a line at a time.
+     */
+    private static class LineWriter implements Closeable {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[MAX_BUFFER_SIZE];
+        private int used = 0;
+
+        LineWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            if (length > buffer.length - used) {
+                flush();
+                if (length > buffer.length) {
+                    out.write(data, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(data, offset, buffer, used, length);
+            used += length;
+        }
+
+        private void flush() throws IOException {
+            out.write(buffer, 0, used);
+            used = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
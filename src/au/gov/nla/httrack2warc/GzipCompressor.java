@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * Writes gzip members using a pool of reusable deflaters. A new GZIPOutputStream per record allocates a native
+ * zlib stream that is only freed by finalization, which adds up on crawls with millions of small records. Instead
+ * each thread that is compressing borrows a deflater and buffer from the pool and returns it when the member is
+ * finished. All the deflaters are explicitly ended when the compressor is closed.
+ * <p>
+ * Payloads that are already compressed (most images, video, archives) gain only a percent or two from full
+ * deflate so members holding them are written with a fast Huffman-only deflate instead. When debug logging is
+ * enabled a sample of those members is also compressed at the full level and discarded, to report how much CPU
+ * time that saves. It's off otherwise as the sampling itself costs some of the time saved.
+ * <p>
+ * Payloads that are already deflate streams are spliced into the member between the deflated record header and
+ * trailer rather than being compressed again. The member's CRC is combined from the checksums of the three parts.
+ */
+class GzipCompressor implements MemberCompressor {
+    private static final Logger log = LoggerFactory.getLogger(GzipCompressor.class);
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_INTERVAL = 16;
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final int level;
+    private final int strategy;
+    private final Deque<MemberStream> idle = new ConcurrentLinkedDeque<>();
+    private final List<MemberStream> all = new ArrayList<>();
+    private boolean closed = false;
+
+    private final boolean adaptive;
+    private final boolean sampleSavings;
+    private final LongAdder fastMembers = new LongAdder();
+    private final LongAdder fastBytes = new LongAdder();
+    private final LongAdder sampledBytes = new LongAdder();
+    private final LongAdder sampledFastNanos = new LongAdder();
+    private final LongAdder sampledFullNanos = new LongAdder();
+    private final LongAdder splicedMembers = new LongAdder();
+    private final LongAdder splicedBytes = new LongAdder();
+
+    GzipCompressor(int level, int strategy) {
+        this(level, strategy, log.isDebugEnabled());
+    }
+
+    /**
+     * @param sampleSavings whether to compress a sample of the fast members at the full level as well to estimate
+     *                      the CPU time saved
+     */
+    GzipCompressor(int level, int strategy, boolean sampleSavings) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("gzip level must be between 0 and 9");
+        }
+        this.level = level;
+        this.strategy = strategy;
+        this.adaptive = level != Deflater.NO_COMPRESSION && level != Deflater.BEST_SPEED;
+        this.sampleSavings = sampleSavings;
+    }
+
+    @Override
+    public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
+        writeMember(channel, streamWriter, null);
+    }
+
+    @Override
+    public void writeMember(WritableByteChannel channel, StreamWriter streamWriter, String contentType)
+            throws IOException {
+        boolean fast = adaptive && MimeTypes.isCompressed(contentType);
+        boolean sample = false;
+        if (fast) {
+            fastMembers.increment();
+            sample = sampleSavings && fastMembers.sum() % SAMPLE_INTERVAL == 1;
+        }
+        MemberStream stream = acquire();
+        try {
+            stream.start(channel, fast, sample);
+            streamWriter.writeTo(stream);
+            stream.finish();
+            if (fast) {
+                fastBytes.add(stream.deflater.getBytesRead());
+            }
+            if (sample) {
+                sampledBytes.add(stream.deflater.getBytesRead());
+                sampledFastNanos.add(stream.fastNanos);
+                sampledFullNanos.add(stream.fullNanos);
+            }
+        } finally {
+            stream.reset();
+            idle.push(stream);
+        }
+    }
+
+    @Override
+    public void writeMember(WritableByteChannel channel, StreamWriter prefix, DeflatedBody body, StreamWriter suffix,
+                            String contentType) throws IOException {
+        MemberStream stream = acquire();
+        try {
+            stream.start(channel, false, false);
+            prefix.writeTo(stream);
+            stream.syncFlush();
+            long prefixLength = stream.deflater.getBytesRead();
+            long crc = stream.crc.getValue();
+
+            body.writeDeflatedTo(channel);
+
+            // the suffix is compressed afresh so it can't refer back into data the deflater hasn't seen
+            stream.deflater.reset();
+            stream.crc.reset();
+            suffix.writeTo(stream);
+            stream.finishDeflate();
+            long suffixLength = stream.deflater.getBytesRead();
+            crc = crc32Combine(crc32Combine(crc, body.crc, body.length), stream.crc.getValue(), suffixLength);
+            stream.writeTrailer(crc, prefixLength + body.length + suffixLength);
+            splicedMembers.increment();
+            splicedBytes.add(body.length);
+        } finally {
+            stream.reset();
+            idle.push(stream);
+        }
+    }
+
+    /**
+     * Combines the CRC-32 of two sequences into that of their concatenation given the length of the second, as
+     * zlib's crc32_combine() does, by applying the length's worth of zero bits to the first CRC as powers of a
+     * GF(2) matrix.
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) return crc1;
+        long[] even = new long[32]; // operators for even and odd powers of two zero bits
+        long[] odd = new long[32];
+
+        odd[0] = 0xedb88320L; // the CRC-32 polynomial, operator for one zero bit
+        for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+            odd[n] = row;
+        }
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+
+        // apply length2 zero bytes to crc1, the first squaring gives the operator for one zero byte
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>>= 1;
+            if (length2 == 0) break;
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    private MemberStream acquire() {
+        MemberStream stream = idle.poll();
+        if (stream == null) {
+            stream = new MemberStream(level, strategy);
+            synchronized (this) {
+                if (closed) {
+                    stream.end();
+                    throw new IllegalStateException("compressor is closed");
+                }
+                all.add(stream);
+            }
+        }
+        return stream;
+    }
+
+    @Override
+    public long maxMemberSize(long length) {
+        // deflate expands incompressible data by only a few bytes per stored block so allow generous room
+        // for that plus the gzip header and trailer
+        return length + (length >> 8) + 64;
+    }
+
+    @Override
+    public String statistics() {
+        List<String> summaries = new ArrayList<>();
+        long members = fastMembers.sum();
+        if (members > 0) {
+            String summary = String.format(Locale.ROOT, "Used fast deflate for %d already compressed payloads (%.1f MB)",
+                    members, fastBytes.sum() / 1e6);
+            long sampled = sampledBytes.sum();
+            if (sampled > 0) {
+                double savedNanosPerByte = (sampledFullNanos.sum() - sampledFastNanos.sum()) / (double) sampled;
+                summary += String.format(Locale.ROOT, ", saving an estimated %.1f seconds of CPU time",
+                        Math.max(0, savedNanosPerByte * fastBytes.sum()) / 1e9);
+            }
+            summaries.add(summary);
+        }
+        if (splicedMembers.sum() > 0) {
+            summaries.add(String.format(Locale.ROOT, "Reused the deflate streams of %d cached payloads (%.1f MB)",
+                    splicedMembers.sum(), splicedBytes.sum() / 1e6));
+        }
+        return summaries.isEmpty() ? null : String.join("; ", summaries);
+    }
+
+    private static long cpuTime() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime()
+                : System.nanoTime();
+    }
+
+    /**
+     * Number of deflaters created so far. This is bounded by the number of threads compressing at once.
+     */
+    synchronized int poolSize() {
+        return all.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (MemberStream stream : all) {
+            stream.end();
+        }
+        all.clear();
+        idle.clear();
+    }
+
+    /**
+     * The deflater, checksum and output buffer used to write a single gzip member at a time.
+     */
+    private static class MemberStream extends OutputStream {
+        final Deflater deflater;
+        private final int level;
+        private final int strategy;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final ByteBuffer output = ByteBuffer.wrap(buffer);
+        private final ByteBuffer trailer = ByteBuffer.allocate(8).order(LITTLE_ENDIAN);
+        private WritableByteChannel channel;
+        private boolean fast = false;
+
+        // when sampling, a second deflater compresses the same input at the full level for comparison
+        private Deflater shadow;
+        private boolean sampling;
+        long fastNanos;
+        long fullNanos;
+
+        MemberStream(int level, int strategy) {
+            this.level = level;
+            this.strategy = strategy;
+            deflater = new Deflater(level, true);
+            deflater.setStrategy(strategy);
+        }
+
+        void start(WritableByteChannel channel, boolean fast, boolean sample) throws IOException {
+            this.channel = channel;
+            if (fast != this.fast) {
+                deflater.setLevel(fast ? Deflater.BEST_SPEED : level);
+                deflater.setStrategy(fast ? Deflater.HUFFMAN_ONLY : strategy);
+                this.fast = fast;
+            }
+            sampling = sample;
+            if (sample && shadow == null) {
+                shadow = new Deflater(level, true);
+                shadow.setStrategy(strategy);
+            }
+            writeFully(ByteBuffer.wrap(HEADER));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            crc.update(b, off, len);
+            long start = sampling ? cpuTime() : 0;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+            if (sampling) {
+                long middle = cpuTime();
+                shadow.setInput(b, off, len);
+                while (!shadow.needsInput()) {
+                    shadow.deflate(buffer);
+                }
+                fastNanos += middle - start;
+                fullNanos += cpuTime() - middle;
+            }
+        }
+
+        void finish() throws IOException {
+            finishDeflate();
+            writeTrailer(crc.getValue(), deflater.getBytesRead());
+        }
+
+        /**
+         * Compresses everything written so far and ends the output on a byte boundary without ending the deflate
+         * stream, so other deflate data can be appended.
+         */
+        void syncFlush() throws IOException {
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                output.clear();
+                output.limit(n);
+                writeFully(output);
+            } while (n == buffer.length);
+        }
+
+        void finishDeflate() throws IOException {
+            long start = sampling ? cpuTime() : 0;
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (sampling) {
+                long middle = cpuTime();
+                shadow.finish();
+                while (!shadow.finished()) {
+                    shadow.deflate(buffer);
+                }
+                fastNanos += middle - start;
+                fullNanos += cpuTime() - middle;
+            }
+        }
+
+        void writeTrailer(long checksum, long length) throws IOException {
+            trailer.clear();
+            trailer.putInt((int) checksum);
+            trailer.putInt((int) length);
+            trailer.flip();
+            writeFully(trailer);
+        }
+
+        private void deflate() throws IOException {
+            int n = deflater.deflate(buffer, 0, buffer.length);
+            if (n > 0) {
+                output.clear();
+                output.limit(n);
+                writeFully(output);
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        void reset() {
+            deflater.reset();
+            crc.reset();
+            channel = null;
+            if (shadow != null) {
+                shadow.reset();
+            }
+            sampling = false;
+            fastNanos = 0;
+            fullNanos = 0;
+        }
+
+        void end() {
+            deflater.end();
+            if (shadow != null) {
+                shadow.end();
+            }
+        }
+    }
+}
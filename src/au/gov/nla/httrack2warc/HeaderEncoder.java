@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Builds WARC record headers directly as bytes in a reusable buffer. Building them by string concatenation creates
+ * a few dozen short-lived objects per record which adds up on crawls with millions of records. Not thread-safe:
+ * each writer has its own encoder and the contents are only valid until the next reset().
+ */
+class HeaderEncoder implements StreamWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final long MAX_CACHEABLE_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+
+    private byte[] buffer = new byte[1024];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int length = 0;
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedDate = new byte[20];
+
+    HeaderEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Appends a string that is known to be plain ASCII, such as a field name.
+     */
+    HeaderEncoder ascii(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a string encoded as UTF-8. Unpaired surrogates are replaced with '?' as String.getBytes() does.
+     */
+    HeaderEncoder utf8(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                ensureCapacity(1);
+                buffer[length++] = '?';
+            } else {
+                ensureCapacity(3);
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a string encoded as ISO-8859-1. Characters outside that range are replaced with '?' as
+     * String.getBytes() does.
+     */
+    HeaderEncoder latin1(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c <= 0xff) {
+                buffer[length++] = (byte) c;
+            } else {
+                buffer[length++] = '?';
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The number of bytes latin1() will append for a string. This is its length unless it contains characters
+     * outside the basic multilingual plane, which are replaced by a single '?'.
+     */
+    static int latin1Length(String s) {
+        int n = s.length();
+        int length = n;
+        for (int i = 0; i < n - 1; i++) {
+            if (Character.isHighSurrogate(s.charAt(i)) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length--;
+                i++;
+            }
+        }
+        return length;
+    }
+
+    HeaderEncoder decimal(long value) {
+        if (value == Long.MIN_VALUE) return ascii(Long.toString(value));
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        reverse(start, length - 1);
+        return this;
+    }
+
+    /**
+     * Appends a UUID in the same form as UUID.toString().
+     */
+    HeaderEncoder uuid(UUID uuid) {
+        ensureCapacity(36);
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        hex(msb >>> 32, 8);
+        buffer[length++] = '-';
+        hex(msb >>> 16, 4);
+        buffer[length++] = '-';
+        hex(msb, 4);
+        buffer[length++] = '-';
+        hex(lsb >>> 48, 4);
+        buffer[length++] = '-';
+        hex(lsb, 12);
+        return this;
+    }
+
+    private void hex(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        length += digits;
+    }
+
+    /**
+     * Appends a date truncated to whole seconds in the WARC-Date form yyyy-MM-ddTHH:mm:ssZ. Records from the same
+     * second share the encoding so it's only computed once per second.
+     */
+    HeaderEncoder date(Instant instant) {
+        long second = instant.getEpochSecond();
+        if (second != cachedSecond) {
+            if (second < 0 || second > MAX_CACHEABLE_SECOND) {
+                return ascii(WarcWriter.WARC_DATE.format(instant));
+            }
+            encodeDate(second);
+            cachedSecond = second;
+        }
+        ensureCapacity(cachedDate.length);
+        System.arraycopy(cachedDate, 0, buffer, length, cachedDate.length);
+        length += cachedDate.length;
+        return this;
+    }
+
+    /**
+     * Appends a date in the same form as Instant.toString(), which only differs from date() when there's a
+     * fractional second.
+     */
+    HeaderEncoder isoInstant(Instant instant) {
+        if (instant.getNano() != 0) return ascii(instant.toString());
+        return date(instant);
+    }
+
+    private void encodeDate(long epochSecond) {
+        long days = Math.floorDiv(epochSecond, 86400);
+        int secondOfDay = (int) Math.floorMod(epochSecond, 86400L);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        byte[] d = cachedDate;
+        digits(d, 0, year, 4);
+        d[4] = '-';
+        digits(d, 5, month, 2);
+        d[7] = '-';
+        digits(d, 8, day, 2);
+        d[10] = 'T';
+        digits(d, 11, secondOfDay / 3600, 2);
+        d[13] = ':';
+        digits(d, 14, secondOfDay / 60 % 60, 2);
+        d[16] = ':';
+        digits(d, 17, secondOfDay % 60, 2);
+        d[19] = 'Z';
+    }
+
+    private static void digits(byte[] dest, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            dest[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void reverse(int i, int j) {
+        for (; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    /**
+     * A copy of the encoded bytes, for tests and debugging.
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        view.clear().limit(length);
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+    }
+}
@@ -16,29 +16,40 @@
 
 package au.gov.nla.httrack2warc;
 
+import au.gov.nla.httrack2warc.httrack.FileRegion;
+import au.gov.nla.httrack2warc.httrack.CanonicalUrls;
+import au.gov.nla.httrack2warc.httrack.FileIndex;
 import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.*;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 import static java.util.Locale.ROOT;
 
 public class Httrack2Warc {
+    private static final int PAYLOAD_MEMORY_LIMIT = 8 * 1024 * 1024;
     private Logger log;
     private final static Set<String> ignoreFiles = new HashSet<>(Arrays.asList(
             "backblue.gif",
@@ -71,18 +82,27 @@ public class Httrack2Warc {
             "logs/warn"));
     private Path outputDirectory = Paths.get("");
     private Path alternateCacheDirectory = null;
-    private long warcSizeTarget = 1024 * 1024 * 1024; // 1 GiB
+    private long warcSizeTarget = WarcWriter.warcRotationSize;
     private String warcNamePattern = "crawl-%d.warc.gz";
     private ZoneId timezone = ZoneId.systemDefault();
     private MimeTypes mimeTypes = new MimeTypes();
     private StringBuilder extraWarcInfo = new StringBuilder();
     private Compression compression = Compression.GZIP;
+    private int compressionLevel = Compression.DEFAULT_LEVEL;
+    private int compressionStrategy = Compression.DEFAULT_STRATEGY;
     private String cdxName = null;
+    private CdxWriter.Format cdxFormat = CdxWriter.Format.CDX;
     private boolean strict = false;
     private boolean rewriteLinks = false;
     private final List<Pattern> urlExclusions = new ArrayList<>();
     private String redirectFile;
     private String redirectPrefix;
+    private int threads = 1;
+    private int compressionThreads = 1;
+    private long sortMemory = ExternalSort.DEFAULT_MEMORY_BUDGET;
+    private boolean resume = false;
+    private long reorderWindow = 0;
+    private boolean reuseDeflate = false;
 
     public void convert(Path source) throws IOException {
         if (log == null) {
@@ -91,32 +111,90 @@ public class Httrack2Warc {
         String filename = source.getFileName().toString();
         if (!Files.isDirectory(source) && (filename.endsWith(".tar.gz") || filename.endsWith(".tgz"))) {
             convertTarball(source);
+        } else if (!Files.isDirectory(source) && filename.endsWith(".zip")) {
+            convertZip(source);
         } else {
             convertDirectory(source);
         }
     }
 
-    private void convertTarball(Path crawldir) throws IOException {
+    /**
+     * Converts a crawl packaged as a gzipped tarball without unpacking it. The archive is read twice: the first pass
+     * extracts only the logs and cache index files that HttrackCrawl needs into a temporary directory and lists the
+     * other members. Records whose payload is a member of the archive are set aside during conversion and written
+     * in archive order as the second pass streams the members.
+     */
+    private void convertTarball(Path tarball) throws IOException {
         Path tmp = Files.createTempDirectory("httrack2warc");
-        log.debug("Unpacking {} to {}", crawldir, tmp);
+        log.debug("Reading crawl metadata from {} into {}", tarball, tmp);
         try {
-            try {
-                int exitval = new ProcessBuilder("tar", "-C", tmp.toString(), "-zxf", crawldir.toAbsolutePath()
-                        .toString()).inheritIO().start().waitFor();
-                if (exitval != 0) {
-                    throw new IOException("Unable to untar " + crawldir);
+            TarballSource source = scanTarball(tarball, tmp);
+            log.debug("Found httrack crawl under {} in archive", source.prefix.isEmpty() ? "/" : source.prefix);
+            convertCrawl(tmp.resolve(source.prefix), source);
+        } finally {
+            deleteRecursively(tmp);
+        }
+    }
+
+    /**
+     * The first pass over a tarball. Extracts the logs and cache index files into the temporary directory and indexes
+     * the other members of the crawl.
+     */
+    private TarballSource scanTarball(Path tarball, Path tmp) throws IOException {
+        List<String> names = new ArrayList<>();
+        long[] sizes = new long[1024];
+        String prefix = null;
+        try (TarReader tar = openTarball(tarball)) {
+            for (TarReader.Entry entry = tar.next(); entry != null; entry = tar.next()) {
+                String name = tarMemberName(entry.name);
+                if (name == null) {
+                    log.warn("Skipping archive member outside the crawl: {}", entry.name);
+                    continue;
+                }
+                String cachePrefix = cacheDirPrefix(name);
+                if (cachePrefix != null && (prefix == null || cachePrefix.length() < prefix.length())) {
+                    prefix = cachePrefix;
+                }
+                if (!entry.isRegularFile()) continue;
+
+                if (names.size() == sizes.length) {
+                    sizes = Arrays.copyOf(sizes, sizes.length * 2);
+                }
+                sizes[names.size()] = entry.size;
+                names.add(name);
+
+                if (cachePrefix != null || isLogFile(name)) {
+                    Path target = tmp.resolve(name);
+                    Files.createDirectories(target.getParent());
+                    Files.copy(tar.openStream(), target, StandardCopyOption.REPLACE_EXISTING);
                 }
-            } finally {
-                fixPermissions(tmp);
             }
-            Optional<Path> cacheDir = Files.walk(tmp).filter(p -> p.getFileName().toString().equals("hts-cache") && Files.isDirectory(p)).findFirst();
+        }
+        if (prefix == null) throw new IOException("Unable to find hts-cache directory in archive");
+
+        FileIndex.Builder files = new FileIndex.Builder(tmp.resolve(prefix));
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).startsWith(prefix)) {
+                files.add(names.get(i).substring(prefix.length()), sizes[i]);
+            }
+        }
+        return new TarballSource(tarball, prefix, files.build(), tmp);
+    }
+
+    /**
+     * Converts a crawl packaged as a zip file by opening it as a filesystem. Zip files have a central directory so
+     * unlike tarballs the crawl's files can be read in place in any order.
+     */
+    private void convertZip(Path zip) throws IOException {
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Optional<Path> cacheDir;
+            try (Stream<Path> paths = Files.walk(fs.getPath("/"))) {
+                cacheDir = paths.filter(p -> p.getFileName() != null && p.getFileName().toString().equals("hts-cache")
+                        && Files.isDirectory(p)).min(Comparator.comparingInt(Path::getNameCount));
+            }
             if (!cacheDir.isPresent()) throw new IOException("Unable to find hts-cache directory in archive");
-            log.debug("Found httrack crawl under {}", cacheDir.get().getParent());
+            log.debug("Found httrack crawl under {} in {}", cacheDir.get().getParent(), zip);
             convertDirectory(cacheDir.get().getParent());
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            deleteRecursively(tmp);
         }
     }
 
@@ -130,159 +208,489 @@ public class Httrack2Warc {
         });
     }
 
-    private void fixPermissions(Path dir) throws IOException {
-        Set<PosixFilePermission> dirPerms = PosixFilePermissions.fromString("rwx------");
-        Set<PosixFilePermission> filePerms = PosixFilePermissions.fromString("rw-------");
-        Files.walk(dir).forEach(path -> {
-            try {
-                if (Files.isDirectory(path)) {
-                    Files.setPosixFilePermissions(path, dirPerms);
-                } else if (Files.isRegularFile(path)) {
-                    Files.setPosixFilePermissions(path, filePerms);
-                }
-            } catch (IOException e) {
-                log.warn("Unable to set permissions on " + path, e);
+    private static TarReader openTarball(Path tarball) throws IOException {
+        return new TarReader(new GZIPInputStream(Files.newInputStream(tarball), 65536));
+    }
+
+    /**
+     * Normalises the name of an archive member by removing any leading "./" and trailing "/". Returns null for
+     * absolute names or names containing "..", which we refuse to extract, and the empty string for the top
+     * directory.
+     */
+    static String tarMemberName(String name) {
+        while (name.startsWith("./")) name = name.substring(2);
+        while (name.endsWith("/")) name = name.substring(0, name.length() - 1);
+        if (name.equals(".")) return "";
+        if (name.startsWith("/")) return null;
+        for (String component : name.split("/")) {
+            if (component.equals("..")) return null;
+        }
+        return name;
+    }
+
+    /**
+     * Returns the part of the name before its first "hts-cache" component, or null if there isn't one.
+     */
+    static String cacheDirPrefix(String name) {
+        for (int i = name.indexOf("hts-cache"); i >= 0; i = name.indexOf("hts-cache", i + 1)) {
+            int end = i + "hts-cache".length();
+            if ((i == 0 || name.charAt(i - 1) == '/') && (end == name.length() || name.charAt(end) == '/')) {
+                return name.substring(0, i);
             }
-        });
+        }
+        return null;
+    }
+
+    private static boolean isLogFile(String name) {
+        String basename = name.substring(name.lastIndexOf('/') + 1);
+        if (basename.equals("hts-log.txt") || basename.equals("hts-err.txt") || basename.equals("hts-ioinfo.txt")) {
+            return true;
+        }
+        return (basename.equals("gen") || basename.equals("warn") || basename.equals("debug"))
+                && (name.equals("logs/" + basename) || name.endsWith("/logs/" + basename));
+    }
+
+    /**
+     * A crawl being read from a tarball. Positions in the file index count the regular file members under the
+     * crawl's directory in archive order.
+     */
+    private static class TarballSource {
+        final Path file;
+        final String prefix;
+        final FileIndex files;
+        final Path tempDirectory;
+
+        TarballSource(Path file, String prefix, FileIndex files, Path tempDirectory) {
+            this.file = file;
+            this.prefix = prefix;
+            this.files = files;
+            this.tempDirectory = tempDirectory;
+        }
+
+        /**
+         * Returns the position of the member holding the record's payload or -1 if it isn't read from the archive.
+         */
+        int position(HttrackRecord record) {
+            if (record.hasCacheData() || record.getPath() == null) return -1;
+            return files.position(record.getPath());
+        }
+
+        /**
+         * Returns true if the member counts towards the file index positions.
+         */
+        boolean isCrawlFile(TarReader.Entry entry) {
+            String name = tarMemberName(entry.name);
+            return name != null && entry.isRegularFile() && name.startsWith(prefix);
+        }
     }
 
     public void convertDirectory(Path sourceDirectory) throws IOException {
+        convertCrawl(sourceDirectory, null);
+    }
+
+    private void convertCrawl(Path sourceDirectory, TarballSource tarball) throws IOException {
         log.debug("Starting WARC conversion. sourceDirectory = {} outputDirectory = {}", sourceDirectory, outputDirectory);
 
-        try (CdxWriter cdxWriter = cdxName == null ? null : new CdxWriter(outputDirectory.resolve(cdxName));
-             HttrackCrawl crawl = new HttrackCrawl(sourceDirectory);
-             WarcWriter warc = new WarcWriter(outputDirectory.resolve(warcNamePattern).toString(), compression, cdxWriter);
-             RedirectWriter redirectWriter = new RedirectWriter(redirectPrefix, redirectFile == null || redirectPrefix == null ? warc : new WarcWriter(outputDirectory.resolve(redirectFile).toString(), compression, cdxWriter))) {
+        // tarball conversions write records in two passes which a single record count can't describe
+        if (resume && tarball != null) throw new IOException("Resuming is not supported for tarballs");
+        // tarballs are already read in storage order by streaming them
+        boolean reorder = reorderWindow > 0 && tarball == null;
+        // reordered records aren't written in the order checkpoints count them in
+        if (resume && reorder) throw new IOException("Resuming is not supported when reordering reads");
+        String warcPattern = outputDirectory.resolve(compression.fileNamePattern(warcNamePattern)).toString();
+        Path journalPath = outputDirectory.resolve(Journal.FILENAME);
+        String source = sourceDirectory.toUri().toString();
+        Journal.Checkpoint checkpoint = resume ? Journal.readLastCheckpoint(journalPath, source) : null;
+        if (resume && checkpoint == null) {
+            log.warn("No checkpoint found in {}, starting from the beginning", journalPath);
+        }
+
+        CanonicalUrls canonicalUrls = new CanonicalUrls();
+        try (HttrackCrawl crawl = openCrawl(sourceDirectory, canonicalUrls, tarball);
+             MemberCompressor compressor = compression.newCompressor(compressionLevel, compressionStrategy, crawl);
+             CdxWriter cdxWriter = cdxName == null ? null : new CdxWriter(outputDirectory.resolve(cdxName), sortMemory, cdxFormat, canonicalUrls);
+             WarcWriter warc = new WarcWriter(warcPattern, compressor, cdxWriter, warcSizeTarget);
+             WarcWriter redirectWarc = redirectFile == null || redirectPrefix == null ? warc : new WarcWriter(outputDirectory.resolve(compression.fileNamePattern(redirectFile)).toString(), compressor, cdxWriter, warcSizeTarget);
+             RedirectWriter redirectWriter = new RedirectWriter(redirectPrefix, redirectWarc, canonicalUrls);
+             Journal journal = tarball != null || reorder ? null : new Journal(journalPath, source, checkpoint, warc,
+                     redirectWarc == warc ? null : redirectWarc, cdxWriter)) {
+            crawl.setThreads(threads);
+            warc.setCompressionThreads(compressionThreads);
+            redirectWarc.setCompressionThreads(compressionThreads);
             String warcInfo = formatWarcInfo(crawl);
             Instant launchInstant = crawl.getLaunchTime().atZone(timezone).toInstant();
-            Set<String> processedFiles = new HashSet<>();
+            CompactStringSet processedFiles = new CompactStringSet();
             LinkRewriter linkRewriter = rewriteLinks ? new LinkRewriter(crawl) : null;
 
-            if (redirectWriter.warc != warc) {
-                redirectWriter.warc.writeWarcinfoRecord(UUID.randomUUID(), launchInstant, warcInfo);
+            if (checkpoint != null) {
+                resumeFromCheckpoint(checkpoint, warcPattern, warc, redirectWarc, cdxWriter);
+            } else if (redirectWarc != warc) {
+                redirectWarc.writeWarcinfoRecord(UUID.randomUUID(), launchInstant, warcInfo);
             }
 
-            crawl.forEach(record -> {
-                if (isUrlExcluded(record.getUrl())) {
-                    log.info("Excluded {}", record.getUrl());
+            try (DeferredRecords deferred = tarball == null ? null : new DeferredRecords(tarball.tempDirectory, sortMemory);
+                 RecordPipeline pipeline = threads > 1 ? new RecordPipeline(threads) : null;
+                 ReadScheduler scheduler = !reorder ? null : new ReadScheduler(reorderWindow, crawl.files(), record -> {
+                     if (pipeline == null) {
+                         rotateIfNecessary(warc, launchInstant, warcInfo, null, 0);
+                         writeRecords(record, warc, redirectWriter, linkRewriter);
+                     } else {
+                         pipeline.submit(new RecordTask(record, 0, compressor, warc, redirectWarc, canonicalUrls, linkRewriter, launchInstant, warcInfo, null));
+                     }
+                 })) {
+                long[] recordCount = {0};
+                crawl.forEach(record -> {
+                    long recordNumber = recordCount[0]++;
+                    if (checkpoint != null && recordNumber < checkpoint.records) {
+                        processedFiles.add(record.getFilename());
+                        return;
+                    }
+
+                    if (isUrlExcluded(record.getUrl())) {
+                        log.info("Excluded {}", record.getUrl());
+                        processedFiles.add(record.getFilename());
+                        return;
+                    }
+
+                    // XXX: skip missing files if they were an error message
+                    // this is a workaround until we can find a better way to handle cases like .delayed files and
+                    // images renamed to .html
+                    if (!strict && record.getStatus() > 399 && !record.exists()) {
+                        log.warn("Missing file {} for {} URL {}", record.getFilename(), record.getStatus(), record.getUrl());
+                        return;
+                    }
+
+                    if (!record.exists() && !record.isRedirect()) {
+                        log.error("Missing file {} for {} URL {}", record.getFilename(), record.getStatus(), record.getUrl());
+                    }
+
+                    int position = tarball == null ? -1 : tarball.position(record);
+                    if (position >= 0) {
+                        deferred.add(position, record);
+                    } else if (scheduler != null) {
+                        scheduler.add(record);
+                    } else if (pipeline == null) {
+                        rotateIfNecessary(warc, launchInstant, warcInfo, journal, recordNumber);
+                        writeRecords(record, warc, redirectWriter, linkRewriter);
+                    } else {
+                        pipeline.submit(new RecordTask(record, recordNumber, compressor, warc, redirectWarc, canonicalUrls, linkRewriter, launchInstant, warcInfo, journal));
+                    }
+
                     processedFiles.add(record.getFilename());
-                    return;
+                });
+
+                if (scheduler != null) {
+                    scheduler.flush();
+                    String statistics = scheduler.statistics();
+                    if (statistics != null) {
+                        log.info(statistics);
+                    }
+                }
+                if (pipeline != null) {
+                    pipeline.flush();
                 }
 
-                // XXX: skip missing files if they were an error message
-                // this is a workaround until we can find a better way to handle cases like .delayed files and
-                // images renamed to .html
-                if (!strict && record.getStatus() > 399 && !record.exists()) {
-                    log.warn("Missing file {} for {} URL {}", record.getFilename(), record.getStatus(), record.getUrl());
-                    return;
+                if (deferred != null) {
+                    writeDeferredRecords(tarball, deferred, warc, redirectWriter, linkRewriter, launchInstant, warcInfo);
                 }
+            }
+            warc.flush();
+            redirectWarc.flush();
 
-                if (!record.exists() && !record.isRedirect()) {
-                    log.error("Missing file {} for {} URL {}", record.getFilename(), record.getStatus(), record.getUrl());
+            crawl.files().forEachNonDirectory(file -> {
+                if (processedFiles.contains(file) ||
+                        ignoreFiles.contains(file) ||
+                        file.toLowerCase(ROOT).endsWith(".readme")) {
+                    return;
                 }
 
-                UUID responseRecordId = UUID.randomUUID();
+                log.warn("Unprocessed extra file: {}", file);
+            });
+            log.debug("Tracked {} processed files in {} KB", processedFiles.size(), processedFiles.footprint() / 1024);
 
-                // use content type if we have it, otherwise guess based on the file extension
-                String contentType = record.getMime();
-                if (contentType == null) contentType = mimeTypes.forFilename(record.getFilename());
-                if (contentType == null) contentType = "application/octet-stream";
+            if (cdxWriter != null) {
+                cdxWriter.finish();
+            }
+            if (journal != null) {
+                journal.delete();
+            }
 
-                long contentLength = record.getSize();
-                String digest = null;
-                if (record.exists()) {
-                    try (InputStream stream = record.openStream()) {
-                        digest = Digests.sha1(stream);
+            String statistics = compressor.statistics();
+            if (statistics != null) {
+                log.info(statistics);
+            }
+        }
+
+        log.debug("Finished WARC conversion.");
+    }
+
+    /**
+     * Writes the records set aside until their payload is reached while streaming through the tarball. Payloads
+     * shared by several records are buffered so they can be read more than once.
+     */
+    private void writeDeferredRecords(TarballSource tarball, DeferredRecords deferred, WarcWriter warc,
+                                      RedirectWriter redirectWriter, LinkRewriter linkRewriter,
+                                      Instant launchInstant, String warcInfo) throws IOException {
+        deferred.sort();
+        log.debug("Streaming {} records from {}", deferred.size(), tarball.file);
+        int position = -1;
+        try (TarReader tar = openTarball(tarball.file)) {
+            for (TarReader.Entry entry = tar.next(); entry != null && deferred.peekPosition() >= 0; entry = tar.next()) {
+                if (!tarball.isCrawlFile(entry)) continue;
+                position++;
+                if (deferred.peekPosition() != position) continue;
+
+                List<HttrackRecord> records = new ArrayList<>();
+                while (deferred.peekPosition() == position) {
+                    records.add(deferred.next());
+                }
+                if (records.size() == 1) {
+                    rotateIfNecessary(warc, launchInstant, warcInfo, null, 0);
+                    writeRecords(records.get(0).withPayload(entry.size, tar::openStream), warc, redirectWriter, linkRewriter);
+                } else {
+                    try (SpillBuffer payload = new SpillBuffer(PAYLOAD_MEMORY_LIMIT)) {
+                        copyStream(tar.openStream(), Channels.newOutputStream(payload));
+                        for (HttrackRecord record : records) {
+                            rotateIfNecessary(warc, launchInstant, warcInfo, null, 0);
+                            writeRecords(record.withPayload(payload.size(), payload::openStream), warc, redirectWriter, linkRewriter);
+                        }
                     }
                 }
+            }
+        }
+        if (deferred.peekPosition() >= 0) {
+            throw new IOException(tarball.file + " changed while reading it");
+        }
+    }
 
-                // we only allow rotations at the start of each set of records to ensure they're always
-                // kept together in the same file
-                if (warc.rotateIfNecessary()) {
-                    warc.writeWarcinfoRecord(UUID.randomUUID(), launchInstant, warcInfo);
-                }
+    /**
+     * Opens the crawl, giving it the listing of the archive if it's read from a tarball so nothing looks for the
+     * files that weren't extracted.
+     */
+    private static HttrackCrawl openCrawl(Path sourceDirectory, CanonicalUrls canonicalUrls, TarballSource tarball)
+            throws IOException {
+        HttrackCrawl crawl = new HttrackCrawl(sourceDirectory, canonicalUrls);
+        if (tarball != null) {
+            crawl.setFiles(tarball.files);
+        }
+        return crawl;
+    }
 
-                Instant warcDate = record.getTimestamp().atZone(timezone).toInstant();
+    /**
+     * We only allow rotations at the start of each set of records to ensure they're always kept together in the
+     * same file.
+     */
+    private void rotateIfNecessary(WarcWriter warc, Instant launchInstant, String warcInfo, Journal journal,
+                                   long recordNumber) throws IOException {
+        if (warc.rotateIfNecessary()) {
+            if (journal != null) {
+                journal.checkpoint(recordNumber);
+            }
+            warc.writeWarcinfoRecord(UUID.randomUUID(), launchInstant, warcInfo);
+        }
+    }
+
+    /**
+     * Restores the output to how it was at a checkpoint: the finished WARC files are checked, any later ones
+     * removed, the redirect WARC cut back and the CDX lines written so far recovered from the journal.
+     */
+    private void resumeFromCheckpoint(Journal.Checkpoint checkpoint, String warcPattern, WarcWriter warc,
+                                      WarcWriter redirectWarc, CdxWriter cdxWriter) throws IOException {
+        checkpoint.verify(outputDirectory);
+        for (int seq = checkpoint.nextSeq; Files.deleteIfExists(Paths.get(String.format(warcPattern, seq))); seq++) {
+            log.debug("Removed partial WARC {}", String.format(warcPattern, seq));
+        }
+        warc.resume(checkpoint.nextSeq, 0);
+        if (redirectWarc != warc) {
+            redirectWarc.resume(0, checkpoint.redirectLength);
+        }
+        if (cdxWriter != null) {
+            cdxWriter.restore(checkpoint.cdx());
+        }
+        log.info("Resuming after {} records from {}", checkpoint.records, String.format(warcPattern, checkpoint.nextSeq));
+    }
 
-                long linksRewritten = 0;
-                try (InputStream stream = record.openStream()) {
-                    InputStream body;
+    /**
+     * Writes the response or resource record for a HTTrack record along with its associated request, metadata and
+     * synthetic redirect records.
+     */
+    private void writeRecords(HttrackRecord record, WarcRecordWriter warc, RedirectWriter redirectWriter,
+                              LinkRewriter linkRewriter) throws IOException {
+        UUID responseRecordId = UUID.randomUUID();
+
+        // use content type if we have it, otherwise guess based on the file extension
+        String contentType = record.getMime();
+        if (contentType == null) contentType = mimeTypes.forFilename(record.getFilename());
+        if (contentType == null) contentType = "application/octet-stream";
+
+        Instant warcDate = record.getTimestamp().atZone(timezone).toInstant();
+
+        boolean rewrite = linkRewriter != null && record.getFilename() != null
+                && record.getFilename().endsWith(".html") && !record.hasCacheData();
+
+        // when writing uncompressed WARCs and the payload is stored as-is on disk we only need to read it to
+        // compute the digest and can let the kernel copy it straight into the WARC file. That's two reads of the
+        // payload though so it's only worth it when the spill buffer would otherwise spill it to a temp file,
+        // smaller payloads are read once into memory and digested as they are.
+        FileRegion region = null;
+        if (compression == Compression.NONE && record.exists() && !rewrite) {
+            region = record.getFileRegion();
+            if (region != null && region.getLength() <= PAYLOAD_MEMORY_LIMIT) region = null;
+        }
 
-                    if (linkRewriter != null && record.getFilename() != null && record.getFilename().endsWith(".html") && !record.hasCacheData()) {
-                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                        linksRewritten = linkRewriter.rewrite(stream, record.getFilename(), buffer);
-                        byte[] data = buffer.toByteArray();
-                        contentLength = data.length;
-                        digest = Digests.sha1(new ByteArrayInputStream(data));
-                        body = new ByteArrayInputStream(data);
-                    } else {
-                        body = stream;
-                    }
+        // when the payload is already a deflate stream in the cache we can splice it into the gzip member and only
+        // need to inflate it to compute the digest
+        DeflatedBody deflated = null;
+        if (reuseDeflate && compression == Compression.GZIP && region == null && record.exists() && !rewrite) {
+            try {
+                deflated = DeflatedBody.read(record);
+            } catch (ZipException e) {
+                log.warn("Recompressing {} as its deflate stream can't be reused: {}", record.getFilename(), e.getMessage());
+            }
+        }
 
-                    String responseHeader = record.getResponseHeader();
-                    if (responseHeader == null && record.getStatus() >= 300) {
-                        // if there's no response header but an error status we fabricate a header to record it
-                        // as that's the lesser evil than playback interpreting it incorrectly
-                        responseHeader = "HTTP/1.0 " + record.getStatus() + " \r\nContent-Type: " + contentType + "\r\nServer: httrack2warc reconstructed header\r\n\r\n";
-                    }
-                    if (responseHeader != null) {
-                        String truncated;
-                        if (record.exists()) {
-                            responseHeader = removeTransferEncodingHeader(responseHeader);
-                            responseHeader = fixContentLength(responseHeader, contentLength);
-                            truncated = null;
+        // otherwise read the payload once, digesting it as we go, and hold it in a spill buffer until we've written
+        // the WARC header which needs to contain the digest
+        long linksRewritten = 0;
+        String digest = null;
+        try (SpillBuffer payload = new SpillBuffer(PAYLOAD_MEMORY_LIMIT)) {
+            StreamWriter body;
+            long contentLength;
+            if (region != null) {
+                try (InputStream stream = region.openStream()) {
+                    digest = Digests.sha1(stream);
+                }
+                body = StreamWriter.of(region);
+                contentLength = region.getLength();
+            } else if (deflated != null) {
+                digest = deflated.digest;
+                body = deflated;
+                contentLength = deflated.length;
+            } else {
+                if (record.exists()) {
+                    MessageDigest sha1 = Digests.newSha1();
+                    OutputStream out = new DigestOutputStream(Channels.newOutputStream(payload), sha1);
+                    try (InputStream stream = record.openStream()) {
+                        if (rewrite) {
+                            linksRewritten = linkRewriter.rewrite(stream, record.getFilename(), out);
                         } else {
-                            truncated = "unspecified";
+                            copyStream(stream, out);
                         }
-                        warc.writeResponseRecord(record.getUrl(), contentType, digest, responseRecordId, warcDate, contentLength,
-                                responseHeader, body, truncated);
-                    } else {
-                        warc.writeResourceRecord(record.getUrl(), contentType, digest, responseRecordId, warcDate, contentLength, body);
                     }
+                    digest = Digests.base32(sha1.digest());
                 }
+                body = payload.contents();
+                contentLength = payload.size();
+            }
 
-                log.info("{} {}{}{} -> {}", record.getTimestamp().format(ISO_LOCAL_DATE_TIME), record.getFilename(),
-                        record.hasCacheData() ? " (cache)" : "", linksRewritten == 0 ? "" : " (" + linksRewritten + " links rewritten)", record.getUrl());
-
-                if (record.getRequestHeader() != null) {
-                    warc.writeRequestRecord(record.getUrl(), responseRecordId, warcDate, record.getRequestHeader());
+            String responseHeader = record.getResponseHeader();
+            if (responseHeader == null && record.getStatus() >= 300) {
+                // if there's no response header but an error status we fabricate a header to record it
+                // as that's the lesser evil than playback interpreting it incorrectly
+                responseHeader = "HTTP/1.0 " + record.getStatus() + " \r\nContent-Type: " + contentType + "\r\nServer: httrack2warc reconstructed header\r\n\r\n";
+            }
+            if (responseHeader != null) {
+                String truncated;
+                if (record.exists()) {
+                    responseHeader = removeTransferEncodingHeader(responseHeader);
+                    responseHeader = fixContentLength(responseHeader, contentLength);
+                    truncated = null;
+                } else {
+                    truncated = "unspecified";
                 }
+                warc.writeResponseRecord(record.getUrl(), contentType, digest, responseRecordId, warcDate, contentLength,
+                        responseHeader, body, truncated);
+            } else {
+                warc.writeResourceRecord(record.getUrl(), contentType, digest, responseRecordId, warcDate, contentLength, body);
+            }
+        }
 
-                // build metadata record
-                StringBuilder metadata = new StringBuilder();
-                if (record.getReferrer() != null) {
-                    metadata.append("via: ").append(record.getReferrer()).append("\r\n");
-                }
-                if (record.getFilename() != null) {
-                    metadata.append("httrackFile: ").append(record.getFilename()).append("\r\n");
-                }
-                if (metadata.length() > 0) {
-                    warc.writeMetadataRecord(record.getUrl(), responseRecordId, warcDate, metadata.toString());
-                }
+        log.info("{} {}{}{} -> {}", record.getTimestamp().format(ISO_LOCAL_DATE_TIME), record.getFilename(),
+                record.hasCacheData() ? " (cache)" : "", linksRewritten == 0 ? "" : " (" + linksRewritten + " links rewritten)", record.getUrl());
 
-                redirectWriter.write(record, warcDate);
+        if (record.getRequestHeader() != null) {
+            warc.writeRequestRecord(record.getUrl(), responseRecordId, warcDate, record.getRequestHeader());
+        }
 
-                processedFiles.add(record.getFilename());
-            });
+        // build metadata record
+        StringBuilder metadata = new StringBuilder();
+        if (record.getReferrer() != null) {
+            metadata.append("via: ").append(record.getReferrer()).append("\r\n");
+        }
+        if (record.getFilename() != null) {
+            metadata.append("httrackFile: ").append(record.getFilename()).append("\r\n");
+        }
+        if (metadata.length() > 0) {
+            warc.writeMetadataRecord(record.getUrl(), responseRecordId, warcDate, metadata.toString());
+        }
 
-            Files.walk(sourceDirectory).forEach(path -> {
-                String file = sourceDirectory.relativize(path).toString();
-                if (processedFiles.contains(file) ||
-                        ignoreFiles.contains(file) ||
-                        Files.isDirectory(path) ||
-                        file.toLowerCase(ROOT).endsWith(".readme")) {
-                    return;
-                }
+        redirectWriter.write(record, warcDate);
+    }
 
-                log.warn("Unprocessed extra file: {}", file);
-            });
+    private static void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (;;) {
+            int n = in.read(buffer);
+            if (n < 0) break;
+            out.write(buffer, 0, n);
+        }
+    }
 
-            if (cdxWriter != null) {
-                cdxWriter.finish();
+    /**
+     * Prepares the records for a HTTrack record into buffers on a worker thread and then appends them to the real
+     * WARC writers in crawl order.
+     */
+    private class RecordTask implements RecordPipeline.Task {
+        private final HttrackRecord record;
+        private final long recordNumber;
+        private final WarcWriter warc;
+        private final WarcWriter redirectWarc;
+        private final CanonicalUrls canonicalUrls;
+        private final LinkRewriter linkRewriter;
+        private final Instant launchInstant;
+        private final String warcInfo;
+        private final WarcBuffer buffer;
+        private final WarcBuffer redirectBuffer;
+        private final Journal journal;
+
+        RecordTask(HttrackRecord record, long recordNumber, MemberCompressor compressor, WarcWriter warc,
+                   WarcWriter redirectWarc, CanonicalUrls canonicalUrls, LinkRewriter linkRewriter,
+                   Instant launchInstant, String warcInfo, Journal journal) {
+            this.record = record;
+            this.recordNumber = recordNumber;
+            this.warc = warc;
+            this.redirectWarc = redirectWarc;
+            this.canonicalUrls = canonicalUrls;
+            this.linkRewriter = linkRewriter;
+            this.launchInstant = launchInstant;
+            this.warcInfo = warcInfo;
+            this.buffer = new WarcBuffer(compressor);
+            this.redirectBuffer = redirectWarc == warc ? buffer : new WarcBuffer(compressor);
+            this.journal = journal;
+        }
+
+        @Override
+        public void prepare() throws IOException {
+            writeRecords(record, buffer, new RedirectWriter(redirectPrefix, redirectBuffer, canonicalUrls), linkRewriter);
+        }
+
+        @Override
+        public void complete() throws IOException {
+            rotateIfNecessary(warc, launchInstant, warcInfo, journal, recordNumber);
+            warc.append(buffer);
+            if (redirectBuffer != buffer) {
+                redirectWarc.append(redirectBuffer);
             }
         }
 
-        log.debug("Finished WARC conversion.");
+        @Override
+        public void close() throws IOException {
+            try {
+                buffer.close();
+            } finally {
+                redirectBuffer.close();
+            }
+        }
     }
 
     private boolean isUrlExcluded(String url) {
@@ -394,10 +802,30 @@ public class Httrack2Warc {
         this.compression = compression;
     }
 
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public void setCompressionStrategy(int compressionStrategy) {
+        this.compressionStrategy = compressionStrategy;
+    }
+
     public void setCdxName(String cdxName) {
         this.cdxName = cdxName;
     }
 
+    public void setCdxFormat(CdxWriter.Format cdxFormat) {
+        this.cdxFormat = cdxFormat;
+    }
+
     public void setStrict(boolean strict) {
         this.strict = strict;
     }
@@ -417,4 +845,57 @@ public class Httrack2Warc {
     public void setRedirectFile(String redirectFile) {
         this.redirectFile = redirectFile;
     }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public long getSortMemory() {
+        return sortMemory;
+    }
+
+    /**
+     * Sets the approximate amount of memory in bytes to use when sorting the CDX index. Larger indexes are sorted
+     * in runs that spill to disk.
+     */
+    public void setSortMemory(long sortMemory) {
+        this.sortMemory = sortMemory;
+    }
+
+    /**
+     * Continue an interrupted conversion from the last checkpoint in the output directory's journal instead of
+     * starting again.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Reorders records in windows holding about the given number of bytes of stored payloads to read them in
+     * storage order, reading each window ahead while the previous is written. Zero (the default) processes records
+     * in log order.
+     */
+    public void setReorderWindow(long reorderWindow) {
+        this.reorderWindow = reorderWindow;
+    }
+
+    /**
+     * Copy payloads stored deflated in a zip cache into gzip members without recompressing them. The record's
+     * headers and trailer are deflated separately around them.
+     */
+    public void setReuseDeflate(boolean reuseDeflate) {
+        this.reuseDeflate = reuseDeflate;
+    }
 }
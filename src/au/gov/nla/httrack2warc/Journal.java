@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Records checkpoints of a conversion so an interrupted run can be resumed. A checkpoint is taken each time a new
+ * WARC file is started and records the file just finished, the CDX lines written since the previous checkpoint, the
+ * length of the redirect WARC and how many crawl records had been handled. The CDX lines are copied into the journal
+ * because the temporary index is deleted when a conversion fails.
+ * <p>
+ * The journal is a text file of tab separated lines except that each "cdx" line is followed by the given number of
+ * bytes of index lines. Anything after the last complete checkpoint line is ignored when resuming.
+ */
+class Journal implements Closeable {
+    static final String FILENAME = "httrack2warc.journal";
+
+    private final Path path;
+    private final FileChannel channel;
+    private final WarcWriter warc;
+    private final WarcWriter redirectWarc;
+    private final CdxWriter cdxWriter;
+    private long cdxCopied;
+    private Path journaledFile;
+
+    /**
+     * Starts a journal, continuing the given checkpoint if it's not null.
+     *
+     * @param redirectWarc the writer for synthetic redirects if they go to a separate file, otherwise null
+     */
+    Journal(Path path, String source, Checkpoint checkpoint, WarcWriter warc, WarcWriter redirectWarc,
+            CdxWriter cdxWriter) throws IOException {
+        this.path = path;
+        this.warc = warc;
+        this.redirectWarc = redirectWarc;
+        this.cdxWriter = cdxWriter;
+        if (checkpoint != null) {
+            channel = FileChannel.open(path, WRITE);
+            channel.truncate(checkpoint.journalLength);
+            channel.position(checkpoint.journalLength);
+            cdxCopied = checkpoint.cdxLength;
+        } else {
+            channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING);
+            write("source\t" + source + "\n");
+        }
+    }
+
+    /**
+     * Records a checkpoint. Must be called just after a new WARC file has been started and before anything other
+     * than its file header is written to it.
+     */
+    void checkpoint(long records) throws IOException {
+        Path closedFile = warc.closedFile();
+        if (closedFile != null && !closedFile.equals(journaledFile)) {
+            write("warc\t" + closedFile.getFileName() + "\t" + warc.closedFileSize() + "\n");
+            journaledFile = closedFile;
+        }
+        // flush the redirects first as appending any still being compressed also indexes them
+        long redirectLength = redirectWarc == null ? -1 : redirectWarc.flushToFile();
+        if (cdxWriter != null) {
+            long end = cdxWriter.flush();
+            write("cdx\t" + (end - cdxCopied) + "\n");
+            cdxWriter.copyTo(cdxCopied, end, channel);
+            cdxCopied = end;
+        }
+        write("checkpoint\t" + records + "\t" + warc.currentSeq() + "\t" + redirectLength + "\n");
+        channel.force(false);
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Closes and removes the journal after a successful conversion.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the last complete checkpoint of a journal. Returns null if there is no journal or it has no checkpoints.
+     */
+    static Checkpoint readLastCheckpoint(Path path, String source) throws IOException {
+        if (!Files.exists(path)) return null;
+        Checkpoint checkpoint = null;
+        Map<String, Long> warcs = new LinkedHashMap<>();
+        List<long[]> cdxSections = new ArrayList<>();
+        long cdxLength = 0;
+        try (CountingInput in = new CountingInput(new BufferedInputStream(Files.newInputStream(path)))) {
+            String header = in.readLine();
+            if (header == null) return null;
+            if (!header.equals("source\t" + source)) {
+                throw new IOException(path + " is for a different crawl: " + header);
+            }
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t");
+                switch (fields[0]) {
+                    case "warc":
+                        warcs.put(fields[1], Long.parseLong(fields[2]));
+                        break;
+                    case "cdx":
+                        long length = Long.parseLong(fields[1]);
+                        long offset = in.position;
+                        if (in.skipFully(length) < length) return checkpoint; // truncated
+                        cdxSections.add(new long[]{offset, length});
+                        cdxLength += length;
+                        break;
+                    case "checkpoint":
+                        checkpoint = new Checkpoint(path, Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                                Long.parseLong(fields[3]), new LinkedHashMap<>(warcs), new ArrayList<>(cdxSections),
+                                cdxLength, in.position);
+                        break;
+                    default:
+                        throw new IOException("Unknown journal entry in " + path + ": " + line);
+                }
+            }
+        }
+        return checkpoint;
+    }
+
+    static class Checkpoint {
+        private final Path journalPath;
+        final long records;
+        final int nextSeq;
+        final long redirectLength;
+        final Map<String, Long> warcs;
+        private final List<long[]> cdxSections;
+        final long cdxLength;
+        final long journalLength;
+
+        Checkpoint(Path journalPath, long records, int nextSeq, long redirectLength, Map<String, Long> warcs,
+                   List<long[]> cdxSections, long cdxLength, long journalLength) {
+            this.journalPath = journalPath;
+            this.records = records;
+            this.nextSeq = nextSeq;
+            this.redirectLength = redirectLength;
+            this.warcs = warcs;
+            this.cdxSections = cdxSections;
+            this.cdxLength = cdxLength;
+            this.journalLength = journalLength;
+        }
+
+        /**
+         * Checks the WARC files finished before the checkpoint are still present and complete.
+         */
+        void verify(Path directory) throws IOException {
+            for (Map.Entry<String, Long> entry : warcs.entrySet()) {
+                Path file = directory.resolve(entry.getKey());
+                if (!Files.isRegularFile(file) || Files.size(file) != entry.getValue()) {
+                    throw new IOException("Unable to resume: " + file + " is missing or has changed since it was " +
+                            "finished (expected " + entry.getValue() + " bytes)");
+                }
+            }
+        }
+
+        /**
+         * The CDX lines written before the checkpoint.
+         */
+        StreamWriter cdx() {
+            return out -> {
+                try (FileChannel channel = FileChannel.open(journalPath)) {
+                    for (long[] section : cdxSections) {
+                        BufferedChannel.transfer(channel, section[0], section[1], Channels.newChannel(out));
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Reads lines and skips bytes while keeping track of the position. A final line without a newline is treated
+     * as incomplete.
+     */
+    private static class CountingInput implements Closeable {
+        private final InputStream stream;
+        long position = 0;
+
+        CountingInput(InputStream stream) {
+            this.stream = stream;
+        }
+
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int b = stream.read(); b >= 0; b = stream.read()) {
+                position++;
+                if (b == '\n') return new String(line.toByteArray(), UTF_8);
+                line.write(b);
+            }
+            return null;
+        }
+
+        long skipFully(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                long count = stream.skip(n - skipped);
+                if (count <= 0) {
+                    if (stream.read() < 0) break;
+                    count = 1;
+                }
+                skipped += count;
+            }
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package au.gov.nla.httrack2warc;
 
-import au.gov.nla.httrack2warc.httrack.HtsUtil;
+import au.gov.nla.httrack2warc.httrack.CanonicalUrls;
 import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
 import net.htmlparser.jericho.*;
 import org.netpreserve.urlcanon.Canonicalizer;
@@ -15,8 +15,10 @@ import java.util.Map;
 
 public class LinkRewriter {
     private Map<String, String> urlMap = new HashMap<>();
+    private final CanonicalUrls canonicalUrls;
 
     LinkRewriter(HttrackCrawl crawl) throws IOException {
+        canonicalUrls = crawl.getCanonicalUrls();
         crawl.forEach(record -> {
             ParsedUrl httrackUrl = ParsedUrl.parseUrl("http://httrack/" + record.getFilename());
             Canonicalizer.SEMANTIC.canonicalize(httrackUrl);
@@ -64,7 +66,7 @@ public class LinkRewriter {
 
                 String original;
                 if (parsed.toString().equals("http://httrack/external.html") && url.getRawQuery() != null && url.getRawQuery().startsWith("link=")) {
-                    original = HtsUtil.fixupUrl(url.getRawQuery().substring("link=".length()));
+                    original = canonicalUrls.fixup(url.getRawQuery().substring("link=".length()));
                 } else {
                     original = urlMap.get(parsed.toString());
                 }
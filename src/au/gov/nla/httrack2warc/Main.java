@@ -41,7 +41,12 @@ public class Main {
             "\n" +
             "Options:\n" +
             "  --cdx FILENAME               Write a CDX index file for the generated WARCs.\n" +
-            "  -C, --compression none|gzip  Type of compression to use (default: gzip).\n" +
+            "  --cdxj                       Write the CDX index in CDXJ format keyed by SURT.\n" +
+            "  -C, --compression TYPE       Type of compression to use: none, gzip or gzip:LEVEL[:STRATEGY] where LEVEL\n" +
+            "                               is 0-9 and STRATEGY is default, filtered or huffman (default: gzip).\n" +
+            "                               zstd or zstd:LEVEL writes .warc.zst files with a dictionary trained on\n" +
+            "                               the crawl.\n" +
+            "  --compression-threads N      Number of threads used to compress WARC records (default: 1).\n" +
             "  -x, --exclude REGEX          Exclude URLs matching a regular expression.\n" +
             "  -h, --help                   Show this screen.\n" +
             "  -n, --name PATTERN           WARC name pattern (default: crawl-%d.warc.gz).\n" +
@@ -49,17 +54,27 @@ public class Main {
             "  -q, --quiet                  Decrease logging verbosity.\n" +
             "  --redirect-file PATTERN      Direct synthetic redirects to a separate set of WARC files.\n" +
             "  --redirect-prefix URLPREFIX  Generates synthetic redirects from HTTrack-rewritten URLs to original URLs.\n" +
+            "  --reorder-window BYTES       Read payloads in storage order within windows of BYTES stored, reading ahead.\n" +
             "  --rewrite-links              When the unmodified HTML is unavailable attempt to rewrite links to undo HTTrack's URL mangling. (experimental)\n" +
+            "  --resume                     Continue an interrupted conversion from its last checkpoint.\n" +
+            "  --reuse-deflate              Copy payloads deflated in the zip cache into gzip WARCs without recompressing.\n" +
             "  -s, --size BYTES             WARC size target (default: 1GB).\n" +
+            "  --sort-memory BYTES          Memory to use when sorting the CDX index (default: 256MB).\n" +
             "  --strict                     Abort on issues normally considered a warning.\n" +
+            "  -t, --threads N              Number of worker threads used to prepare records (default: 1).\n" +
             "  -Z, --timezone ZONEID        Timezone of HTTrack logs (default: " + ZoneId.systemDefault() + ").\n" +
             "  -I, --warcinfo 'KEY: VALUE'  Add extra lines to warcinfo record.\n" +
-            "  -v, --verbose                Increase logging verbosity.\n";
+            "  -v, --verbose                Increase logging verbosity.\n" +
+            "  --zipnum                     Write the CDX index as a ZipNum cluster of gzipped CDXJ blocks\n" +
+            "                               (FILENAME.gz) with a summary (FILENAME.idx) and location file\n" +
+            "                               (FILENAME.loc).\n";
 
     public static void main(String[] args) throws IOException {
         Path crawldir = null;
         Httrack2Warc httrack2Warc = new Httrack2Warc();
         int verbosity = Arrays.asList(LOG_LEVELS).indexOf("warn");
+        boolean cdx = false;
+        boolean cdxFormat = false;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -95,17 +110,60 @@ public class Main {
 
                 case "-C":
                 case "--compression":
-                    httrack2Warc.setCompression(Compression.valueOf(args[++i].toUpperCase()));
+                    String[] compressionArgs = args[++i].split(":");
+                    httrack2Warc.setCompression(Compression.valueOf(compressionArgs[0].toUpperCase()));
+                    if (compressionArgs.length > 1) {
+                        httrack2Warc.setCompressionLevel(Integer.parseInt(compressionArgs[1]));
+                    }
+                    if (compressionArgs.length > 2) {
+                        httrack2Warc.setCompressionStrategy(Compression.parseStrategy(compressionArgs[2]));
+                    }
+                    break;
+
+                case "--compression-threads":
+                    httrack2Warc.setCompressionThreads(Integer.parseInt(args[++i]));
+                    break;
+
+                case "--resume":
+                    httrack2Warc.setResume(true);
+                    break;
+
+                case "--reorder-window":
+                    httrack2Warc.setReorderWindow(Long.parseLong(args[++i]));
+                    break;
+
+                case "--reuse-deflate":
+                    httrack2Warc.setReuseDeflate(true);
+                    break;
+
+                case "--sort-memory":
+                    httrack2Warc.setSortMemory(Long.parseLong(args[++i]));
                     break;
 
                 case "--cdx":
                     httrack2Warc.setCdxName(args[++i]);
+                    cdx = true;
+                    break;
+
+                case "--cdxj":
+                    httrack2Warc.setCdxFormat(CdxWriter.Format.CDXJ);
+                    cdxFormat = true;
+                    break;
+
+                case "--zipnum":
+                    httrack2Warc.setCdxFormat(CdxWriter.Format.ZIPNUM);
+                    cdxFormat = true;
                     break;
 
                 case "--strict":
                     httrack2Warc.setStrict(true);
                     break;
 
+                case "-t":
+                case "--threads":
+                    httrack2Warc.setThreads(Integer.parseInt(args[++i]));
+                    break;
+
                 case "--rewrite-links":
                     httrack2Warc.setRewriteLinks(true);
                     break;
@@ -156,6 +214,12 @@ public class Main {
             System.exit(1);
         }
 
+        if (cdxFormat && !cdx) {
+            System.err.println("httrack2warc: --cdxj and --zipnum require --cdx FILENAME.");
+            System.err.println("Try 'httrack2warc --help' for more information.");
+            System.exit(1);
+        }
+
         if (System.getProperty(DEFAULT_LOG_LEVEL_KEY) == null) {
             if (verbosity >= LOG_LEVELS.length) verbosity = LOG_LEVELS.length - 1;
             if (verbosity < 0) verbosity = 0;
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes each WARC record as a separately compressed member. Instances are created by {@link Compression} with the
+ * settings chosen for a conversion and may be used by several threads at once. Some hold native resources which
+ * are released by close().
+ */
+interface MemberCompressor extends Closeable {
+    MemberCompressor UNCOMPRESSED = new MemberCompressor() {
+        @Override
+        public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
+            streamWriter.writeTo(channel);
+        }
+
+        @Override
+        public long maxMemberSize(long length) {
+            return length;
+        }
+    };
+
+    /**
+     * Writes anything that needs to appear at the start of each file before the first member.
+     */
+    default void writeFileHeader(WritableByteChannel channel) throws IOException {
+    }
+
+    void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException;
+
+    /**
+     * Writes a member whose payload has the given content type (or null if unknown). Compressors may use this to
+     * spend less effort on payloads that are already compressed.
+     */
+    default void writeMember(WritableByteChannel channel, StreamWriter streamWriter, String contentType)
+            throws IOException {
+        writeMember(channel, streamWriter);
+    }
+
+    /**
+     * Writes a member made of a prefix, a body that's already deflated and a suffix. Compressors that can't make use
+     * of the deflated form write the body inflated.
+     */
+    default void writeMember(WritableByteChannel channel, StreamWriter prefix, DeflatedBody body, StreamWriter suffix,
+                             String contentType) throws IOException {
+        writeMember(channel, prefix.andThen(body).andThen(suffix), contentType);
+    }
+
+    /**
+     * An upper bound on the size of a member holding the given number of uncompressed bytes.
+     */
+    long maxMemberSize(long length);
+
+    /**
+     * A summary of the work done for the log, or null if there's nothing interesting to report.
+     */
+    default String statistics() {
+        return null;
+    }
+
+    @Override
+    default void close() {
+    }
+}
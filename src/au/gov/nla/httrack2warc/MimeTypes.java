@@ -19,8 +19,12 @@ package au.gov.nla.httrack2warc;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 public class MimeTypes {
     private final Map<String, String> typeForExtensionMap;
@@ -56,6 +60,38 @@ public class MimeTypes {
         return forExtension(filename.substring(i + 1));
     }
 
+    /**
+     * Returns true if the content type is a format that is normally already compressed, such as most image, audio
+     * and video formats and archives. Compressing these again gains little.
+     */
+    public static boolean isCompressed(String contentType) {
+        if (contentType == null) return false;
+        int i = contentType.indexOf(';');
+        String type = (i < 0 ? contentType : contentType.substring(0, i)).trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/")) {
+            return !type.equals("image/svg+xml") && !type.equals("image/bmp") && !type.equals("image/x-ms-bmp")
+                    && !type.equals("image/tiff") && !type.equals("image/x-icon")
+                    && !type.equals("image/vnd.microsoft.icon");
+        }
+        if (type.startsWith("video/")) return true;
+        if (type.startsWith("audio/")) {
+            return !type.equals("audio/wav") && !type.equals("audio/x-wav") && !type.equals("audio/aiff")
+                    && !type.equals("audio/x-aiff") && !type.equals("audio/basic");
+        }
+        if (type.startsWith("font/woff")) return true;
+        if (type.endsWith("+zip") || type.startsWith("application/vnd.openxmlformats-officedocument.")
+                || type.startsWith("application/vnd.oasis.opendocument.")) {
+            return true;
+        }
+        return COMPRESSED_APPLICATION_TYPES.contains(type);
+    }
+
+    private static final Set<String> COMPRESSED_APPLICATION_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+            "application/java-archive", "application/pdf", "application/ogg", "application/x-shockwave-flash",
+            "application/font-woff", "application/x-font-woff"));
+
     private static Map<String,String> parse(InputStream stream) throws IOException {
         return parse(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)));
     }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.FileIndex;
+import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reorders records within a bounded window into the order their payloads are stored so they're read with fewer
+ * seeks. Records are processed in new.txt order which jumps around the cache and mirror, and that's slow on spinning
+ * disks and tape-backed storage.
+ * <p>
+ * Cached payloads are ordered by their offset in the cache file. Payloads from the mirror are ordered by inode number,
+ * which on most Unix filesystems roughly follows where the file was allocated, or by path when that's unavailable.
+ * The inode numbers come from the crawl's FileIndex so no extra stat calls are made per record.
+ * <p>
+ * Each window is read through on a background thread to bring it into the page cache while the previous window is
+ * being written, so the writer mostly finds its data already in memory. The stored bytes are read rather than the
+ * decoded payload so compressed cache entries aren't inflated twice. Windows are bounded by the number of stored
+ * bytes rather than records so that a window of large files can't push its own read-ahead back out of the page
+ * cache before the writer gets to it.
+ */
+class ReadScheduler implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ReadScheduler.class);
+
+    // a bound for when the sizes aren't known, as for entries of new.dat caches
+    private static final int MAX_WINDOW_RECORDS = 10000;
+
+    private final long windowBytes;
+    private final FileIndex files;
+    private final HttrackCrawl.RecordConsumer sink;
+    private final ExecutorService reader;
+    private List<Scheduled> filling = new ArrayList<>();
+    private long fillingBytes = 0;
+    private List<Scheduled> ready;
+    private Future<?> readingReady;
+    private long bytesRead = 0; // written by the reader thread, read only after waiting for it
+    private long readNanos = 0;
+
+    /**
+     * @param windowBytes the number of stored bytes to gather into each window before sorting it
+     * @param files       the snapshot of the crawl directory the records were created with
+     */
+    ReadScheduler(long windowBytes, FileIndex files, HttrackCrawl.RecordConsumer sink) {
+        this.windowBytes = windowBytes;
+        this.files = files;
+        this.sink = sink;
+        this.reader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "httrack2warc-readahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void add(HttrackRecord record) throws IOException {
+        Scheduled scheduled = new Scheduled(record, filling.size(), files);
+        filling.add(scheduled);
+        fillingBytes += scheduled.size;
+        if (fillingBytes >= windowBytes || filling.size() >= MAX_WINDOW_RECORDS) {
+            advance();
+        }
+    }
+
+    /**
+     * Sorts the window being filled and starts reading it ahead, then writes the previous window.
+     */
+    private void advance() throws IOException {
+        Collections.sort(filling);
+        List<Scheduled> next = filling;
+        filling = new ArrayList<>();
+        fillingBytes = 0;
+        Future<?> readingNext = reader.submit(() -> readAhead(next));
+        drain();
+        ready = next;
+        readingReady = readingNext;
+    }
+
+    private void drain() throws IOException {
+        if (ready == null) return;
+        try {
+            readingReady.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            // reading ahead is only a hint, any real problem will be hit again by the writer
+            log.debug("Read ahead failed", e.getCause());
+        }
+        for (Scheduled scheduled : ready) {
+            sink.accept(scheduled.record);
+        }
+        ready = null;
+    }
+
+    /**
+     * Writes all remaining records.
+     */
+    void flush() throws IOException {
+        if (!filling.isEmpty()) {
+            advance();
+        }
+        drain();
+    }
+
+    private void readAhead(List<Scheduled> window) {
+        long start = System.nanoTime();
+        byte[] buffer = new byte[65536];
+        for (Scheduled scheduled : window) {
+            if (scheduled.group == 2) continue;
+            try (InputStream stream = scheduled.record.openStoredStream()) {
+                if (stream == null) continue;
+                for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                    bytesRead += n;
+                }
+            } catch (IOException e) {
+                log.debug("Unable to read ahead {}", scheduled.record.getFilename(), e);
+            }
+        }
+        readNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * A summary of the read throughput, or null if nothing was read.
+     */
+    String statistics() {
+        if (readNanos == 0) return null;
+        return String.format(Locale.ROOT, "Read %.1f MB of payloads in storage order in %.1f seconds (%.1f MB/s)",
+                bytesRead / 1e6, readNanos / 1e9, bytesRead / 1e6 / (readNanos / 1e9));
+    }
+
+    /**
+     * Waits for any read in progress and stops the reader thread. Records not yet written are discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        reader.shutdown();
+        try {
+            while (!reader.isTerminated()) {
+                reader.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Scheduled implements Comparable<Scheduled> {
+        final HttrackRecord record;
+        final long size; // stored bytes, zero if unknown
+        private final int sequence;
+        private final int group;
+        private final long key;
+        private final String path;
+
+        Scheduled(HttrackRecord record, int sequence, FileIndex files) throws IOException {
+            this.record = record;
+            this.sequence = sequence;
+            long cacheOffset = record.getCacheOffset();
+            Path file = record.getPath();
+            if (cacheOffset >= 0) {
+                group = 0;
+                key = cacheOffset;
+                path = "";
+                size = Math.max(0, record.getStoredSize());
+            } else if (file != null && files.isRegularFile(file)) {
+                group = 1;
+                key = files.inode(file); // zero when unavailable, falling back to path order
+                path = file.toString();
+                size = files.size(file);
+            } else { // nothing to read so keep them in their original order
+                group = 2;
+                key = 0;
+                path = "";
+                size = 0;
+            }
+        }
+
+        @Override
+        public int compareTo(Scheduled other) {
+            if (group != other.group) return Integer.compare(group, other.group);
+            if (key != other.key) return Long.compare(key, other.key);
+            int c = path.compareTo(other.path);
+            return c != 0 ? c : Integer.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the expensive part of each task on a pool of worker threads and then completes the tasks one at a time on
+ * the calling thread in the order they were submitted. The number of tasks in flight is bounded so the workers
+ * can't get arbitrarily far ahead of whatever is consuming their output.
+ */
+class RecordPipeline implements Closeable {
+    private final ExecutorService executor;
+    private final Deque<Pending> inFlight = new ArrayDeque<>();
+    private final int maxInFlight;
+
+    RecordPipeline(int threads) {
+        this.maxInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "httrack2warc-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a task, first completing earlier tasks if too many are already in flight.
+     */
+    void submit(Task task) throws IOException {
+        while (inFlight.size() >= maxInFlight) {
+            completeNext();
+        }
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    task.prepare();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            task.close();
+            throw e;
+        }
+        inFlight.add(new Pending(task, future));
+    }
+
+    /**
+     * Completes all outstanding tasks.
+     */
+    void flush() throws IOException {
+        while (!inFlight.isEmpty()) {
+            completeNext();
+        }
+    }
+
+    private void completeNext() throws IOException {
+        Pending pending = inFlight.remove();
+        try (Task task = pending.task) {
+            try {
+                pending.future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+            task.complete();
+        }
+    }
+
+    /**
+     * Waits for any tasks that haven't been completed, discards them and stops the worker threads.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        while (!inFlight.isEmpty()) {
+            Pending pending = inFlight.remove();
+            try {
+                pending.future.get();
+            } catch (Exception e) {
+                // we're already abandoning this task
+            }
+            pending.task.close();
+        }
+    }
+
+    interface Task extends Closeable {
+        /**
+         * Called on a worker thread to do the bulk of the work.
+         */
+        void prepare() throws IOException;
+
+        /**
+         * Called on the submitting thread, in submission order, after prepare() has finished.
+         */
+        void complete() throws IOException;
+    }
+
+    private static class Pending {
+        final Task task;
+        final Future<?> future;
+
+        Pending(Task task, Future<?> future) {
+            this.task = task;
+            this.future = future;
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package au.gov.nla.httrack2warc;
 
-import au.gov.nla.httrack2warc.httrack.HtsUtil;
+import au.gov.nla.httrack2warc.httrack.CanonicalUrls;
 import au.gov.nla.httrack2warc.httrack.HttrackRecord;
 
 import java.io.ByteArrayInputStream;
@@ -14,17 +14,23 @@ import java.util.UUID;
  */
 public class RedirectWriter implements Closeable {
     private final String prefix;
-    final WarcWriter warc;
+    final WarcRecordWriter warc;
+    final CanonicalUrls canonicalUrls;
 
-    public RedirectWriter(String prefix, WarcWriter warc) {
+    public RedirectWriter(String prefix, WarcRecordWriter warc) {
+        this(prefix, warc, new CanonicalUrls());
+    }
+
+    public RedirectWriter(String prefix, WarcRecordWriter warc, CanonicalUrls canonicalUrls) {
         this.prefix = prefix;
         this.warc = warc;
+        this.canonicalUrls = canonicalUrls;
     }
 
     public void write(HttrackRecord record, Instant warcDate) throws IOException {
         // build synthetic redirect record
         if (prefix != null && record.getFilename() != null) {
-            String httrackUrl = HtsUtil.fixupUrl(prefix + record.getFilename());
+            String httrackUrl = canonicalUrls.fixup(prefix + record.getFilename());
             byte[] body = new byte[0];
             String header = "HTTP/1.1 301 Moved Permanently\r\n" +
                     "Location: " + record.getUrl() + "\r\n" +
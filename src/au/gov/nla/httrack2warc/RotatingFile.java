@@ -18,8 +18,8 @@ package au.gov.nla.httrack2warc;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -33,6 +33,9 @@ class RotatingFile implements Closeable {
     SeekableByteChannel channel;
     int seq = 0;
     Path currentFilePath;
+    Path closedFilePath;
+    long closedFileSize;
+    private long appendLength = 0;
 
     RotatingFile(String namePattern, long rotationSize) {
         this.namePattern = namePattern;
@@ -41,18 +44,48 @@ class RotatingFile implements Closeable {
 
     boolean rotateIfNecessary() throws IOException {
         if (channel != null && channel.position() > rotationSize) {
+            closedFileSize = channel.position();
             channel.close();
             channel = null;
+            closedFilePath = currentFilePath;
         }
         if (channel == null) {
             currentFilePath = Paths.get(String.format(namePattern, seq));
-            channel = Files.newByteChannel(currentFilePath, CREATE, WRITE, TRUNCATE_EXISTING);
+            if (appendLength > 0) {
+                FileChannel fileChannel = FileChannel.open(currentFilePath, WRITE);
+                fileChannel.truncate(appendLength);
+                fileChannel.position(appendLength);
+                channel = new BufferedChannel(fileChannel);
+                appendLength = 0;
+            } else {
+                channel = new BufferedChannel(FileChannel.open(currentFilePath, CREATE, WRITE, TRUNCATE_EXISTING));
+            }
             seq += 1;
             return true;
         }
         return false;
     }
 
+    /**
+     * Continues from a checkpoint of an earlier run. The next file opened will be number seq. If appendLength is
+     * positive that file is kept up to that length and appended to rather than started again.
+     */
+    void resume(int seq, long appendLength) {
+        this.seq = seq;
+        this.appendLength = appendLength;
+    }
+
+    /**
+     * Writes out any buffered data and returns the length of the current file.
+     */
+    long flush() throws IOException {
+        if (channel == null) return 0;
+        if (channel instanceof BufferedChannel) {
+            ((BufferedChannel) channel).flush();
+        }
+        return channel.position();
+    }
+
     public void close() throws IOException {
         if (channel != null) {
             channel.close();
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A write-once buffer that holds data in memory up to a limit and spills it to a temporary file beyond that.
+ * This lets us hold records that have been prepared ahead of time without the memory use depending on the size
+ * of the largest payload in the crawl.
+ */
+class SpillBuffer implements WritableByteChannel {
+    private final int memoryLimit;
+    private byte[] memory = new byte[256];
+    private int memoryUsed = 0;
+    private Path file;
+    private FileChannel fileChannel;
+    private long size = 0;
+    private boolean open = true;
+
+    SpillBuffer(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        int n = src.remaining();
+        if (fileChannel == null && memoryUsed + (long) n <= memoryLimit) {
+            if (memoryUsed + n > memory.length) {
+                memory = Arrays.copyOf(memory, Math.min(memoryLimit, Math.max(memoryUsed + n, memory.length * 2)));
+            }
+            src.get(memory, memoryUsed, n);
+            memoryUsed += n;
+        } else {
+            if (fileChannel == null) {
+                spill();
+            }
+            while (src.hasRemaining()) {
+                fileChannel.write(src);
+            }
+        }
+        size += n;
+        return n;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("httrack2warc", ".spill");
+        fileChannel = FileChannel.open(file, READ, WRITE);
+        ByteBuffer buffer = ByteBuffer.wrap(memory, 0, memoryUsed);
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        memory = null;
+        memoryUsed = 0;
+    }
+
+    /**
+     * Number of bytes written to the buffer.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Opens a stream for reading back the contents of the buffer. The buffer must not be written to or closed while
+     * the stream is in use.
+     */
+    InputStream openStream() throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (fileChannel == null) {
+            return new ByteArrayInputStream(memory, 0, memoryUsed);
+        } else {
+            return Channels.newInputStream(FileChannel.open(file, READ));
+        }
+    }
+
+    /**
+     * Returns a StreamWriter that copies the contents of the buffer.
+     */
+    StreamWriter contents() {
+        return new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (InputStream stream = openStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel channel) throws IOException {
+                transferTo(channel);
+            }
+        };
+    }
+
+    /**
+     * Copies the entire contents of the buffer to the given channel.
+     */
+    void transferTo(WritableByteChannel target) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (fileChannel == null) {
+            ByteBuffer buffer = ByteBuffer.wrap(memory, 0, memoryUsed);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        } else {
+            BufferedChannel.transfer(fileChannel, 0, size, target);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) return;
+        open = false;
+        memory = null;
+        if (fileChannel != null) {
+            fileChannel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -16,9 +16,79 @@
 
 package au.gov.nla.httrack2warc;
 
+import au.gov.nla.httrack2warc.httrack.FileRegion;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 interface StreamWriter {
     void writeTo(OutputStream gzos) throws IOException;
+
+    /**
+     * Writes directly to a channel when the output is uncompressed. Implementations can override this to avoid
+     * copying through a heap buffer, for example by using FileChannel.transferTo().
+     */
+    default void writeTo(WritableByteChannel channel) throws IOException {
+        writeTo(Channels.newOutputStream(channel));
+    }
+
+    default StreamWriter andThen(StreamWriter next) {
+        StreamWriter first = this;
+        return new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                first.writeTo(out);
+                next.writeTo(out);
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel channel) throws IOException {
+                first.writeTo(channel);
+                next.writeTo(channel);
+            }
+        };
+    }
+
+    static StreamWriter of(byte[] data) {
+        return new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel channel) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+
+    static StreamWriter of(FileRegion region) {
+        return new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (InputStream stream = region.openStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+
+            @Override
+            public void writeTo(WritableByteChannel channel) throws IOException {
+                try (FileChannel source = FileChannel.open(region.getFile())) {
+                    BufferedChannel.transfer(source, region.getOffset(), region.getLength(), channel);
+                }
+            }
+        };
+    }
 }
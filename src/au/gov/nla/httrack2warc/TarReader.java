@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the members of a tar archive sequentially from a stream. Supports the ustar, GNU long name and pax
+ * extended header formats, which covers what GNU tar and bsdtar produce.
+ */
+class TarReader implements Closeable {
+    private static final int BLOCK_SIZE = 512;
+
+    private final InputStream stream;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private long remaining = 0; // unread bytes of the current member's data
+    private long padding = 0;   // bytes after the data to the end of the block
+    private boolean finished = false;
+
+    TarReader(InputStream stream) {
+        this.stream = stream;
+    }
+
+    static class Entry {
+        final String name;
+        final long size;
+        final char type;
+
+        Entry(String name, long size, char type) {
+            this.name = name;
+            this.size = size;
+            this.type = type;
+        }
+
+        boolean isRegularFile() {
+            return isDataType(type);
+        }
+
+        boolean isDirectory() {
+            return type == '5';
+        }
+    }
+
+    /**
+     * Advances to the next member, skipping any unread data of the current one. Returns null at the end of the
+     * archive.
+     */
+    Entry next() throws IOException {
+        String longName = null;
+        String paxPath = null;
+        long paxSize = -1;
+        while (true) {
+            skipFully(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            if (finished || !readHeader()) {
+                finished = true;
+                return null;
+            }
+
+            char type = (char) header[156];
+            long size = parseNumber(124, 12);
+            if (size < 0) throw new IOException("invalid tar member size");
+
+            if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+                byte[] data = readData(size);
+                if (type == 'L') {
+                    longName = cString(data, 0, data.length);
+                } else if (type == 'x') {
+                    for (String[] record : parsePax(data)) {
+                        if (record[0].equals("path")) paxPath = record[1];
+                        if (record[0].equals("size")) paxSize = Long.parseLong(record[1]);
+                    }
+                }
+                continue;
+            }
+
+            String name;
+            if (paxPath != null) {
+                name = paxPath;
+            } else if (longName != null) {
+                name = longName;
+            } else {
+                name = cString(header, 0, 100);
+                if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+                        && header[261] == 'r' && header[345] != 0) {
+                    name = cString(header, 345, 155) + "/" + name;
+                }
+            }
+            if (paxSize >= 0) size = paxSize;
+
+            // links and devices have no data even if a size is given
+            boolean hasData = isDataType(type);
+            remaining = hasData ? size : 0;
+            padding = hasData ? (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE : 0;
+            return new Entry(name, size, type);
+        }
+    }
+
+    private static boolean isDataType(char type) {
+        return type == '0' || type == '\0' || type == '7';
+    }
+
+    /**
+     * Returns a stream of the current member's data. Closing it has no effect, the rest of the data is skipped by
+     * the next call to next().
+     */
+    InputStream openStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) return -1;
+                int b = stream.read();
+                if (b < 0) throw new EOFException("truncated tar member");
+                remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (remaining <= 0) return -1;
+                int n = stream.read(b, off, (int) Math.min(len, remaining));
+                if (n < 0) throw new EOFException("truncated tar member");
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = stream.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Reads the next header block. Returns false at the end of archive marker (a zero block) or the end of the
+     * stream.
+     */
+    private boolean readHeader() throws IOException {
+        int n = 0;
+        while (n < BLOCK_SIZE) {
+            int count = stream.read(header, n, BLOCK_SIZE - n);
+            if (count < 0) {
+                if (n == 0) return false;
+                throw new EOFException("truncated tar header");
+            }
+            n += count;
+        }
+        boolean zero = true;
+        for (byte b : header) {
+            if (b != 0) {
+                zero = false;
+                break;
+            }
+        }
+        if (zero) return false;
+
+        long checksum = parseNumber(148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+        }
+        if (sum != checksum) throw new IOException("invalid tar header checksum");
+        return true;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > Integer.MAX_VALUE - BLOCK_SIZE) throw new IOException("tar extended header too large");
+        byte[] data = new byte[(int) size];
+        int n = 0;
+        while (n < data.length) {
+            int count = stream.read(data, n, data.length - n);
+            if (count < 0) throw new EOFException("truncated tar member");
+            n += count;
+        }
+        padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+        return data;
+    }
+
+    private void skipFully(long n) throws IOException {
+        byte[] buffer = null;
+        while (n > 0) {
+            long skipped = stream.skip(n);
+            if (skipped <= 0) {
+                // some streams (like GZIPInputStream at the end) return 0 rather than reading, so fall back to read
+                if (buffer == null) buffer = new byte[8192];
+                int count = stream.read(buffer, 0, (int) Math.min(n, buffer.length));
+                if (count < 0) throw new EOFException("truncated tar archive");
+                skipped = count;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Parses an octal number, or a GNU base-256 number if the high bit of the first byte is set.
+     */
+    private long parseNumber(int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value == 0 && b == ' ') continue; // leading spaces
+                break;
+            }
+            if (b < '0' || b > '7') return -1;
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    private static String cString(byte[] bytes, int offset, int maxLength) {
+        int end = offset;
+        while (end < offset + maxLength && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, UTF_8);
+    }
+
+    /**
+     * Parses pax extended header records of the form "length key=value\n".
+     */
+    private static List<String[]> parsePax(byte[] data) throws IOException {
+        List<String[]> records = new ArrayList<>();
+        int i = 0;
+        while (i < data.length) {
+            int space = i;
+            while (space < data.length && data[space] != ' ') space++;
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, i, space - i, UTF_8));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid pax header");
+            }
+            if (length <= 0 || i + length > data.length) throw new IOException("invalid pax header");
+            if (space + 1 > i + length - 1) throw new IOException("invalid pax header");
+            String text = new String(data, space + 1, i + length - space - 2, UTF_8); // without the newline
+            int equals = text.indexOf('=');
+            if (equals > 0) {
+                records.add(new String[]{text.substring(0, equals), text.substring(equals + 1)});
+            }
+            i += length;
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds a group of compressed WARC records in a spill buffer so they can be prepared on a worker thread and
+ * later appended to a real WarcWriter. Index entries are deferred until the records are appended and their final
+ * position is known.
+ */
+class WarcBuffer extends WarcRecordWriter {
+    private static final int MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private final SpillBuffer data = new SpillBuffer(MEMORY_LIMIT);
+    final List<BufferedRecord> records = new ArrayList<>();
+
+    WarcBuffer(MemberCompressor compressor) {
+        super(compressor);
+    }
+
+    @Override
+    void writeRecord(HeaderEncoder header, StreamWriter body, IndexEntry index) throws IOException {
+        long startOfRecord = data.size();
+        writeMember(data, header, body, index);
+        records.add(new BufferedRecord(index, startOfRecord, data.size()));
+    }
+
+    void transferTo(WritableByteChannel channel) throws IOException {
+        data.transferTo(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * A record held in the buffer. The start and end positions are relative to the start of the buffer.
+     */
+    static class BufferedRecord {
+        final IndexEntry index;
+        final long start;
+        final long end;
+
+        BufferedRecord(IndexEntry index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
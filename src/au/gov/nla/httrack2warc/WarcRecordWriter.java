@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes WARC records and compresses them into members. Subclasses decide where each record goes: WarcWriter
+ * appends them to rotating files and WarcBuffer holds them until they can be appended in order.
+ */
+abstract class WarcRecordWriter implements Closeable {
+    static final StreamWriter RECORD_TRAILER = StreamWriter.of("\r\n\r\n".getBytes(UTF_8));
+    private static final StreamWriter EMPTY_BODY = StreamWriter.of(new byte[0]);
+    final MemberCompressor compressor;
+    private final HeaderEncoder header = new HeaderEncoder();
+
+    WarcRecordWriter(MemberCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Writes a record made of an encoded header, a body and the record trailer, indexing it if an index entry is
+     * given.
+     */
+    abstract void writeRecord(HeaderEncoder header, StreamWriter body, IndexEntry index) throws IOException;
+
+    void writeWarcinfoRecord(UUID uuid, Instant date, String warcInfo) throws IOException {
+        byte[] body = warcInfo.getBytes(UTF_8);
+        header.reset()
+                .ascii("WARC/1.0\r\n")
+                .ascii("WARC-Type: warcinfo\r\n")
+                .ascii("WARC-Date: ").isoInstant(date).ascii("\r\n")
+                .ascii("WARC-Record-ID: <urn:uuid:").uuid(UUID.randomUUID()).ascii(">\r\n")
+                .ascii("Content-Type: application/warc-fields\r\n")
+                .ascii("Content-Length:").decimal(body.length).ascii("\r\n")
+                .ascii("\r\n");
+        writeRecord(header, out -> out.write(body), null);
+    }
+
+    void writeRequestRecord(String url, UUID responseUuid, Instant date, String requestHeader) throws IOException {
+        header.reset()
+                .ascii("WARC/1.0\r\n")
+                .ascii("WARC-Type: request\r\n")
+                .ascii("WARC-Target-URI: ").utf8(url).ascii("\r\n")
+                .ascii("WARC-Date: ").isoInstant(date).ascii("\r\n")
+                .ascii("WARC-Concurrent-To: <urn:uuid:").uuid(responseUuid).ascii(">\r\n")
+                .ascii("WARC-Record-ID: <urn:uuid:").uuid(UUID.randomUUID()).ascii(">\r\n")
+                .ascii("Content-Type: application/http;msgtype=request\r\n")
+                .ascii("Content-Length: ").decimal(HeaderEncoder.latin1Length(requestHeader)).ascii("\r\n")
+                .ascii("\r\n")
+                .latin1(requestHeader);
+        writeRecord(header, EMPTY_BODY, null);
+    }
+
+    public void writeMetadataRecord(String url, UUID responseUuid, Instant date, String metadata) throws IOException {
+        header.reset()
+                .ascii("WARC/1.0\r\n")
+                .ascii("WARC-Type: metadata\r\n")
+                .ascii("WARC-Target-URI: ").utf8(url).ascii("\r\n")
+                .ascii("WARC-Date: ").isoInstant(date).ascii("\r\n")
+                .ascii("WARC-Concurrent-To: <urn:uuid:").uuid(responseUuid).ascii(">\r\n")
+                .ascii("WARC-Record-ID: <urn:uuid:").uuid(UUID.randomUUID()).ascii(">\r\n")
+                .ascii("Content-Type: application/warc-fields\r\n")
+                .ascii("Content-Length: ").decimal(HeaderEncoder.latin1Length(metadata)).ascii("\r\n")
+                .ascii("\r\n")
+                .latin1(metadata);
+        writeRecord(header, EMPTY_BODY, null);
+    }
+
+    void writeResponseRecord(String url, String contentType, String digest, UUID uuid, Instant date,
+                             long contentLength, String responseHeader, InputStream body, String truncated)
+            throws IOException {
+        writeResponseRecord(url, contentType, digest, uuid, date, contentLength, responseHeader,
+                out -> copyStream(body, out), truncated);
+    }
+
+    void writeResponseRecord(String url, String contentType, String digest, UUID uuid, Instant date,
+                             long contentLength, String responseHeader, StreamWriter body, String truncated)
+            throws IOException {
+        long blockLength = contentLength + HeaderEncoder.latin1Length(responseHeader);
+        header.reset()
+                .ascii("WARC/1.0\r\n")
+                .ascii("WARC-Type: response\r\n")
+                .ascii("WARC-Target-URI: ").utf8(url).ascii("\r\n")
+                .ascii("WARC-Date: ").date(date).ascii("\r\n");
+        if (digest != null) {
+            header.ascii("WARC-Payload-Digest: sha1:").ascii(digest).ascii("\r\n");
+        }
+        header.ascii("WARC-Record-ID: <urn:uuid:").uuid(uuid).ascii(">\r\n");
+        if (truncated != null) {
+            header.ascii("WARC-Truncated: ").utf8(truncated).ascii("\r\n");
+        }
+        header.ascii("Content-Type: application/http; msgtype=response\r\n")
+                .ascii("Content-Length: ").decimal(blockLength).ascii("\r\n")
+                .ascii("\r\n")
+                .latin1(responseHeader);
+        writeRecord(header, body, new IndexEntry(url, contentType, responseHeader, digest, date));
+    }
+
+    /**
+     * Parses the status code from the status line of a HTTP response header, or returns 0 if it doesn't have a
+     * well-formed one.
+     */
+    static int parseStatus(String responseHeader) {
+        int i = responseHeader.indexOf(' ') + 1;
+        int status = 0;
+        int digits = 0;
+        for (; i < responseHeader.length() && digits < 4; i++, digits++) {
+            char c = responseHeader.charAt(i);
+            if (c < '0' || c > '9') break;
+            status = status * 10 + (c - '0');
+        }
+        if (digits == 0 || digits > 3 || (i < responseHeader.length() && " \r\n".indexOf(responseHeader.charAt(i)) < 0)) {
+            return 0;
+        }
+        return status;
+    }
+
+    void writeResourceRecord(String url, String contentType, String digest, UUID uuid, Instant date,
+                             long contentLength, InputStream body) throws IOException {
+        writeResourceRecord(url, contentType, digest, uuid, date, contentLength, out -> copyStream(body, out));
+    }
+
+    void writeResourceRecord(String url, String contentType, String digest, UUID uuid, Instant date,
+                             long contentLength, StreamWriter body) throws IOException {
+        header.reset()
+                .ascii("WARC/1.0\r\n")
+                .ascii("WARC-Type: resource\r\n")
+                .ascii("WARC-Target-URI: ").utf8(url).ascii("\r\n")
+                .ascii("WARC-Record-ID: <urn:uuid:").uuid(uuid).ascii(">\r\n")
+                .ascii("WARC-Date: ").date(date).ascii("\r\n")
+                .ascii("WARC-Block-Digest: sha1:").utf8(String.valueOf(digest)).ascii("\r\n")
+                .ascii("Content-Type: ").utf8(String.valueOf(contentType)).ascii("\r\n")
+                .ascii("Content-Length: ").decimal(contentLength).ascii("\r\n")
+                .ascii("\r\n");
+        writeRecord(header, body, new IndexEntry(url, contentType, null, digest, date));
+    }
+
+    void writeMember(WritableByteChannel channel, HeaderEncoder header, StreamWriter body, IndexEntry index)
+            throws IOException {
+        if (body instanceof DeflatedBody) {
+            compressor.writeMember(channel, header, (DeflatedBody) body, RECORD_TRAILER, contentType(index));
+        } else {
+            compressor.writeMember(channel, memberWriter(header, body), contentType(index));
+        }
+    }
+
+    /**
+     * The content type of the payload of a record, if it has one worth considering when compressing it.
+     */
+    static String contentType(IndexEntry index) {
+        return index == null ? null : index.contentType;
+    }
+
+    static StreamWriter memberWriter(HeaderEncoder header, StreamWriter body) {
+        return header.andThen(body).andThen(RECORD_TRAILER);
+    }
+
+    static class IndexEntry {
+        final String url;
+        final String contentType;
+        private final String responseHeader;
+        final String digest;
+        final Instant date;
+
+        IndexEntry(String url, String contentType, String responseHeader, String digest, Instant date) {
+            this.url = url;
+            this.contentType = contentType;
+            this.responseHeader = responseHeader;
+            this.digest = digest;
+            this.date = date;
+        }
+
+        /**
+         * The status code to index the record under. It is only parsed when an index is actually being written, and
+         * resource records, which have no HTTP header, are indexed as 200.
+         */
+        int status() {
+            return responseHeader == null ? 200 : parseStatus(responseHeader);
+        }
+    }
+
+    static void copyStream(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (;;) {
+            int n = is.read(buffer);
+            if (n < 0) break;
+            os.write(buffer, 0, n);
+        }
+    }
+}
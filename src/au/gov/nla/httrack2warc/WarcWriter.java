@@ -16,150 +16,325 @@
 
 package au.gov.nla.httrack2warc;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
-import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static java.nio.charset.StandardCharsets.ISO_8859_1;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
 
 /**
  * Writes WARC files and the corresponding CDX files.
  */
-class WarcWriter implements Closeable {
-    private static final DateTimeFormatter WARC_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US).withZone(UTC);
+class WarcWriter extends WarcRecordWriter {
+    static final DateTimeFormatter WARC_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US).withZone(UTC);
 
-    private static final long warcRotationSize = 1048576000;
+    static final long warcRotationSize = 1048576000;
     private final RotatingFile warcRotor;
     private final CdxWriter cdxWriter;
-    private final Compression compression;
+    private boolean ownsCompressor = false;
+    private static final int PENDING_MEMORY_LIMIT = 4 * 1024 * 1024;
+    private final Deque<PendingMember> pendingMembers = new ArrayDeque<>();
+    private long pendingSizeBound = 0;
+    private int maxPendingMembers;
+    private ExecutorService compressionExecutor;
 
     WarcWriter(String warcFilePattern, Compression compression, CdxWriter cdxWriter) throws IOException {
-        this.warcRotor = new RotatingFile(warcFilePattern, warcRotationSize);
-        this.compression = compression;
+        this(warcFilePattern, compression.newCompressor(), cdxWriter);
+        this.ownsCompressor = true;
+    }
+
+    /**
+     * Creates a writer using a compressor that may be shared with other writers. The caller is responsible for
+     * closing the compressor.
+     */
+    WarcWriter(String warcFilePattern, MemberCompressor compressor, CdxWriter cdxWriter) throws IOException {
+        this(warcFilePattern, compressor, cdxWriter, warcRotationSize);
+    }
+
+    /**
+     * @param rotationSize a new file is started once the current one has grown past this many bytes
+     */
+    WarcWriter(String warcFilePattern, MemberCompressor compressor, CdxWriter cdxWriter, long rotationSize)
+            throws IOException {
+        super(compressor);
+        this.warcRotor = new RotatingFile(warcFilePattern, rotationSize);
         this.cdxWriter = cdxWriter;
     }
 
+    /**
+     * Compress members on a pool of threads. The compressed members are still appended to the file in the order
+     * they were written.
+     */
+    void setCompressionThreads(int threads) {
+        if (threads <= 1 || compressor == MemberCompressor.UNCOMPRESSED) return;
+        maxPendingMembers = threads * 4;
+        compressionExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "httrack2warc-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     public void finish() throws IOException {
+        flush();
         if (cdxWriter != null) cdxWriter.finish();
     }
 
     boolean rotateIfNecessary() throws IOException {
-        return warcRotor.rotateIfNecessary();
-    }
-
-    void writeWarcinfoRecord(UUID uuid, Instant date, String warcInfo) throws IOException {
-        byte[] body = warcInfo.getBytes(UTF_8);
-        String header = "WARC/1.0\r\n" +
-                "WARC-Type: warcinfo\r\n" +
-                "WARC-Date: " + date + "\r\n" +
-                "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
-                "Content-Type: application/warc-fields\r\n" +
-                "Content-Length:" + body.length + "\r\n" +
-                "\r\n";
-        writeRecord(header, out -> out.write(body));
-    }
-
-    void writeRequestRecord(String url, UUID responseUuid, Instant date, String requestHeader) throws IOException {
-        byte[] body = requestHeader.getBytes(ISO_8859_1);
-        String header = "WARC/1.0\r\n" +
-                "WARC-Type: request\r\n" +
-                "WARC-Target-URI: " + url + "\r\n" +
-                "WARC-Date: " + date + "\r\n" +
-                "WARC-Concurrent-To: <urn:uuid:" + responseUuid + ">\r\n" +
-                "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
-                "Content-Type: application/http;msgtype=request\r\n" +
-                "Content-Length: " + body.length + "\r\n" +
-                "\r\n";
-        writeRecord(header, gzos -> gzos.write(body));
-    }
-
-    public void writeMetadataRecord(String url, UUID responseUuid, Instant date, String metadata) throws IOException {
-        byte[] body = metadata.getBytes(ISO_8859_1);
-        String header = "WARC/1.0\r\n" +
-                "WARC-Type: metadata\r\n" +
-                "WARC-Target-URI: " + url + "\r\n" +
-                "WARC-Date: " + date + "\r\n" +
-                "WARC-Concurrent-To: <urn:uuid:" + responseUuid + ">\r\n" +
-                "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
-                "Content-Type: application/warc-fields\r\n" +
-                "Content-Length: " + body.length + "\r\n" +
-                "\r\n";
-        writeRecord(header, gzos -> gzos.write(body));
-    }
-
-    void writeResponseRecord(String url, String contentType, String digest, UUID uuid, Instant date,
-                             long contentLength, String responseHeader, InputStream body, String truncated)
-            throws IOException {
-        byte[] responseHeaderBytes = responseHeader.getBytes(ISO_8859_1);
-        long blockLength = contentLength + responseHeaderBytes.length;
-        String header = "WARC/1.0\r\n" +
-                "WARC-Type: response\r\n" +
-                "WARC-Target-URI: " + url + "\r\n" +
-                "WARC-Date: " + WARC_DATE.format(date) + "\r\n" +
-                (digest != null ? "WARC-Payload-Digest: sha1:" + digest + "\r\n" : "") +
-                "WARC-Record-ID: <urn:uuid:" + uuid + ">\r\n" +
-                (truncated != null ? "WARC-Truncated: " + truncated + "\r\n" : "") +
-                "Content-Type: application/http; msgtype=response\r\n" +
-                "Content-Length: " + blockLength + "\r\n" +
-                "\r\n";
-        RecordPosition recordPosition = writeRecord(header, gzos -> {
-            gzos.write(responseHeaderBytes);
-            copyStream(body, gzos);
-        });
-        if (cdxWriter != null) {
-            Path filename = recordPosition.file.getFileName();
-            int status = Integer.parseInt(responseHeader.split(" ", 3)[1]);
-            cdxWriter.writeLine(url, contentType, status, digest, date, recordPosition, filename);
-        }
-    }
-
-    void writeResourceRecord(String url, String contentType, String digest, UUID uuid, Instant date,
-                             long contentLength, InputStream body) throws IOException {
-        String header = "WARC/1.0\r\n" +
-                "WARC-Type: resource\r\n" +
-                "WARC-Target-URI: " + url + "\r\n" +
-                "WARC-Record-ID: <urn:uuid:" + uuid + ">\r\n" +
-                "WARC-Date: " + WARC_DATE.format(date) + "\r\n" +
-                "WARC-Block-Digest: sha1:" + digest + "\r\n" +
-                "Content-Type: " + contentType + "\r\n" +
-                "Content-Length: " + contentLength + "\r\n" +
-                "\r\n";
-        RecordPosition recordPosition = writeRecord(header, gzos -> copyStream(body, gzos));
-        if (cdxWriter != null) {
-            Path filename = recordPosition.file.getFileName();
-            cdxWriter.writeLine(url, contentType, 200, digest, date, recordPosition, filename);
+        if (!pendingMembers.isEmpty()) {
+            // we only need to wait for the pending members if they could possibly push us over the rotation size
+            if (warcRotor.channel != null && warcRotor.channel.position() + pendingSizeBound <= warcRotor.rotationSize) {
+                return false;
+            }
+            flush();
+        }
+        return rotateFile();
+    }
+
+    /**
+     * Starts the next file if there's no current one or it has grown past the rotation size. Every file is opened
+     * through here so that each begins with the compressor's file header, except a file reopened after resuming
+     * which already has one.
+     */
+    private boolean rotateFile() throws IOException {
+        if (!warcRotor.rotateIfNecessary()) return false;
+        if (warcRotor.channel.position() == 0) {
+            compressor.writeFileHeader(warcRotor.channel);
         }
+        return true;
     }
 
-    RecordPosition writeRecord(String header, StreamWriter body) throws IOException {
+    /**
+     * The channel of the current file, opening the first one if nothing has been written yet.
+     */
+    private SeekableByteChannel channel() throws IOException {
         if (warcRotor.channel == null) {
-            warcRotor.rotateIfNecessary();
+            rotateFile();
         }
-        long startOfRecord = warcRotor.channel.position();
+        return warcRotor.channel;
+    }
 
-        compression.writeMember(warcRotor.channel, stream -> {
-            stream.write(header.getBytes(UTF_8));
-            body.writeTo(stream);
-            stream.write("\r\n\r\n".getBytes(UTF_8));
-        });
+    /**
+     * Continues from a journal checkpoint. See {@link RotatingFile#resume(int, long)}.
+     */
+    void resume(int seq, long appendLength) {
+        warcRotor.resume(seq, appendLength);
+    }
+
+    /**
+     * Appends any records still being compressed, writes out buffered data and returns the length of the current
+     * file.
+     */
+    long flushToFile() throws IOException {
+        flush();
+        return warcRotor.flush();
+    }
+
+    /**
+     * The number of the file currently being written to.
+     */
+    int currentSeq() {
+        return warcRotor.seq - 1;
+    }
+
+    /**
+     * The most recently finished file and its length, or null if none have been finished yet.
+     */
+    Path closedFile() {
+        return warcRotor.closedFilePath;
+    }
+
+    long closedFileSize() {
+        return warcRotor.closedFileSize;
+    }
+
+    void indexRecord(IndexEntry entry, RecordPosition recordPosition) throws IOException {
+        if (cdxWriter != null && entry != null) {
+            Path filename = recordPosition.file.getFileName();
+            cdxWriter.writeLine(entry.url, entry.contentType, entry.status(), entry.digest, entry.date, recordPosition,
+                    filename);
+        }
+    }
 
-        long endOfRecord = warcRotor.channel.position();
-        return new RecordPosition(warcRotor.currentFilePath, startOfRecord, endOfRecord);
+    /**
+     * Appends the records held by a buffer to the current WARC file and indexes them at their final position.
+     */
+    void append(WarcBuffer buffer) throws IOException {
+        flush();
+        SeekableByteChannel channel = channel();
+        long offset = channel.position();
+        buffer.transferTo(channel);
+        for (WarcBuffer.BufferedRecord record : buffer.records) {
+            RecordPosition position = new RecordPosition(warcRotor.currentFilePath, offset + record.start,
+                    offset + record.end);
+            indexRecord(record.index, position);
+        }
+    }
+
+    /**
+     * Writes a record and then indexes it if an index entry is given.
+     */
+    @Override
+    void writeRecord(HeaderEncoder header, StreamWriter body, IndexEntry index) throws IOException {
+        if (compressionExecutor != null) {
+            writeRecordInBackground(header, body, index);
+            return;
+        }
+        SeekableByteChannel channel = channel();
+        long startOfRecord = channel.position();
+        writeMember(channel, header, body, index);
+        long endOfRecord = channel.position();
+        indexRecord(index, new RecordPosition(warcRotor.currentFilePath, startOfRecord, endOfRecord));
+    }
+
+    /**
+     * Copies the uncompressed record into a spill buffer and hands it to the compression pool. The compressed
+     * member is appended later by appendPendingMember() so that the output order is unchanged.
+     */
+    private void writeRecordInBackground(HeaderEncoder header, StreamWriter body, IndexEntry index)
+            throws IOException {
+        if (body instanceof DeflatedBody) {
+            // only the header needs copying as the encoder is reused, the body is spliced in by the compressor
+            byte[] prefix = header.toByteArray();
+            DeflatedBody deflated = (DeflatedBody) body;
+            submitMember(compressed -> compressor.writeMember(compressed, StreamWriter.of(prefix), deflated,
+                    RECORD_TRAILER, contentType(index)), null,
+                    compressor.maxMemberSize(prefix.length + 4) + deflated.maxDeflatedLength(), index);
+            return;
+        }
+
+        SpillBuffer raw = new SpillBuffer(PENDING_MEMORY_LIMIT);
+        try {
+            MemberCompressor.UNCOMPRESSED.writeMember(raw, memberWriter(header, body));
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+        submitMember(compressed -> {
+            try (SpillBuffer input = raw) {
+                compressor.writeMember(compressed, out -> {
+                    try (InputStream stream = input.openStream()) {
+                        copyStream(stream, out);
+                    }
+                }, contentType(index));
+            }
+        }, raw, compressor.maxMemberSize(raw.size()), index);
+    }
+
+    /**
+     * Queues a member to be compressed into a spill buffer by the compression pool.
+     *
+     * @param input closed if the member can't be queued, or null if there's nothing to close
+     */
+    private void submitMember(MemberTask task, SpillBuffer input, long sizeBound, IndexEntry index)
+            throws IOException {
+        while (pendingMembers.size() >= maxPendingMembers) {
+            appendPendingMember();
+        }
+
+        Future<SpillBuffer> future;
+        try {
+            future = compressionExecutor.submit(() -> {
+                SpillBuffer compressed = new SpillBuffer(PENDING_MEMORY_LIMIT);
+                try {
+                    task.writeTo(compressed);
+                } catch (Exception e) {
+                    compressed.close();
+                    throw e;
+                }
+                return compressed;
+            });
+        } catch (RuntimeException e) {
+            if (input != null) input.close();
+            throw e;
+        }
+        pendingMembers.add(new PendingMember(future, sizeBound, index));
+        pendingSizeBound += sizeBound;
+    }
+
+    private interface MemberTask {
+        void writeTo(SpillBuffer compressed) throws IOException;
+    }
+
+    private void appendPendingMember() throws IOException {
+        PendingMember pending = pendingMembers.remove();
+        pendingSizeBound -= pending.sizeBound;
+        try (SpillBuffer compressed = pending.get()) {
+            SeekableByteChannel channel = channel();
+            long startOfRecord = channel.position();
+            compressed.transferTo(channel);
+            long endOfRecord = channel.position();
+            indexRecord(pending.index, new RecordPosition(warcRotor.currentFilePath, startOfRecord, endOfRecord));
+        }
+    }
+
+    /**
+     * Waits for any records still being compressed and appends them to the file.
+     */
+    void flush() throws IOException {
+        while (!pendingMembers.isEmpty()) {
+            appendPendingMember();
+        }
     }
 
     @Override
     public void close() throws IOException {
-        warcRotor.close();
-        if (cdxWriter != null) {
-            cdxWriter.close();
+        try {
+            flush();
+        } finally {
+            if (compressionExecutor != null) {
+                compressionExecutor.shutdown();
+                while (!pendingMembers.isEmpty()) {
+                    try {
+                        pendingMembers.remove().get().close();
+                    } catch (IOException | RuntimeException e) {
+                        // already failing, discard the rest
+                    }
+                }
+            }
+            warcRotor.close();
+            if (ownsCompressor) {
+                compressor.close();
+            }
+            if (cdxWriter != null) {
+                cdxWriter.close();
+            }
+        }
+    }
+
+    private static class PendingMember {
+        final Future<SpillBuffer> future;
+        final long sizeBound;
+        final IndexEntry index;
+
+        PendingMember(Future<SpillBuffer> future, long sizeBound, IndexEntry index) {
+            this.future = future;
+            this.sizeBound = sizeBound;
+            this.index = index;
+        }
+
+        SpillBuffer get() throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
         }
     }
 
@@ -178,14 +353,4 @@ class WarcWriter implements Closeable {
             return end - start;
         }
     }
-
-    private static void copyStream(InputStream is, OutputStream os) throws IOException {
-        byte[] buffer = new byte[8192];
-        for (;;) {
-            int n = is.read(buffer);
-            if (n < 0) break;
-            os.write(buffer, 0, n);
-        }
-    }
-
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a sorted CDXJ file as a ZipNum cluster of one shard. The lines are compressed in blocks, each a separate
+ * gzip member, and the summary index lists the first key of each block with its offset and length so a lookup
+ * only needs to binary search the summary and then decompress a single block. The location file maps the shard
+ * name to the blocks file, which is given relative to it.
+ */
+class ZipNumWriter {
+    static final int DEFAULT_BLOCK_LINES = 3000;
+
+    static void write(Path sortedCdxj, Path blocksPath, Path summaryPath, Path locationPath, int blockLines) throws IOException {
+        String shard = blocksPath.getFileName().toString();
+        try (BufferedReader reader = Files.newBufferedReader(sortedCdxj, UTF_8);
+             OutputStream blocks = Files.newOutputStream(blocksPath);
+             BufferedWriter summary = Files.newBufferedWriter(summaryPath, UTF_8)) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            long offset = 0;
+            int blockNumber = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                String firstKey = key(line);
+                block.reset();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(block, 8192)) {
+                    for (int i = 0; i < blockLines && line != null; i++) {
+                        gzip.write(line.getBytes(UTF_8));
+                        gzip.write('\n');
+                        line = reader.readLine();
+                    }
+                }
+                block.writeTo(blocks);
+                blockNumber++;
+                summary.write(firstKey + "\t" + shard + "\t" + offset + "\t" + block.size() + "\t" + blockNumber + "\n");
+                offset += block.size();
+            }
+        }
+        Files.write(locationPath, (shard + "\t" + shard + "\n").getBytes(UTF_8));
+    }
+
+    /**
+     * The SURT and timestamp at the start of a CDXJ line.
+     */
+    private static String key(String line) {
+        int space = line.indexOf(' ');
+        if (space < 0) return line;
+        int json = line.indexOf(' ', space + 1);
+        return json < 0 ? line : line.substring(0, json);
+    }
+}
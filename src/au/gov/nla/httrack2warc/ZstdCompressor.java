@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
+import com.github.luben.zstd.EndDirective;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * Writes each record as a separate zstd frame following the WARC-zstd convention. When a dictionary is given it's
+ * stored in a skippable frame at the start of every file so that each file can be decoded on its own.
+ * Compression contexts are pooled the same way as {@link GzipCompressor} pools deflaters.
+ */
+class ZstdCompressor implements MemberCompressor {
+    private static final Logger log = LoggerFactory.getLogger(ZstdCompressor.class);
+
+    static final int DICTIONARY_FRAME_MAGIC = 0x184D2A5D;
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 112 * 1024;
+    private static final int MAX_SAMPLE_FILES = 4000;
+    private static final int MAX_SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLE_BUDGET = 16 * 1024 * 1024;
+    private static final int MIN_SAMPLES = 8;
+    private static final int MIN_DICTIONARY_SIZE = 1024;
+
+    private final int level;
+    private final byte[] dictionary;
+    private final ZstdDictCompress compressDictionary;
+    private final Deque<FrameStream> idle = new ConcurrentLinkedDeque<>();
+    private final List<FrameStream> all = new ArrayList<>();
+    private boolean closed = false;
+
+    ZstdCompressor(int level, byte[] dictionary) {
+        if (level == Compression.DEFAULT_LEVEL) {
+            level = Zstd.defaultCompressionLevel();
+        } else if (level < 1 || level > Zstd.maxCompressionLevel()) {
+            throw new IllegalArgumentException("zstd level must be between 1 and " + Zstd.maxCompressionLevel());
+        }
+        this.level = level;
+        this.dictionary = dictionary;
+        this.compressDictionary = dictionary == null ? null : new ZstdDictCompress(dictionary, level);
+    }
+
+    @Override
+    public void writeFileHeader(WritableByteChannel channel) throws IOException {
+        if (dictionary == null) return;
+        ByteBuffer header = ByteBuffer.allocate(8).order(LITTLE_ENDIAN);
+        header.putInt(DICTIONARY_FRAME_MAGIC);
+        header.putInt(dictionary.length);
+        header.flip();
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(dictionary));
+    }
+
+    @Override
+    public void writeMember(WritableByteChannel channel, StreamWriter streamWriter) throws IOException {
+        FrameStream stream = acquire();
+        boolean finished = false;
+        try {
+            stream.channel = channel;
+            streamWriter.writeTo(stream);
+            stream.finish();
+            finished = true;
+        } finally {
+            stream.channel = null;
+            if (finished) {
+                idle.push(stream);
+            } else {
+                // the context is part way through a frame, rather than resetting and reconfiguring it just drop it
+                discard(stream);
+            }
+        }
+    }
+
+    private synchronized void discard(FrameStream stream) {
+        all.remove(stream);
+        stream.ctx.close();
+    }
+
+    private FrameStream acquire() {
+        FrameStream stream = idle.poll();
+        if (stream == null) {
+            stream = new FrameStream(level, compressDictionary);
+            synchronized (this) {
+                if (closed) {
+                    stream.ctx.close();
+                    throw new IllegalStateException("compressor is closed");
+                }
+                all.add(stream);
+            }
+        }
+        return stream;
+    }
+
+    @Override
+    public long maxMemberSize(long length) {
+        // ZSTD_compressBound() plus room for the frame header
+        return length + (length >> 8) + (BUFFER_SIZE >> 11) + 64;
+    }
+
+    /**
+     * Number of compression contexts created so far. This is bounded by the number of threads compressing at once.
+     */
+    synchronized int poolSize() {
+        return all.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (FrameStream stream : all) {
+            stream.ctx.close();
+        }
+        all.clear();
+        idle.clear();
+        if (compressDictionary != null) {
+            compressDictionary.close();
+        }
+    }
+
+    /**
+     * Trains a dictionary from a sample of the text payloads stored in a crawl, both the mirrored files and the cache
+     * entries. Returns null if there aren't enough samples to train a useful dictionary.
+     */
+    static byte[] trainDictionary(HttrackCrawl crawl) throws IOException {
+        int[] candidates = {0};
+        crawl.forEachStoredPayload((name, source) -> {
+            if (isSampleCandidate(name)) candidates[0]++;
+        });
+
+        // take an evenly spaced sample so we see a mix of sites and sections of the crawl
+        int stride = Math.max(1, candidates[0] / MAX_SAMPLE_FILES);
+        List<byte[]> samples = new ArrayList<>();
+        long[] sampleBytes = {0};
+        int[] candidate = {0};
+        crawl.forEachStoredPayload((name, source) -> {
+            if (!isSampleCandidate(name) || candidate[0]++ % stride != 0 || sampleBytes[0] >= SAMPLE_BUDGET) return;
+            byte[] sample;
+            try (InputStream stream = source.open()) {
+                sample = readSample(stream, (int) Math.min(MAX_SAMPLE_SIZE, SAMPLE_BUDGET - sampleBytes[0]));
+            }
+            if (sample.length == 0) return;
+            samples.add(sample);
+            sampleBytes[0] += sample.length;
+        });
+
+        // the trainer needs roughly ten times as much sample data as the dictionary it produces
+        int dictionarySize = (int) Math.min(DICTIONARY_SIZE, sampleBytes[0] / 10);
+        if (samples.size() < MIN_SAMPLES || dictionarySize < MIN_DICTIONARY_SIZE) {
+            log.warn("Only found {} text payloads ({} bytes) to sample, compressing without a zstd dictionary",
+                    samples.size(), sampleBytes[0]);
+            return null;
+        }
+        ZstdDictTrainer trainer = new ZstdDictTrainer((int) sampleBytes[0], dictionarySize);
+        for (byte[] sample : samples) {
+            trainer.addSample(sample);
+        }
+        try {
+            byte[] dictionary = trainer.trainSamples();
+            log.debug("Trained {} byte zstd dictionary from {} samples", dictionary.length, samples.size());
+            return dictionary;
+        } catch (ZstdException e) {
+            log.warn("Unable to train zstd dictionary from {} samples, compressing without one: {}", samples.size(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if a file name or URL looks like a text format worth sampling. Cache entries for directory URLs
+     * are usually index pages.
+     */
+    private static boolean isSampleCandidate(String name) {
+        int end = name.length();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        String path = name.substring(0, end).toLowerCase(Locale.ROOT);
+        return path.endsWith("/") || path.endsWith(".html") || path.endsWith(".htm") || path.endsWith(".css")
+                || path.endsWith(".js") || path.endsWith(".xml") || path.endsWith(".txt") || path.endsWith(".json")
+                || path.endsWith(".svg");
+    }
+
+    private static byte[] readSample(InputStream stream, int limit) throws IOException {
+        byte[] buffer = new byte[limit];
+        int n = 0;
+        while (n < buffer.length) {
+            int read = stream.read(buffer, n, buffer.length - n);
+            if (read < 0) break;
+            n += read;
+        }
+        return n == buffer.length ? buffer : Arrays.copyOf(buffer, n);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * The compression context and native buffers used to write a single frame at a time.
+     */
+    private static class FrameStream extends OutputStream {
+        final ZstdCompressCtx ctx = new ZstdCompressCtx();
+        private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private WritableByteChannel channel;
+
+        FrameStream(int level, ZstdDictCompress dictionary) {
+            ctx.setLevel(level);
+            ctx.setChecksum(true);
+            if (dictionary != null) {
+                ctx.loadDict(dictionary);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!input.hasRemaining()) compress(EndDirective.CONTINUE);
+            input.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!input.hasRemaining()) compress(EndDirective.CONTINUE);
+                int n = Math.min(len, input.remaining());
+                input.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void finish() throws IOException {
+            compress(EndDirective.END);
+        }
+
+        private void compress(EndDirective directive) throws IOException {
+            input.flip();
+            boolean done;
+            do {
+                output.clear();
+                done = ctx.compressDirectByteBufferStream(output, input, directive);
+                output.flip();
+                writeFully(channel, output);
+            } while (input.hasRemaining() || (directive == EndDirective.END && !done));
+            input.clear();
+        }
+    }
+}
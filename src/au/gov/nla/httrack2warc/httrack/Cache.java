@@ -17,7 +17,17 @@
 package au.gov.nla.httrack2warc.httrack;
 
 import java.io.Closeable;
+import java.io.IOException;
 
 public interface Cache extends Closeable {
-    CacheEntry getEntry(String url);
+    CacheEntry getEntry(String url) throws IOException;
+
+    /**
+     * Calls the action with the URL, as stored, and entry of everything in the cache in the order it's stored.
+     */
+    void forEach(EntryConsumer action) throws IOException;
+
+    interface EntryConsumer {
+        void accept(String url, CacheEntry entry) throws IOException;
+    }
 }
@@ -25,4 +25,35 @@ public interface CacheEntry {
     InputStream openStream() throws IOException;
 
     boolean hasData();
+
+    /**
+     * Returns the location of the data if it's stored uncompressed in a single contiguous range of a file,
+     * otherwise null.
+     */
+    default FileRegion getFileRegion() throws IOException {
+        return null;
+    }
+
+    /**
+     * Opens the entry's data as a raw deflate stream if that's how it's stored, otherwise returns null. This lets the
+     * compressed data be copied into the output without compressing it again.
+     */
+    default InputStream openDeflatedStream() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes the entry's data takes up in the cache file, or -1 if that isn't known without
+     * reading it.
+     */
+    default long getStoredSize() {
+        return -1;
+    }
+
+    /**
+     * Returns where the entry is stored in the cache file, for reading entries in storage order, or -1 if unknown.
+     */
+    default long getStorageOffset() {
+        return -1;
+    }
 }
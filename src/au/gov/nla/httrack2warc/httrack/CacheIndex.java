@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.IOException;
+
+/**
+ * A compact index from URL to the offset of its entry in a cache file. A HashMap of URL strings costs well over a
+ * hundred bytes per entry which adds up to gigabytes for caches with millions of entries. Instead only a 64-bit hash
+ * of each URL and the offset are kept, in two primitive arrays with open addressing.
+ * <p>
+ * As hashes can collide the caller confirms a hit by checking the name stored in the cache file at the offset.
+ * Adding a URL that's already present keeps both offsets and lookups return the largest one that matches, which is
+ * the last added when offsets are added in file order.
+ * <p>
+ * Not thread-safe for adding, lookups may be made concurrently once the index is built.
+ */
+class CacheIndex {
+    private long[] hashes; // zero marks an empty slot
+    private long[] offsets;
+    private int size = 0;
+
+    CacheIndex() {
+        this(16);
+    }
+
+    CacheIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize / 3 * 4 + 4) - 1) << 1;
+        hashes = new long[capacity];
+        offsets = new long[capacity];
+    }
+
+    void add(String url, long offset) {
+        add(hash(url), offset);
+    }
+
+    /**
+     * Adds an offset under a hash computed in advance with hash(String), e.g. in parallel.
+     */
+    void add(long hash, long offset) {
+        if (offset < 0) throw new IllegalArgumentException("negative offset");
+        if ((size + 1) * 4L > hashes.length * 3L) {
+            grow();
+        }
+        insert(hash, offset);
+        size++;
+    }
+
+    private void insert(long hash, long offset) {
+        int mask = hashes.length - 1;
+        int i = (int) hash & mask;
+        while (hashes[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        offsets[i] = offset;
+    }
+
+    private void grow() {
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        hashes = new long[oldHashes.length * 2];
+        offsets = new long[oldOffsets.length * 2];
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                insert(oldHashes[i], oldOffsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the largest offset added under the URL's hash that the verifier confirms, or -1 if there are none.
+     */
+    long find(String url, Verifier verifier) throws IOException {
+        long hash = hash(url);
+        int mask = hashes.length - 1;
+        long best = -1;
+        for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && offsets[i] > best && verifier.matches(offsets[i])) {
+                best = offsets[i];
+            }
+        }
+        return best;
+    }
+
+    interface Verifier {
+        boolean matches(long offset) throws IOException;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The approximate number of bytes of heap used.
+     */
+    long footprint() {
+        return hashes.length * 16L;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 code units followed by the MurmurHash3 finalizer. Never returns zero.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
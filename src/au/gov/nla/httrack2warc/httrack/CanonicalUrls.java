@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memoises the canonical forms of raw URLs. The same URL is typically seen many times while converting a crawl:
+ * in the cache index, in new.txt or the debug log, as the key for its request and response headers, as the
+ * referrer of other pages and in the CDX. Parsing and canonicalizing it each time is comparatively expensive so
+ * the results are kept in a bounded least-recently-used map shared by all of those.
+ * <p>
+ * Safe for use from multiple threads.
+ */
+public class CanonicalUrls {
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private final Map<String, Entry> entries;
+
+    public CanonicalUrls() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CanonicalUrls(int capacity) {
+        entries = new LinkedHashMap<String, CanonicalUrls.Entry>(Math.min(capacity, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CanonicalUrls.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * The canonical forms of a raw URL as written by HTTrack, which might be missing the scheme.
+     */
+    public Entry get(String raw) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(raw);
+        }
+        if (entry == null) {
+            // computed outside the lock, if two threads race the work is just done twice
+            entry = new Entry(HtsUtil.fixupUrl(raw));
+            synchronized (entries) {
+                entries.put(raw, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Equivalent to HtsUtil.fixupUrl(raw).
+     */
+    public String fixup(String raw) {
+        return get(raw).fixed;
+    }
+
+    /**
+     * Equivalent to HtsUtil.headerKey(raw).
+     */
+    public String headerKey(String raw) {
+        return get(raw).headerKey;
+    }
+
+    /**
+     * Equivalent to HtsUtil.surt(HtsUtil.fixupUrl(raw)).
+     */
+    public String surt(String raw) {
+        return get(raw).surt();
+    }
+
+    public static class Entry {
+        public final String fixed;
+        public final String headerKey;
+        private volatile String surt;
+
+        Entry(String fixed) {
+            this.fixed = fixed;
+            this.headerKey = HtsUtil.stripProtocol(fixed);
+        }
+
+        /**
+         * The SURT is only needed when writing a CDXJ index so it's computed on first use.
+         */
+        public String surt() {
+            String surt = this.surt;
+            if (surt == null) {
+                surt = HtsUtil.surt(fixed);
+                this.surt = surt;
+            }
+            return surt;
+        }
+    }
+}
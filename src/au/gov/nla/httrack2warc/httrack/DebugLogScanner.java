@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Finds the "Record:" lines in the logs/debug file of pre-3.x crawls. These logs can be many gigabytes and almost
+ * all of the lines are something else, so the file is memory mapped and split into chunks which are scanned in
+ * parallel. Only lines with "\tDebug: \tRecord: " right after the timestamp are decoded and matched against the
+ * full pattern. The entries are returned in file order.
+ */
+class DebugLogScanner implements Closeable {
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final Pattern DEBUG_RECORD_RE = Pattern.compile("(\\d\\d:\\d\\d:\\d\\d)\tDebug: \tRecord: (.*) -> (.*)");
+    private static final byte[] MARKER = "\tDebug: \tRecord: ".getBytes(ISO_8859_1);
+    private static final int MARKER_START = "00:00:00".length();
+    private static final int MARKER_END = MARKER_START + MARKER.length;
+
+    private final MappedFile file;
+    private final int threads;
+    private final int chunkSize;
+
+    DebugLogScanner(Path path, int threads) throws IOException {
+        this(path, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    DebugLogScanner(Path path, int threads, int chunkSize) throws IOException {
+        this.file = new MappedFile(path);
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    static class Entry {
+        final LocalTime time;
+        final String url;
+        final String file;
+
+        Entry(LocalTime time, String url, String file) {
+            this.time = time;
+            this.url = url;
+            this.file = file;
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(Entry entry) throws IOException;
+    }
+
+    void forEach(EntryConsumer action) throws IOException {
+        long size = file.size();
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (threads <= 1) {
+            for (long chunk = 0; chunk < chunks; chunk++) {
+                for (Entry entry : scanChunk(chunk * chunkSize, Math.min(size, (chunk + 1) * chunkSize))) {
+                    action.accept(entry);
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "httrack2warc-scan");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // keep a few chunks ahead of the consumer but not the whole file
+            ArrayDeque<Future<List<Entry>>> pending = new ArrayDeque<>();
+            long nextChunk = 0;
+            while (nextChunk < chunks || !pending.isEmpty()) {
+                while (nextChunk < chunks && pending.size() < threads * 2) {
+                    long start = nextChunk * chunkSize;
+                    long end = Math.min(size, start + chunkSize);
+                    pending.add(executor.submit(() -> scanChunk(start, end)));
+                    nextChunk++;
+                }
+                for (Entry entry : await(pending.remove())) {
+                    action.accept(entry);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scans the lines that start within [start, end). A line that begins before start belongs to the previous
+     * chunk and one that runs past end is read to its finish. Lines end with \n, \r or \r\n.
+     */
+    private List<Entry> scanChunk(long start, long end) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Matcher matcher = DEBUG_RECORD_RE.matcher("");
+        long position = start == 0 ? 0 : start - 1;
+        InputStream stream = file.openStream(position);
+        byte[] buffer = new byte[65536];
+        byte[] line = new byte[256];
+        int length = 0;
+        boolean inChunk = start == 0; // false while skipping the tail of the previous chunk's last line
+        boolean candidate = true;
+
+        for (int n = stream.read(buffer); n > 0; n = stream.read(buffer)) {
+            for (int i = 0; i < n; i++, position++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    if (inChunk && candidate && length >= MARKER_END) {
+                        match(matcher, line, length, entries);
+                    }
+                    if (position + 1 >= end) {
+                        return entries;
+                    }
+                    inChunk = true;
+                    candidate = true;
+                    length = 0;
+                } else if (inChunk && candidate) {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                    if (length == MARKER_END) {
+                        candidate = hasMarker(line);
+                    }
+                }
+            }
+        }
+        if (inChunk && candidate && length >= MARKER_END) {
+            match(matcher, line, length, entries);
+        }
+        return entries;
+    }
+
+    private static boolean hasMarker(byte[] line) {
+        for (int i = 0; i < MARKER.length; i++) {
+            if (line[MARKER_START + i] != MARKER[i]) return false;
+        }
+        return true;
+    }
+
+    private static void match(Matcher matcher, byte[] line, int length, List<Entry> entries) {
+        matcher.reset(new String(line, 0, length, ISO_8859_1));
+        if (matcher.matches()) {
+            entries.add(new Entry(LocalTime.parse(matcher.group(1)), matcher.group(2), matcher.group(3)));
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * A snapshot of the size and type of every file in a crawl directory, taken by a single parallel scan. Checking
+ * each record's file individually costs several stat calls per record which is slow on network filesystems.
+ * <p>
+ * The relative paths are kept sorted in one array with the sizes in a parallel array, negative sizes marking
+ * directories and other non-regular files. Like Files.isRegularFile() symbolic links are followed, but like
+ * Files.walk() linked directories aren't descended into. Where the filesystem has unix attributes the inode number
+ * of each file is read by the same stat call and kept too, for reading files in roughly on-disk order.
+ * <p>
+ * An index can also be built from a listing, such as the members of a tarball, in which case each file also
+ * records its position in the listing.
+ */
+public class FileIndex {
+    /**
+     * Directory scans are mostly waiting on the filesystem so use more threads than there are processors.
+     */
+    static final int DEFAULT_PARALLELISM = 8;
+
+    private static final long DIRECTORY = -1;
+    private static final long OTHER = -2;
+    private static final String UNIX_ATTRIBUTES = "unix:size,ino,isRegularFile,isDirectory,isSymbolicLink";
+
+    private final Path root;
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] inodes;
+    private final int[] positions;
+
+    private FileIndex(Path root, List<Entry> entries) {
+        // sorted by path and then position so the last of any duplicates wins, like when extracting a tarball
+        entries.sort((a, b) -> a.path.equals(b.path) ? Integer.compare(a.position, b.position) : a.path.compareTo(b.path));
+        int count = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            if (i + 1 < entries.size() && entries.get(i + 1).path.equals(entries.get(i).path)) continue;
+            entries.set(count++, entries.get(i));
+        }
+        this.root = root;
+        this.paths = new String[count];
+        this.sizes = new long[count];
+        this.inodes = new long[count];
+        this.positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(i);
+            paths[i] = entry.path;
+            sizes[i] = entry.size;
+            inodes[i] = entry.inode;
+            positions[i] = entry.position;
+        }
+    }
+
+    public static FileIndex scan(Path root) throws IOException {
+        return scan(root, DEFAULT_PARALLELISM);
+    }
+
+    static FileIndex scan(Path root, int parallelism) throws IOException {
+        List<Entry> entries;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            boolean unix = root.getFileSystem().supportedFileAttributeViews().contains("unix");
+            entries = pool.invoke(new ScanTask(root, root, unix));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return new FileIndex(root, entries);
+    }
+
+    /**
+     * Builds an index from a listing of regular files given relative to the root.
+     */
+    public static class Builder {
+        private final Path root;
+        private final List<Entry> entries = new ArrayList<>();
+
+        public Builder(Path root) {
+            this.root = root;
+        }
+
+        /**
+         * Adds a regular file and returns its position, which is the number of files added before it.
+         */
+        public int add(String path, long size) {
+            int position = entries.size();
+            entries.add(new Entry(path, size, 0, position));
+            return position;
+        }
+
+        public FileIndex build() {
+            return new FileIndex(root, entries);
+        }
+    }
+
+    /**
+     * Returns the index of the path in the arrays or -1 if it wasn't found or is outside the root.
+     */
+    private int find(Path path) {
+        String key;
+        try {
+            key = root.relativize(path).normalize().toString();
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(paths, key);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Returns the position of the file in the listing the index was built from, or -1 if it's not present. For
+     * indexes built by scanning a directory the position is arbitrary.
+     */
+    public int position(Path path) {
+        int i = find(path);
+        return i < 0 ? -1 : positions[i];
+    }
+
+    public boolean isRegularFile(Path path) {
+        int i = find(path);
+        return i >= 0 && sizes[i] >= 0;
+    }
+
+    /**
+     * Returns the size of a regular file or zero if it's missing or not a regular file.
+     */
+    public long size(Path path) {
+        int i = find(path);
+        return i < 0 ? 0 : Math.max(0, sizes[i]);
+    }
+
+    /**
+     * Returns the inode number of a file, or zero if it's missing or the index was built from a listing or on a
+     * filesystem without unix attributes.
+     */
+    public long inode(Path path) {
+        int i = find(path);
+        return i < 0 ? 0 : inodes[i];
+    }
+
+    /**
+     * Calls the action with the relative path of every file other than directories, in sorted order.
+     */
+    public void forEachNonDirectory(Consumer<String> action) {
+        for (int i = 0; i < paths.length; i++) {
+            if (sizes[i] != DIRECTORY) {
+                action.accept(paths[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    private static class Entry {
+        final String path;
+        final long size;
+        final long inode;
+        final int position;
+
+        Entry(String path, long size, long inode, int position) {
+            this.path = path;
+            this.size = size;
+            this.inode = inode;
+            this.position = position;
+        }
+    }
+
+    /**
+     * The attributes of a file read by one stat call.
+     */
+    private static class Stat {
+        final boolean regularFile;
+        final boolean directory;
+        final boolean symbolicLink;
+        final long size;
+        final long inode;
+
+        Stat(boolean regularFile, boolean directory, boolean symbolicLink, long size, long inode) {
+            this.regularFile = regularFile;
+            this.directory = directory;
+            this.symbolicLink = symbolicLink;
+            this.size = size;
+            this.inode = inode;
+        }
+
+        static Stat of(Path path, boolean unix, LinkOption... options) throws IOException {
+            if (unix) {
+                Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES, options);
+                return new Stat((Boolean) attributes.get("isRegularFile"), (Boolean) attributes.get("isDirectory"),
+                        (Boolean) attributes.get("isSymbolicLink"), (Long) attributes.get("size"),
+                        (Long) attributes.get("ino"));
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+            return new Stat(attributes.isRegularFile(), attributes.isDirectory(), attributes.isSymbolicLink(),
+                    attributes.size(), 0);
+        }
+    }
+
+    /**
+     * Lists one directory and forks a task for each of its subdirectories.
+     */
+    private static class ScanTask extends RecursiveTask<List<Entry>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path dir;
+        private final boolean unix;
+
+        ScanTask(Path root, Path dir, boolean unix) {
+            this.root = root;
+            this.dir = dir;
+            this.unix = unix;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            List<Entry> entries = new ArrayList<>();
+            List<ScanTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    Stat stat = Stat.of(path, unix, LinkOption.NOFOLLOW_LINKS);
+                    boolean link = stat.symbolicLink;
+                    if (link) {
+                        try {
+                            stat = Stat.of(path, unix);
+                        } catch (IOException e) {
+                            entries.add(new Entry(root.relativize(path).toString(), OTHER, 0, 0)); // broken link
+                            continue;
+                        }
+                    }
+
+                    long size;
+                    if (stat.regularFile) {
+                        size = stat.size;
+                    } else if (stat.directory) {
+                        size = DIRECTORY;
+                        if (!link) {
+                            ScanTask subtask = new ScanTask(root, path, unix);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        }
+                    } else {
+                        size = OTHER;
+                    }
+                    entries.add(new Entry(root.relativize(path).toString(), size, stat.inode, 0));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (ScanTask subtask : subtasks) {
+                entries.addAll(subtask.join());
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * A payload that is stored uncompressed as a contiguous range of bytes in a file. This lets the payload be copied
+ * into an uncompressed WARC by the kernel without passing through the JVM heap.
+ */
+public class FileRegion {
+    private final Path file;
+    private final long offset;
+    private final long length;
+
+    FileRegion(Path file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public InputStream openStream() throws IOException {
+        FileChannel channel = FileChannel.open(file);
+        channel.position(offset);
+        return new NdxCache.CountingStream(Channels.newInputStream(channel), length);
+    }
+}
@@ -19,32 +19,46 @@ package au.gov.nla.httrack2warc.httrack;
 import au.gov.nla.httrack2warc.ParsingException;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class HtsIoinfoParser implements Closeable {
     private static final Pattern HEADER_RE = Pattern.compile("(?:\\[\\d+] )?(request|response) for (.*):");
     private static final Pattern REQUEST_RE = Pattern.compile("(?:[A-Z]+) http://(.*) HTTP/1.[01]");
-    private final BufferedReader reader;
+    private final InputStream stream;
+    private final byte[] buffer;
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private long position;
+    private final StringBuilder lineBuffer = new StringBuilder();
     boolean request;
     String url;
     String header;
     int code;
+    /**
+     * Byte offset in the stream of the first line of the current record.
+     */
+    long offset;
 
-    private HtsIoinfoParser(BufferedReader reader) {
-        this.reader = reader;
+    HtsIoinfoParser(InputStream ioinfoStream) {
+        this(ioinfoStream, 0, 8192);
     }
 
-    HtsIoinfoParser(InputStream ioinfoStream) {
-        this(new BufferedReader(new InputStreamReader(ioinfoStream, StandardCharsets.ISO_8859_1)));
+    /**
+     * @param startPosition the position of the start of the stream in the file, added to the record offsets
+     */
+    HtsIoinfoParser(InputStream ioinfoStream, long startPosition, int bufferSize) {
+        this.stream = ioinfoStream;
+        this.position = startPosition;
+        this.buffer = new byte[bufferSize];
     }
 
     public boolean parseRecord() throws IOException {
         String header;
 
         do {
-            header = reader.readLine();
+            offset = position;
+            header = readLine();
             if (header == null) return false;
         } while (header.isEmpty() || header.startsWith("---> QUIT"));
 
@@ -52,7 +66,7 @@ class HtsIoinfoParser implements Closeable {
         String prefix;
 
         if (header.equals("Out:")) { // HTTrack 3.01 requests
-            String requestLine = reader.readLine();
+            String requestLine = readLine();
             Matcher matcher = REQUEST_RE.matcher(requestLine);
             if (!matcher.matches()) {
                 throw new ParsingException("invalid request line: " + requestLine);
@@ -75,7 +89,7 @@ class HtsIoinfoParser implements Closeable {
         code = 0;
 
         while (true) {
-            String line = reader.readLine();
+            String line = readLine();
             if (line == null) {
                 throw new EOFException("missing trailer");
             } else if (line.isEmpty()) {
@@ -104,8 +118,48 @@ class HtsIoinfoParser implements Closeable {
         return true;
     }
 
+    /**
+     * Reads a line of ISO-8859-1 text terminated by \n, \r or \r\n like BufferedReader.readLine() but keeping
+     * track of the byte position.
+     */
+    private String readLine() throws IOException {
+        lineBuffer.setLength(0);
+        while (true) {
+            int b = read();
+            if (b < 0) {
+                return lineBuffer.length() == 0 ? null : lineBuffer.toString();
+            } else if (b == '\n') {
+                break;
+            } else if (b == '\r') {
+                if (peek() == '\n') read();
+                break;
+            }
+            lineBuffer.append((char) b);
+        }
+        return lineBuffer.toString();
+    }
+
+    private int read() throws IOException {
+        if (bufferPosition == bufferLimit && !fill()) return -1;
+        position++;
+        return buffer[bufferPosition++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (bufferPosition == bufferLimit && !fill()) return -1;
+        return buffer[bufferPosition] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        int n = stream.read(buffer);
+        if (n <= 0) return false;
+        bufferPosition = 0;
+        bufferLimit = n;
+        return true;
+    }
+
     @Override
     public void close() throws IOException {
-        reader.close();
+        stream.close();
     }
 }
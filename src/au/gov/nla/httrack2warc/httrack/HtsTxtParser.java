@@ -19,84 +19,316 @@ package au.gov.nla.httrack2warc.httrack;
 import au.gov.nla.httrack2warc.ParsingException;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Parses HTTrack hts-cache/new.txt files.
+ * <p>
+ * Each line is scanned as raw UTF-8 bytes and split on tabs, accepting the same grammar as this regex:
+ * <pre>
+ * (?&lt;time&gt;\d\d:\d\d:\d\d)\t(?&lt;size&gt;-?\d+)/(?&lt;remotesize&gt;-?\d+)\t(?&lt;flags&gt;[A-Z-]{6})\t
+ * (?&lt;statuscode&gt;-?\d+)\t(?&lt;status&gt;\w+)[ ](error )?\('(?&lt;servermsg&gt;[^']*)'\)\t(?&lt;mime&gt;\S*)\t
+ * (?&lt;etag&gt;\S*)\t(?&lt;url&gt;.+)\t(?&lt;localfile&gt;[^\t]*)\t\(from[ ](?&lt;via&gt;.*)\)
+ * </pre>
+ * Fields are only decoded to strings when they're asked for. The URL may contain tabs so like the greedy regex
+ * group it extends to the last tab that still leaves a valid localfile and "(from ...)" after it.
  */
 class HtsTxtParser implements Closeable {
-    private static final Pattern RE = Pattern.compile("^(?<time>\\d\\d:\\d\\d:\\d\\d)\\t" +
-            "(?<size>-?\\d+)/(?<remotesize>-?\\d+)\\t" +
-            "(?<flags>[A-Z-]{6})\\t" +
-            "(?<statuscode>-?\\d+)\\t" +
-            "(?<status>\\w+)[ ](error )?\\('(?<servermsg>[^']*)'\\)\\t" +
-            "(?<mime>\\S*)\\t" +
-            "(?<etag>\\S*)\\t" +
-            "(?<url>.+)\\t" +
-            "(?<localfile>[^\\t]*)\\t" +
-            "\\(from[ ](?<via>.*)\\)$");
-    private final BufferedReader reader;
-    private final Matcher matcher = RE.matcher("");
-
-    HtsTxtParser(BufferedReader reader) throws IOException {
-        this.reader = reader;
-        String header = reader.readLine();
-        if (header == null) {
+    private static final byte[] HEADER = ("date\tsize'/'remotesize\tflags(request:Update,Range state:File " +
+            "response:Modified,Chunked,gZipped)\tstatuscode\tstatus ('servermsg')\tMIME\tEtag|Date\tURL\tlocalfile\t" +
+            "(from URL)").getBytes(ISO_8859_1);
+    private static final byte[] FROM = "\t(from ".getBytes(ISO_8859_1);
+    private static final byte[] ERROR = "error ".getBytes(ISO_8859_1);
+
+    private final InputStream stream;
+    private byte[] buffer = new byte[65536];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private boolean eof = false;
+    private boolean skipLineFeed = false;
+
+    // the current line is buffer[lineStart, lineEnd)
+    private int lineStart;
+    private int lineEnd;
+    private int secondOfDay;
+    private int hour, minute, second;
+    private int statusStart, statusEnd;
+    private int mimeStart, mimeEnd;
+    private int urlStart, urlEnd;
+    private int localfileStart, localfileEnd;
+    private int viaStart, viaEnd;
+
+    HtsTxtParser(InputStream stream) throws IOException {
+        this.stream = stream;
+        if (!readLine()) {
             throw new ParsingException("empty file");
-        } else if (!header.equals("date\tsize'/'remotesize\tflags(request:Update,Range state:File response:Modified,Chunked,gZipped)\tstatuscode\tstatus ('servermsg')\tMIME\tEtag|Date\tURL\tlocalfile\t(from URL)")) {
+        } else if (!rangeEquals(lineStart, lineEnd, HEADER)) {
             throw new ParsingException("invalid header line");
         }
     }
 
-    HtsTxtParser(InputStream txtReader) throws IOException {
-        this(new BufferedReader(new InputStreamReader(txtReader, StandardCharsets.UTF_8)));
+    boolean readRecord() throws IOException {
+        if (!readLine()) {
+            return false;
+        }
+        if (!parseLine()) {
+            throw new ParsingException("invalid record: " + new String(buffer, lineStart, lineEnd - lineStart, UTF_8));
+        }
+        return true;
     }
 
-    boolean readRecord() throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+    private boolean parseLine() {
+        int end = lineEnd;
+        int i = lineStart;
+
+        // time
+        if (end - i < 9 || !isDigit(i) || !isDigit(i + 1) || buffer[i + 2] != ':' || !isDigit(i + 3)
+                || !isDigit(i + 4) || buffer[i + 5] != ':' || !isDigit(i + 6) || !isDigit(i + 7)
+                || buffer[i + 8] != '\t') {
             return false;
         }
-        matcher.reset(line);
-        if (!matcher.matches()) {
-            throw new ParsingException("invalid record: " + line);
+        hour = twoDigits(i);
+        minute = twoDigits(i + 3);
+        second = twoDigits(i + 6);
+        secondOfDay = hour * 3600 + minute * 60 + second;
+        i += 9;
+
+        // size/remotesize
+        i = skipInteger(i, end);
+        if (i < 0 || i >= end || buffer[i++] != '/') return false;
+        i = skipInteger(i, end);
+        if (i < 0 || i >= end || buffer[i++] != '\t') return false;
+
+        // flags
+        if (end - i < 7) return false;
+        for (int j = i; j < i + 6; j++) {
+            byte b = buffer[j];
+            if (b != '-' && (b < 'A' || b > 'Z')) return false;
+        }
+        i += 6;
+        if (buffer[i++] != '\t') return false;
+
+        // statuscode
+        statusStart = i;
+        i = skipInteger(i, end);
+        if (i < 0 || i >= end || buffer[i] != '\t') return false;
+        statusEnd = i++;
+
+        // status ('servermsg')
+        int wordStart = i;
+        while (i < end && isWordChar(buffer[i])) i++;
+        if (i == wordStart || i >= end || buffer[i++] != ' ') return false;
+        if (rangeStartsWith(i, end, ERROR)) i += ERROR.length;
+        if (end - i < 2 || buffer[i] != '(' || buffer[i + 1] != '\'') return false;
+        i += 2;
+        while (i < end && buffer[i] != '\'') i++;
+        if (end - i < 3 || buffer[i + 1] != ')' || buffer[i + 2] != '\t') return false;
+        i += 3;
+
+        // mime and etag
+        mimeStart = i;
+        i = skipNonWhitespace(i, end);
+        if (i >= end || buffer[i] != '\t') return false;
+        mimeEnd = i++;
+        i = skipNonWhitespace(i, end);
+        if (i >= end || buffer[i] != '\t') return false;
+        urlStart = ++i;
+
+        // the rest is url \t localfile \t (from via) where only the url and via can contain tabs
+        if (end - urlStart < 1 || buffer[end - 1] != ')') return false;
+        for (int from = end - FROM.length - 1; from > urlStart; from--) {
+            if (buffer[from] != '\t' || !rangeStartsWith(from, end, FROM)) continue;
+            int tab = from - 1;
+            while (tab >= urlStart && buffer[tab] != '\t') tab--;
+            if (tab <= urlStart) continue; // the url must be at least one character
+            if (!hasNoLineSeparators(urlStart, tab) || !hasNoLineSeparators(from + FROM.length, end - 1)) continue;
+            urlEnd = tab;
+            localfileStart = tab + 1;
+            localfileEnd = from;
+            viaStart = from + FROM.length;
+            viaEnd = end - 1;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isDigit(int i) {
+        return buffer[i] >= '0' && buffer[i] <= '9';
+    }
+
+    private int twoDigits(int i) {
+        return (buffer[i] - '0') * 10 + buffer[i + 1] - '0';
+    }
+
+    /**
+     * Skips over -?\d+ returning the position after it or -1 if there isn't one.
+     */
+    private int skipInteger(int i, int end) {
+        if (i < end && buffer[i] == '-') i++;
+        int digitsStart = i;
+        while (i < end && isDigit(i)) i++;
+        return i == digitsStart ? -1 : i;
+    }
+
+    private static boolean isWordChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    /**
+     * Skips over \S*, which is everything except space, tab, vertical tab and form feed as line breaks have
+     * already been removed.
+     */
+    private int skipNonWhitespace(int i, int end) {
+        while (i < end) {
+            byte b = buffer[i];
+            if (b == ' ' || b == '\t' || b == 0x0b || b == '\f') break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * The regex . doesn't match the Unicode line separators U+0085, U+2028 and U+2029.
+     */
+    private boolean hasNoLineSeparators(int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == (byte) 0xc2 && i + 1 < end && buffer[i + 1] == (byte) 0x85) return false;
+            if (b == (byte) 0xe2 && i + 2 < end && buffer[i + 1] == (byte) 0x80
+                    && (buffer[i + 2] == (byte) 0xa8 || buffer[i + 2] == (byte) 0xa9)) return false;
         }
         return true;
     }
 
+    private boolean rangeStartsWith(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[start + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean rangeEquals(int start, int end, byte[] bytes) {
+        return end - start == bytes.length && rangeStartsWith(start, end, bytes);
+    }
+
+    /**
+     * Finds the next line in the buffer, reading more as needed. Lines end in \n, \r or \r\n like
+     * BufferedReader.readLine().
+     */
+    private boolean readLine() throws IOException {
+        int i = bufferPosition;
+        while (true) {
+            if (skipLineFeed && i < bufferLimit) {
+                if (buffer[i] == '\n') {
+                    i++;
+                    bufferPosition = i;
+                }
+                skipLineFeed = false;
+            }
+            while (i < bufferLimit && buffer[i] != '\n' && buffer[i] != '\r') i++;
+            if (i < bufferLimit) {
+                lineStart = bufferPosition;
+                lineEnd = i;
+                skipLineFeed = buffer[i] == '\r';
+                bufferPosition = i + 1;
+                return true;
+            }
+            if (eof) {
+                if (bufferPosition == bufferLimit) return false;
+                lineStart = bufferPosition;
+                lineEnd = bufferLimit;
+                bufferPosition = bufferLimit;
+                return true;
+            }
+
+            // move the partial line to the start of the buffer and read some more
+            int partial = bufferLimit - bufferPosition;
+            if (partial == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            } else {
+                System.arraycopy(buffer, bufferPosition, buffer, 0, partial);
+            }
+            i -= bufferPosition;
+            bufferPosition = 0;
+            bufferLimit = partial;
+            int n = stream.read(buffer, bufferLimit, buffer.length - bufferLimit);
+            if (n < 0) {
+                eof = true;
+            } else {
+                bufferLimit += n;
+            }
+        }
+    }
+
+    private String decode(int start, int end) {
+        return new String(buffer, start, end - start, UTF_8);
+    }
+
     public LocalTime time() {
-        return LocalTime.parse(matcher.group("time"));
+        return LocalTime.of(hour, minute, second);
+    }
+
+    /**
+     * The time of the record as seconds since midnight, without validating the hour, minute and second ranges.
+     */
+    public int secondOfDay() {
+        return secondOfDay;
     }
 
     public String url() {
-        return matcher.group("url");
+        return decode(urlStart, urlEnd);
     }
 
     public String referrer() {
-        String raw = matcher.group("via");
-        if (raw.isEmpty()) {
-            return null;
-        }
-        return HtsUtil.fixupUrl(raw);
+        String via = via();
+        return via == null ? null : HtsUtil.fixupUrl(via);
+    }
+
+    /**
+     * The referrer as HTTrack wrote it, or null if there isn't one.
+     */
+    public String via() {
+        return viaStart == viaEnd ? null : decode(viaStart, viaEnd);
     }
 
     public String mime() {
-        return matcher.group("mime");
+        return decode(mimeStart, mimeEnd);
     }
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        stream.close();
     }
 
     public String localfile() {
-        return matcher.group("localfile");
+        return decode(localfileStart, localfileEnd);
+    }
+
+    /**
+     * True if the localfile field is empty, without decoding it.
+     */
+    public boolean hasLocalfile() {
+        return localfileStart != localfileEnd;
     }
 
     public int status() {
-        return Integer.parseInt(matcher.group("statuscode"));
+        int i = statusStart;
+        boolean negative = buffer[i] == '-';
+        if (negative) i++;
+        long value = 0;
+        for (; i < statusEnd; i++) {
+            value = value * 10 + buffer[i] - '0';
+            if (value > (long) Integer.MAX_VALUE + 1) break;
+        }
+        if (negative) value = -value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + decode(statusStart, statusEnd) + "\"");
+        }
+        return (int) value;
     }
 }
@@ -19,7 +19,15 @@ package au.gov.nla.httrack2warc.httrack;
 import org.netpreserve.urlcanon.Canonicalizer;
 import org.netpreserve.urlcanon.ParsedUrl;
 
+import java.io.IOException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.regex.Pattern;
 
 public class HtsUtil {
@@ -63,4 +71,93 @@ public class HtsUtil {
     public static String stripProtocol(String url) {
         return PROTOCOL.matcher(url).replaceFirst("");
     }
+
+    /**
+     * The fixed URL without its http:// or https:// prefix, which is how hts-ioinfo.txt records are keyed.
+     */
+    public static String headerKey(String raw) {
+        return stripProtocol(fixupUrl(raw));
+    }
+
+    /**
+     * Converts a URL to the SURT form used as the key by pywb and OpenWayback, such as "org,example)/path?a=1&b=2".
+     * The URL is first aggressively canonicalized which among other things lowercases it, strips "www." and sorts
+     * the query parameters. URLs without a host are left in their canonical form.
+     */
+    public static String surt(String url) {
+        ParsedUrl parsed = ParsedUrl.parseUrl(url);
+        Canonicalizer.AGGRESSIVE.canonicalize(parsed);
+        String host = parsed.getHost();
+        if (host.isEmpty()) {
+            return parsed.toString().replace(" ", "%20");
+        }
+
+        StringBuilder key = new StringBuilder(url.length());
+        if (isIpv4Address(host) || host.startsWith("[")) {
+            key.append(host);
+        } else {
+            String[] labels = host.split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                key.append(labels[i]);
+                if (i > 0) key.append(',');
+            }
+        }
+        if (!parsed.getPort().isEmpty()) {
+            key.append(':').append(parsed.getPort());
+        }
+        key.append(')');
+        key.append(parsed.getPath().isEmpty() ? "/" : parsed.getPath());
+        if (!parsed.getQuery().isEmpty()) {
+            key.append('?').append(parsed.getQuery());
+        }
+        // the key is separated from the timestamp by a space
+        return key.toString().replace(" ", "%20");
+    }
+
+    private static boolean isIpv4Address(String host) {
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the path is on the default filesystem rather than inside an archive opened as a filesystem.
+     */
+    static boolean isLocal(Path path) {
+        return path.getFileSystem() == FileSystems.getDefault();
+    }
+
+    /**
+     * Returns the local zip file a path in a zip filesystem is inside of, or null if it isn't in one.
+     */
+    static Path archiveFile(Path path) {
+        URI uri = path.toUri();
+        if (!"jar".equals(uri.getScheme())) return null;
+        String spec = uri.getRawSchemeSpecificPart();
+        int separator = spec.indexOf("!/");
+        if (separator < 0) return null;
+        try {
+            Path zip = Paths.get(URI.create(spec.substring(0, separator)));
+            return isLocal(zip) ? zip : null;
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies a file out of an archive into a temporary file for memory mapping when it's compressed or the archive
+     * isn't a local zip file. The caller is responsible for deleting it.
+     */
+    static Path copyToTempFile(Path path) throws IOException {
+        Path tmp = Files.createTempFile("httrack2warc", "-" + path.getFileName());
+        try {
+            Files.copy(path, tmp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return tmp;
+    }
 }
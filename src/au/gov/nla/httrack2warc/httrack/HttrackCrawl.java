@@ -16,6 +16,7 @@
 
 package au.gov.nla.httrack2warc.httrack;
 
+import au.gov.nla.httrack2warc.CompactStringSet;
 import au.gov.nla.httrack2warc.ParsingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,7 @@ import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
@@ -37,7 +39,6 @@ import java.util.regex.Pattern;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
 public class HttrackCrawl implements Closeable {
-    private static Pattern DEBUG_RECORD_RE = Pattern.compile("(\\d\\d:\\d\\d:\\d\\d)\tDebug: \tRecord: (.*) -> (.*)");
     private static Pattern WARN_MOVED_RE = Pattern.compile("(\\d\\d:\\d\\d:\\d\\d)\tWarning: \tFile has moved from (.*) to (.*)");
 
     private final Path dir;
@@ -46,47 +47,61 @@ public class HttrackCrawl implements Closeable {
     private LocalDateTime launchTime;
     private String httrackOptions;
     private String outputDir;
-    private final Map<String, Queue<String>> requestHeaders = new HashMap<>();
-    private final Map<String, Queue<String>> responseHeaders = new HashMap<>();
-    private static final ArrayDeque<String> EMPTY_QUEUE = new ArrayDeque<>();
+    private IoinfoIndex ioinfo;
     private static final String[] LOG_FILE_NAMES = new String[]{"hts-log.txt", "logs/gen"};
     private LocalDate date;
     private LocalTime previousTime;
     private final Cache cache;
+    private final CanonicalUrls canonicalUrls;
+    private int threads = 1;
+    private FileIndex files;
+    private boolean filesListed = false;
     private Logger log = LoggerFactory.getLogger(HttrackCrawl.class);
 
     public HttrackCrawl(Path dir) throws IOException {
+        this(dir, new CanonicalUrls());
+    }
+
+    /**
+     * @param canonicalUrls shared cache of canonicalized URLs
+     */
+    public HttrackCrawl(Path dir, CanonicalUrls canonicalUrls) throws IOException {
         this.dir = dir;
+        this.canonicalUrls = canonicalUrls;
 
         parseHtsLog();
         parseDoitLog();
         parseIoinfo();
 
-        cache = openCache();
+        try {
+            cache = openCache();
+        } catch (IOException | RuntimeException e) {
+            if (ioinfo != null) ioinfo.close();
+            throw e;
+        }
     }
 
     private void parseIoinfo() throws IOException {
-        try (HtsIoinfoParser ioinfo = new HtsIoinfoParser(Files.newInputStream(dir.resolve("hts-ioinfo.txt")))) {
-            while (ioinfo.parseRecord()) {
-                // XXX: in all examples I've seen hts-ioinfo.txt has the scheme part of the URL stripped
-                // this leaves us with a conflict in the common case of crawls with two urls
-                // only differing by http:// and https:// (often the former is a redirect)
-                // so we add both to a queue and remove them when looking up and hope the order is preserved
-                // I'm uncomfortable with this but don't see any other options and it seems to work ok so far
-                String url = ioinfo.url;
-                if (url.startsWith("http://") || url.startsWith("https://")) {
-                    log.warn("URL in hts-ioinfo.txt unexpectedly has a scheme. We may not be handling this case correctly.");
-                }
-                Map<String, Queue<String>> map = ioinfo.request ? requestHeaders : responseHeaders;
-                map.computeIfAbsent(makeHeaderKey(url), k -> new ArrayDeque<>()).add(ioinfo.header);
-            }
+        try {
+            // XXX: in all examples I've seen hts-ioinfo.txt has the scheme part of the URL stripped
+            // this leaves us with a conflict in the common case of crawls with two urls
+            // only differing by http:// and https:// (often the former is a redirect)
+            // so we add both to a queue and remove them when looking up and hope the order is preserved
+            // I'm uncomfortable with this but don't see any other options and it seems to work ok so far
+            // (keys are computed without canonicalUrls as each URL in the file is only seen once or twice and
+            // indexing them all would just flush the URLs of the records being converted out of it)
+            ioinfo = new IoinfoIndex(dir.resolve("hts-ioinfo.txt"), HtsUtil::headerKey);
         } catch (NoSuchFileException e) {
             // that's ok
         }
     }
 
-    private static String makeHeaderKey(String url) {
-        return HtsUtil.stripProtocol(HtsUtil.fixupUrl(url));
+    private String pollRequestHeader(String url) throws IOException {
+        return ioinfo == null ? null : ioinfo.pollRequest(canonicalUrls.headerKey(url));
+    }
+
+    private String pollResponseHeader(String url) throws IOException {
+        return ioinfo == null ? null : ioinfo.pollResponse(canonicalUrls.headerKey(url));
     }
 
     private void parseHtsLog() throws IOException {
@@ -127,23 +142,26 @@ public class HttrackCrawl implements Closeable {
     private void forEachByTxt(RecordConsumer action) throws IOException {
         resetDateHeuristic();
 
-        HashSet<String> seen = new HashSet<>();
+        CompactStringSet seen = new CompactStringSet();
         try (HtsTxtParser parser = new HtsTxtParser(Files.newInputStream(dir.resolve("hts-cache/new.txt")))) {
             while (parser.readRecord()) {
-                String rawfile = parser.localfile();
-                if (rawfile.isEmpty()) {
+                if (!parser.hasLocalfile()) {
                     continue; // skip 404 errors
                 }
+                String rawfile = parser.localfile();
 
                 seen.add(rawfile);
 
+                String via = parser.via();
+                String referrer = via == null ? null : canonicalUrls.fixup(via);
                 HttrackRecord record = buildRecord(parser.time(), parser.url(), rawfile, parser.mime(),
-                        parser.referrer(), parser.status());
+                        referrer, parser.status());
                 action.accept(record);
             }
         }
 
         forEachRedirectInWarnLog(dir.resolve("hts-err.txt"), seen, action);
+        log.debug("Tracked {} seen files and redirects in {} KB", seen.size(), seen.footprint() / 1024);
     }
 
     private void resetDateHeuristic() {
@@ -161,7 +179,7 @@ public class HttrackCrawl implements Closeable {
 
         String relfile = rawfile.substring(outputDir.length());
 
-        String fixedUrl = HtsUtil.fixupUrl(url);
+        String fixedUrl = canonicalUrls.fixup(url);
         CacheEntry cacheEntry = cache == null ? null : cache.getEntry(fixedUrl);
 
         String filename = percentDecode(relfile);
@@ -170,8 +188,8 @@ public class HttrackCrawl implements Closeable {
             throw new IOException(file + " is outside of " + dir);
         }
 
-        String requestHeader = requestHeaders.getOrDefault(makeHeaderKey(url), EMPTY_QUEUE).poll();
-        String responseHeader = responseHeaders.getOrDefault(makeHeaderKey(url), EMPTY_QUEUE).poll();
+        String requestHeader = pollRequestHeader(url);
+        String responseHeader = pollResponseHeader(url);
 
         if (status == null) {
             if (responseHeader != null) {
@@ -191,7 +209,8 @@ public class HttrackCrawl implements Closeable {
                 referrer,
                 file,
                 cacheEntry,
-                status);
+                status,
+                files());
     }
 
     private LocalDateTime applyDateHeuristic(LocalTime time) {
@@ -207,35 +226,26 @@ public class HttrackCrawl implements Closeable {
     private void forEachByDebugLogs(RecordConsumer action) throws IOException {
         resetDateHeuristic();
 
-        Set<String> seen = new HashSet<>();
-        try (BufferedReader reader = Files.newBufferedReader(dir.resolve("logs/debug"), ISO_8859_1)) {
-            for (;;) {
-                String line = reader.readLine();
-                if (line == null) break;
-
-                Matcher m = DEBUG_RECORD_RE.matcher(line);
-                if (!m.matches()) continue;
-
-                LocalTime time = LocalTime.parse(m.group(1));
-                String url = m.group(2);
-                String file = m.group(3);
-
-                if (!seen.add(file)) {
-                    log.debug("Skipping duplicate file {}", file);
-                    continue;
+        CompactStringSet seen = new CompactStringSet();
+        try (DebugLogScanner scanner = new DebugLogScanner(dir.resolve("logs/debug"), threads)) {
+            scanner.forEach(entry -> {
+                if (!seen.add(entry.file)) {
+                    log.debug("Skipping duplicate file {}", entry.file);
+                    return;
                 }
 
-                HttrackRecord record = buildRecord(time, url, file, null, null, null);
+                HttrackRecord record = buildRecord(entry.time, entry.url, entry.file, null, null, null);
                 action.accept(record);
-            }
+            });
         }
 
         forEachRedirectInWarnLog(dir.resolve("logs/warn"), seen, action);
+        log.debug("Tracked {} seen files and redirects in {} KB", seen.size(), seen.footprint() / 1024);
 
         resetDateHeuristic();
     }
 
-    private void forEachRedirectInWarnLog(Path logFile, Set<String> seen, RecordConsumer action) throws IOException {
+    private void forEachRedirectInWarnLog(Path logFile, CompactStringSet seen, RecordConsumer action) throws IOException {
         if (!Files.exists(logFile)) return;
 
         resetDateHeuristic();
@@ -257,9 +267,9 @@ public class HttrackCrawl implements Closeable {
                     continue;
                 }
 
-                String fixedUrl = HtsUtil.fixupUrl(url);
-                String request = requestHeaders.getOrDefault(makeHeaderKey(url), EMPTY_QUEUE).poll();
-                String response = responseHeaders.getOrDefault(makeHeaderKey(url), EMPTY_QUEUE).poll();
+                String fixedUrl = canonicalUrls.fixup(url);
+                String request = pollRequestHeader(url);
+                String response = pollResponseHeader(url);
                 int status;
                 if (response == null) {
                     // if we don't have any response header we fabricate one as there's no way to record a redirect
@@ -295,9 +305,9 @@ public class HttrackCrawl implements Closeable {
     private Cache openCache() throws IOException {
         Path zipFile = dir.resolve("hts-cache/new.zip");
         if (Files.exists(zipFile)) {
-            return new ZipCache(zipFile);
+            return new ZipCache(zipFile, canonicalUrls);
         } else if (Files.exists(dir.resolve("hts-cache/new.ndx"))) {
-            return new NdxCache(dir);
+            return new NdxCache(dir, canonicalUrls);
         } else {
             log.warn("Cache not found, proceeding anyway.");
             return null;
@@ -316,13 +326,90 @@ public class HttrackCrawl implements Closeable {
         return launchTime;
     }
 
+    /**
+     * Uses the given snapshot of the crawl's files instead of scanning the directory, such as a listing of the
+     * members of an archive that hasn't been extracted.
+     */
+    public void setFiles(FileIndex files) {
+        this.files = files;
+        this.filesListed = true;
+    }
+
+    /**
+     * Returns a snapshot of the files in the crawl directory, scanning it the first time this is called.
+     */
+    public FileIndex files() throws IOException {
+        if (files == null) {
+            files = FileIndex.scan(dir);
+        }
+        return files;
+    }
+
+    /**
+     * Calls the action with each payload that can be read before the conversion starts: the files in the crawl
+     * directory, unless they're only known from a listing of an archive, followed by the cache entries that have
+     * data. The name is the file's path relative to the crawl directory or the URL of the cache entry.
+     */
+    public void forEachStoredPayload(StoredPayloadConsumer action) throws IOException {
+        if (!filesListed) {
+            try {
+                files().forEachNonDirectory(name -> {
+                    if (isCrawlMetadata(name)) return;
+                    try {
+                        action.accept(name, () -> Files.newInputStream(dir.resolve(name)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (cache != null) {
+            cache.forEach((url, entry) -> {
+                if (entry.hasData()) {
+                    action.accept(url, entry::openStream);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns true for the files HTTrack keeps about the crawl rather than the ones it mirrored.
+     */
+    private static boolean isCrawlMetadata(String name) {
+        return name.startsWith("hts-cache/") || name.startsWith("logs/") ||
+                (name.startsWith("hts-") && name.indexOf('/') < 0);
+    }
+
+    public CanonicalUrls getCanonicalUrls() {
+        return canonicalUrls;
+    }
+
+    /**
+     * Sets the number of threads used to scan logs/debug on crawls without hts-cache/new.txt.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     @Override
     public void close() throws IOException {
-        if (cache != null) {
-            cache.close();
+        try {
+            if (cache != null) {
+                cache.close();
+            }
+        } finally {
+            if (ioinfo != null) {
+                ioinfo.close();
+            }
         }
     }
 
+    public interface StoredPayloadConsumer {
+        void accept(String name, HttrackRecord.PayloadSource source) throws IOException;
+    }
+
     public interface RecordConsumer {
         void accept(HttrackRecord record) throws IOException;
     }
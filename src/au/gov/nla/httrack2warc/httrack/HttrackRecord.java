@@ -42,9 +42,21 @@ public class HttrackRecord {
     private final CacheEntry cacheEntry;
     private Path path;
     private final int status;
+    private final FileIndex files;
+    private PayloadSource payloadSource;
+    private long payloadSize;
 
     public HttrackRecord(String filename, LocalDateTime timestamp, String url, String mime, String requestHeader,
                          String responseHeader, String referrer, Path path, CacheEntry cacheEntry, int status) {
+        this(filename, timestamp, url, mime, requestHeader, responseHeader, referrer, path, cacheEntry, status, null);
+    }
+
+    /**
+     * @param files snapshot of the crawl directory to check the path against, or null to ask the filesystem
+     */
+    public HttrackRecord(String filename, LocalDateTime timestamp, String url, String mime, String requestHeader,
+                         String responseHeader, String referrer, Path path, CacheEntry cacheEntry, int status,
+                         FileIndex files) {
         this.filename = filename;
         this.timestamp = timestamp;
         this.url = url;
@@ -55,9 +67,29 @@ public class HttrackRecord {
         this.path = path;
         this.cacheEntry = cacheEntry;
         this.status = status;
+        this.files = files;
         fixupDelayedPath();
     }
 
+    /**
+     * Supplies the payload of a record when it doesn't come from the crawl directory or cache.
+     */
+    public interface PayloadSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Returns a copy of this record whose payload is read from the given source instead of its file. Used when
+     * streaming files out of an archive.
+     */
+    public HttrackRecord withPayload(long size, PayloadSource source) {
+        HttrackRecord copy = new HttrackRecord(filename, timestamp, url, mime, requestHeader, responseHeader,
+                referrer, null, cacheEntry, status);
+        copy.payloadSize = size;
+        copy.payloadSource = source;
+        return copy;
+    }
+
     public String getFilename() {
         return filename;
     }
@@ -86,28 +118,97 @@ public class HttrackRecord {
         return referrer;
     }
 
+    /**
+     * The file in the crawl directory holding the payload, or null if there isn't one.
+     */
+    public Path getPath() {
+        return path;
+    }
+
     public InputStream openStream() throws IOException {
         if (hasCacheData()) {
             return cacheEntry.openStream();
-        } else if (path != null && Files.isRegularFile(path)) {
+        } else if (payloadSource != null) {
+            return payloadSource.open();
+        } else if (path != null && isRegularFile(path)) {
             return Files.newInputStream(path);
         } else {
             return new ByteArrayInputStream(new byte[0]);
         }
     }
 
+    /**
+     * Returns the location of the payload if it can be copied directly from a file without decoding,
+     * otherwise null.
+     */
+    public FileRegion getFileRegion() throws IOException {
+        if (hasCacheData()) {
+            return cacheEntry.getFileRegion();
+        } else if (path != null && HtsUtil.isLocal(path) && isRegularFile(path)) {
+            return new FileRegion(path, 0, fileSize(path));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the payload as a raw deflate stream if it's stored deflated in the cache, otherwise returns null.
+     */
+    public InputStream openDeflatedStream() throws IOException {
+        return hasCacheData() ? cacheEntry.openDeflatedStream() : null;
+    }
+
+    /**
+     * The offset of the payload in the cache file if it's read from the cache, otherwise -1.
+     */
+    public long getCacheOffset() {
+        return hasCacheData() ? cacheEntry.getStorageOffset() : -1;
+    }
+
+    /**
+     * The number of bytes the payload takes up where it's stored, which is less than its size if it's compressed in
+     * the cache, or -1 if that isn't known without reading the cache.
+     */
+    public long getStoredSize() throws IOException {
+        if (hasCacheData()) {
+            return cacheEntry.getStoredSize();
+        }
+        return getSize();
+    }
+
+    /**
+     * Opens the payload's bytes as they're stored, compressed or not, such as to bring them into the page cache
+     * ahead of time. Returns null if they can't be read without decoding them.
+     */
+    public InputStream openStoredStream() throws IOException {
+        InputStream stream = openDeflatedStream();
+        if (stream != null) return stream;
+        FileRegion region = getFileRegion();
+        return region == null ? null : region.openStream();
+    }
+
     public long getSize() throws IOException {
         if (hasCacheData()) {
             return cacheEntry.getSize();
-        } else if (path != null && Files.isRegularFile(path)) {
-            return Files.size(path);
+        } else if (payloadSource != null) {
+            return payloadSize;
+        } else if (path != null && isRegularFile(path)) {
+            return fileSize(path);
         } else {
             return 0;
         }
     }
 
     public boolean exists() {
-        return hasCacheData() || path != null && Files.isRegularFile(path);
+        return hasCacheData() || payloadSource != null || path != null && isRegularFile(path);
+    }
+
+    private boolean isRegularFile(Path path) {
+        return files == null ? Files.isRegularFile(path) : files.isRegularFile(path);
+    }
+
+    private long fileSize(Path path) throws IOException {
+        return files == null ? Files.size(path) : files.size(path);
     }
 
     private static final Pattern RE_DELAYED = Pattern.compile("\\.([a-z0-9]+)\\.delayed$");
@@ -117,7 +218,7 @@ public class HttrackRecord {
      * a .html though so use that instead if present.
      */
     private void fixupDelayedPath() {
-        if (path == null || hasCacheData() || !path.toString().endsWith(".delayed") || Files.isRegularFile(path)) return;
+        if (path == null || hasCacheData() || !path.toString().endsWith(".delayed") || isRegularFile(path)) return;
         Matcher m = RE_DELAYED.matcher(path.toString());
         if (!m.find()) return;
         String hash = m.group(1);
@@ -125,11 +226,11 @@ public class HttrackRecord {
             hash = hash.substring(hash.length() - 4);
         }
         String extension = mime.startsWith("text/html") ? ".html" : url.replaceFirst(".*\\.", ".");
-        Path fixedPath = Paths.get(m.replaceFirst(hash + extension));
-        if (!Files.isRegularFile(fixedPath)) { // try the bare version too
-            fixedPath = Paths.get(m.replaceFirst(extension));
+        Path fixedPath = path.getFileSystem().getPath(m.replaceFirst(hash + extension));
+        if (!isRegularFile(fixedPath)) { // try the bare version too
+            fixedPath = path.getFileSystem().getPath(m.replaceFirst(extension));
         }
-        if (!Files.isRegularFile(fixedPath)) {
+        if (!isRegularFile(fixedPath)) {
             return;
         }
         String fixedFilename = Paths.get(filename).getParent().resolve(fixedPath.getFileName()).toString();
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * The positions of the request and response headers in hts-ioinfo.txt. On large crawls this file can be tens of
+ * gigabytes so rather than holding the headers in memory we only keep the byte offset of each record, queued by
+ * a hash of its key, and parse the header again from the memory mapped file when it's polled.
+ * <p>
+ * The keys are the URLs with the scheme stripped, which may be shared by more than one record (typically an
+ * http:// redirect to https://). Records with the same key are returned in the order they appear in the file.
+ */
+class IoinfoIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(IoinfoIndex.class);
+
+    private final MappedFile file;
+    private final Function<String, String> keyFunction;
+    private final OffsetQueues requests = new OffsetQueues();
+    private final OffsetQueues responses = new OffsetQueues();
+
+    /**
+     * @param keyFunction converts the URL of a record to its key
+     */
+    IoinfoIndex(Path path, Function<String, String> keyFunction) throws IOException {
+        this.file = new MappedFile(path);
+        this.keyFunction = keyFunction;
+        try (HtsIoinfoParser parser = new HtsIoinfoParser(file.openStream(0))) {
+            while (parser.parseRecord()) {
+                String url = parser.url;
+                if (url.startsWith("http://") || url.startsWith("https://")) {
+                    log.warn("URL in hts-ioinfo.txt unexpectedly has a scheme. We may not be handling this case correctly.");
+                }
+                (parser.request ? requests : responses).add(hash(keyFunction.apply(url)), parser.offset);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        log.debug("Indexed {} requests and {} responses in hts-ioinfo.txt", requests.size, responses.size);
+    }
+
+    /**
+     * Removes and returns the first unused request header with the given key, or null if there are none left.
+     */
+    String pollRequest(String key) throws IOException {
+        return poll(requests, true, key);
+    }
+
+    /**
+     * Removes and returns the first unused response header with the given key, or null if there are none left.
+     */
+    String pollResponse(String key) throws IOException {
+        return poll(responses, false, key);
+    }
+
+    private String poll(OffsetQueues queues, boolean request, String key) throws IOException {
+        int keyNumber = queues.find(hash(key));
+        if (keyNumber < 0) return null;
+        // normally the first record matches, the others are only checked if two keys have the same hash
+        int previous = -1;
+        for (int record = queues.heads[keyNumber]; record >= 0; previous = record, record = queues.next[record]) {
+            long offset = queues.offsets[record];
+            HtsIoinfoParser parser = new HtsIoinfoParser(file.openStream(offset), offset, 1024);
+            if (!parser.parseRecord() || parser.request != request) {
+                throw new IOException("hts-ioinfo.txt changed while reading it");
+            }
+            if (keyFunction.apply(parser.url).equals(key)) {
+                queues.remove(keyNumber, record, previous);
+                return parser.header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key's characters.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * A FIFO queue of record offsets for each key hash. The records are kept in primitive arrays in file order,
+     * each linked to the next record with the same hash. An open addressing hash table maps each hash to the head
+     * and tail of its list.
+     */
+    private static class OffsetQueues {
+        long[] offsets = new long[1024];
+        int[] next = new int[1024];
+        int size = 0;
+
+        // one entry per distinct hash
+        private long[] hashes = new long[1024];
+        int[] heads = new int[1024];
+        private int[] tails = new int[1024];
+        private int keys = 0;
+
+        // hash table of key number + 1, zero for an empty slot
+        private int[] slots = new int[2048];
+
+        void add(long hash, long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+            }
+            int record = size++;
+            offsets[record] = offset;
+            next[record] = -1;
+
+            int key = find(hash);
+            if (key < 0) {
+                key = addKey(hash);
+                heads[key] = record;
+            } else if (heads[key] < 0) {
+                heads[key] = record;
+            } else {
+                next[tails[key]] = record;
+            }
+            tails[key] = record;
+        }
+
+        private int addKey(long hash) {
+            if (keys == hashes.length) {
+                hashes = Arrays.copyOf(hashes, keys * 2);
+                heads = Arrays.copyOf(heads, keys * 2);
+                tails = Arrays.copyOf(tails, keys * 2);
+            }
+            if ((keys + 1) * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int key = 0; key < keys; key++) {
+                    slots[emptySlot(hashes[key])] = key + 1;
+                }
+            }
+            int key = keys++;
+            hashes[key] = hash;
+            slots[emptySlot(hash)] = key + 1;
+            return key;
+        }
+
+        private int emptySlot(long hash) {
+            int mask = slots.length - 1;
+            int i = spread(hash) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            return i;
+        }
+
+        /**
+         * Returns the key number for the hash, or -1 if it's not present.
+         */
+        int find(long hash) {
+            int mask = slots.length - 1;
+            for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                int key = slots[i] - 1;
+                if (hashes[key] == hash) return key;
+            }
+            return -1;
+        }
+
+        private static int spread(long hash) {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        /**
+         * Unlinks a record from its key's list given the record before it, or -1 if it's the head.
+         */
+        void remove(int key, int record, int previous) {
+            if (previous < 0) {
+                heads[key] = next[record];
+            } else {
+                next[previous] = next[record];
+            }
+            if (tails[key] == record) {
+                tails[key] = previous;
+            }
+        }
+    }
+}
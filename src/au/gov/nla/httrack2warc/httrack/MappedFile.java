@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * A read-only memory mapping of a whole file. A single mapping is limited to 2GB so larger files are mapped in
+ * segments and the streams move from one segment to the next as needed.
+ */
+class MappedFile implements Closeable {
+    static final int SEGMENT_BITS = 30;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int segmentBits;
+    private final long size;
+    private final Path tempCopy;
+
+    MappedFile(Path path) throws IOException {
+        this(path, SEGMENT_BITS);
+    }
+
+    MappedFile(Path path, int segmentBits) throws IOException {
+        this.segmentBits = segmentBits;
+        // a file stored uncompressed in a zip crawl can be mapped from the zip itself, but other files in archive
+        // filesystems can't be mapped so map a temporary copy instead
+        long[] region = HtsUtil.isLocal(path) ? null : storedRegion(path);
+        tempCopy = HtsUtil.isLocal(path) || region != null ? null : HtsUtil.copyToTempFile(path);
+        try {
+            channel = FileChannel.open(region != null ? HtsUtil.archiveFile(path) : tempCopy != null ? tempCopy : path);
+        } catch (IOException | RuntimeException e) {
+            if (tempCopy != null) Files.deleteIfExists(tempCopy);
+            throw e;
+        }
+        try {
+            long offset = region == null ? 0 : region[0];
+            size = region == null ? channel.size() : region[1];
+            long segmentSize = 1L << segmentBits;
+            segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) >>> segmentBits)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << segmentBits;
+                segments[i] = channel.map(READ_ONLY, offset + start, Math.min(segmentSize, size - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the offset and length of a file's data within the local zip file it's in if it's stored there
+     * uncompressed, otherwise null.
+     */
+    private static long[] storedRegion(Path path) throws IOException {
+        Path zipPath = HtsUtil.archiveFile(path);
+        if (zipPath == null) return null;
+        try (MappedFile zip = new MappedFile(zipPath)) {
+            ZipDirectory directory = new ZipDirectory(zip, zipPath);
+            ZipDirectory.Entry entry = directory.find(path.toAbsolutePath().toString().substring(1));
+            if (entry == null || entry.method != ZipEntry.STORED) return null;
+            return new long[]{directory.dataOffset(entry), entry.size};
+        }
+    }
+
+    /**
+     * Returns true if a temporary copy of the file is mapped rather than the file itself.
+     */
+    boolean isTemporaryCopy() {
+        return tempCopy != null;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Opens a stream that reads the file from the given offset to the end. Streams are independent of each other
+     * and closing them has no effect.
+     */
+    InputStream openStream(long offset) {
+        return new InputStream() {
+            private ByteBuffer current = ByteBuffer.allocate(0);
+            private long position = offset;
+
+            @Override
+            public int read() {
+                if (!ensureAvailable()) return -1;
+                position++;
+                return current.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!ensureAvailable()) return -1;
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                position += n;
+                return n;
+            }
+
+            private boolean ensureAvailable() {
+                if (current.hasRemaining()) return true;
+                if (position >= size) return false;
+                int segment = (int) (position >>> segmentBits);
+                current = segments[segment].duplicate();
+                current.position((int) (position - ((long) segment << segmentBits)));
+                return current.hasRemaining();
+            }
+        };
+    }
+
+    /**
+     * Copies a range of the file into a new buffer, for parsing fixed-size binary headers.
+     */
+    ByteBuffer read(long position, int length) throws EOFException {
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Read of " + length + " bytes at " + position + " is outside the file");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            long start = position + buffer.position();
+            int segment = (int) (start >>> segmentBits);
+            ByteBuffer source = segments[segment].duplicate();
+            source.position((int) (start - ((long) segment << segmentBits)));
+            source.limit(Math.min(source.limit(), source.position() + buffer.remaining()));
+            buffer.put(source);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (tempCopy != null) Files.deleteIfExists(tempCopy);
+        }
+    }
+}
@@ -16,26 +16,41 @@
 
 package au.gov.nla.httrack2warc.httrack;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Parser for the .ndx and .dat file cache format used in HTTrack versions older than 3.31.
  */
 class NdxCache implements Cache {
+    private static final Logger log = LoggerFactory.getLogger(NdxCache.class);
 
-    private final Map<String,Long> entries = new HashMap<>();
+    private final CacheIndex index = new CacheIndex();
+    private final CanonicalUrls canonicalUrls;
     private final Path datFile;
+    private final MappedFile ndx;
+    private final MappedFile dat;
 
-    NdxCache(Path dir) throws IOException {
+    NdxCache(Path dir, CanonicalUrls canonicalUrls) throws IOException {
+        this.canonicalUrls = canonicalUrls;
         datFile = dir.resolve("hts-cache/new.dat");
-        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve("hts-cache/new.ndx"))))) {
+        // the index keeps only the offset of each url's entry in new.ndx and the entry is reread from the mapping
+        // on lookup, so the url strings and positions don't need to be held in memory
+        ndx = new MappedFile(dir.resolve("hts-cache/new.ndx"));
+        // headers are parsed and payloads read straight from one shared mapping rather than opening the file for
+        // every entry, and the mapping's streams are independent so worker threads can read entries concurrently
+        try {
+            dat = new MappedFile(datFile);
+        } catch (IOException | RuntimeException e) {
+            ndx.close();
+            throw e;
+        }
+        CountingStream counter = new CountingStream(new BufferedInputStream(ndx.openStream(0)), Long.MAX_VALUE);
+        try (DataInputStream stream = new DataInputStream(counter)) {
             String version = readString(stream);
             if (!version.startsWith("CACHE-1.")) {
                 throw new IOException("Unsupported cache version: " + version);
@@ -44,17 +59,28 @@ class NdxCache implements Cache {
             String lastModified = readString(stream);
 
             for (;;) {
+                long offset = counter.count;
                 String hostAndPath = readString(stream);
                 if (hostAndPath == null) break;
-                long position = Long.parseLong(stream.readLine());
-                int i = hostAndPath.indexOf('\n');
-                String host = hostAndPath.substring(0, i);
-                String path = hostAndPath.substring(i + 1, hostAndPath.length() - 1);
-                String url = host + path;
-                String fixedUrl = HtsUtil.fixupUrl(url);
-                entries.put(fixedUrl, position);
+                stream.readLine(); // position
+                // not through canonicalUrls, caching every URL in the cache would just evict the useful ones
+                index.add(HtsUtil.fixupUrl(url(hostAndPath)), offset);
             }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
         }
+        log.debug("Indexed {} cache entries in {} KB", index.size(), index.footprint() / 1024);
+    }
+
+    /**
+     * Joins the "host\npath\n" form used in new.ndx into a url.
+     */
+    private static String url(String hostAndPath) {
+        int i = hostAndPath.indexOf('\n');
+        String host = hostAndPath.substring(0, i);
+        String path = hostAndPath.substring(i + 1, hostAndPath.length() - 1);
+        return host + path;
     }
 
     /**
@@ -71,10 +97,29 @@ class NdxCache implements Cache {
     }
 
     @Override
-    public CacheEntry getEntry(String url) {
-        Long position = entries.get(url);
-        if (position == null) return null;
-        return new Entry(position);
+    public CacheEntry getEntry(String url) throws IOException {
+        long[] position = new long[1];
+        long offset = index.find(url, candidate -> {
+            DataInputStream stream = new DataInputStream(ndx.openStream(candidate));
+            if (!canonicalUrls.fixup(url(readString(stream))).equals(url)) return false;
+            position[0] = Long.parseLong(stream.readLine());
+            return true;
+        });
+        if (offset < 0) return null;
+        return new Entry(position[0]);
+    }
+
+    @Override
+    public void forEach(EntryConsumer action) throws IOException {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(ndx.openStream(0)))) {
+            readString(stream); // version
+            readString(stream); // last modified
+            for (;;) {
+                String hostAndPath = readString(stream);
+                if (hostAndPath == null) break;
+                action.accept(url(hostAndPath), new Entry(Long.parseLong(stream.readLine())));
+            }
+        }
     }
 
     private class Entry implements CacheEntry {
@@ -93,49 +138,61 @@ class NdxCache implements Cache {
             return dataLen;
         }
 
-        private void parseDatHeader() throws IOException {
+        private synchronized void parseDatHeader() throws IOException {
             if (parsed) return;
-            try (SeekableByteChannel channel = Files.newByteChannel(datFile)) {
-                channel.position(Math.abs(position));
-                CountingStream countingStream = new CountingStream(new BufferedInputStream(Channels.newInputStream(channel)), Long.MAX_VALUE);
-                DataInputStream stream = new DataInputStream(countingStream);
-                String status = readString(stream);
-                String size = readString(stream);
-                String msg = readString(stream);
-                String contentType = readString(stream);
-                String lastModified = readString(stream);
-                String etag = readString(stream);
-
-                for (;;) {
-                    String line = readString(stream);
-                    if (line.equals("HTS")) break;
-                    if (line.equals("SD")) {
-                        readString(stream); // supplementary data
-                    }
-                }
+            CountingStream countingStream = new CountingStream(dat.openStream(Math.abs(position)), Long.MAX_VALUE);
+            DataInputStream stream = new DataInputStream(countingStream);
+            String status = readString(stream);
+            String size = readString(stream);
+            String msg = readString(stream);
+            String contentType = readString(stream);
+            String lastModified = readString(stream);
+            String etag = readString(stream);
 
-                dataLen = Long.parseLong(readString(stream));
-                headerLen = countingStream.count;
-                parsed = true;
+            for (;;) {
+                String line = readString(stream);
+                if (line == null) throw new EOFException("new.dat entry at " + position + " is truncated");
+                if (line.equals("HTS")) break;
+                if (line.equals("SD")) {
+                    readString(stream); // supplementary data
+                }
             }
+
+            dataLen = Long.parseLong(readString(stream));
+            headerLen = countingStream.count;
+            parsed = true;
         }
 
         @Override
         public InputStream openStream() throws IOException {
             parseDatHeader();
-            SeekableByteChannel channel = Files.newByteChannel(datFile);
-            channel.position(Math.abs(position) + headerLen);
-            return new CountingStream(Channels.newInputStream(channel), dataLen);
+            return new CountingStream(dat.openStream(Math.abs(position) + headerLen), dataLen);
         }
 
         @Override
         public boolean hasData() {
             return position >= 0;
         }
+
+        @Override
+        public FileRegion getFileRegion() throws IOException {
+            if (!HtsUtil.isLocal(datFile)) return null;
+            parseDatHeader();
+            return new FileRegion(datFile, Math.abs(position) + headerLen, dataLen);
+        }
+
+        @Override
+        public long getStorageOffset() {
+            return Math.abs(position);
+        }
     }
     @Override
     public void close() throws IOException {
-
+        try {
+            ndx.close();
+        } finally {
+            if (dat != null) dat.close();
+        }
     }
 
     static class CountingStream extends FilterInputStream {
@@ -16,66 +16,200 @@
 
 package au.gov.nla.httrack2warc.httrack;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipException;
 
 /**
  * Parser for the zip-based cache format used in HTTrack 3.31 and earlier.
  * The format is described at https://www.httrack.com/html/cache.html
+ * <p>
+ * The zip is memory mapped and read directly rather than through java.util.zip.ZipFile, whose streams all share
+ * one native handle under a lock. Each entry stream has its own Inflater so many threads can decompress entries at
+ * once. The central directory isn't indexed until the first lookup and the entry names are canonicalised in
+ * parallel, as for caches with millions of entries that's the bulk of the startup time.
  */
 class ZipCache implements Cache {
-    private final ZipFile zipFile;
-    private final Map<String,ZipEntry> entries = new HashMap<>();
-
-    public ZipCache(Path zipPath) throws IOException {
-        this.zipFile = new ZipFile(zipPath.toFile());
-        Enumeration<? extends ZipEntry> e = zipFile.entries();
-        while (e.hasMoreElements()) {
-            ZipEntry entry = e.nextElement();
-            String url = entry.getName();
-            url = HtsUtil.fixupUrl(url);
-            entries.put(url, entry);
-        }
+    private static final Logger log = LoggerFactory.getLogger(ZipCache.class);
+
+    private final Path zipPath;
+    private final MappedFile zip;
+    private final ZipDirectory directory;
+    private final CanonicalUrls canonicalUrls;
+    private volatile CacheIndex index;
+
+    public ZipCache(Path zipPath, CanonicalUrls canonicalUrls) throws IOException {
+        this.zipPath = zipPath;
+        this.canonicalUrls = canonicalUrls;
+        this.zip = new MappedFile(zipPath);
+        this.directory = new ZipDirectory(zip, zipPath);
     }
 
     @Override
     public void close() throws IOException {
-        zipFile.close();
+        zip.close();
+    }
+
+    @Override
+    public CacheEntry getEntry(String url) throws IOException {
+        ZipDirectory.Entry[] match = new ZipDirectory.Entry[1];
+        long offset = index().find(url, candidate -> {
+            ZipDirectory.Entry entry = directory.readEntry(candidate);
+            if (!canonicalUrls.fixup(entry.name).equals(url)) return false;
+            match[0] = entry;
+            return true;
+        });
+        return offset < 0 ? null : new Entry(match[0]);
     }
 
     @Override
-    public CacheEntry getEntry(String url) {
-        ZipEntry entry = entries.get(url); // zipFile.getEntry(url);
-        return entry == null ? null : new Entry(entry);
+    public void forEach(EntryConsumer action) throws IOException {
+        for (long offset : directory.scan()) {
+            ZipDirectory.Entry entry = directory.readEntry(offset);
+            action.accept(entry.name, new Entry(entry));
+        }
+    }
+
+    private CacheIndex index() throws IOException {
+        CacheIndex index = this.index;
+        if (index == null) {
+            synchronized (this) {
+                index = this.index;
+                if (index == null) {
+                    index = buildIndex();
+                    this.index = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Indexes each entry by the offset of its central directory record. The records are found with a sequential
+     * scan and then the names are read and canonicalised in parallel. HtsUtil.fixupUrl is called directly rather
+     * than through CanonicalUrls so the threads don't contend on its lock and flood it with every URL in the cache.
+     */
+    private CacheIndex buildIndex() throws IOException {
+        long start = System.nanoTime();
+        long[] offsets = directory.scan();
+        long[] hashes = new long[offsets.length];
+        try {
+            IntStream.range(0, offsets.length).parallel().forEach(i -> {
+                try {
+                    hashes[i] = CacheIndex.hash(HtsUtil.fixupUrl(directory.readName(offsets[i])));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        CacheIndex index = new CacheIndex(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            index.add(hashes[i], offsets[i]);
+        }
+        log.debug("Indexed {} cache entries in {} KB in {} ms", index.size(), index.footprint() / 1024,
+                (System.nanoTime() - start) / 1000000);
+        return index;
     }
 
     private class Entry implements CacheEntry {
-        private final ZipEntry entry;
+        private final ZipDirectory.Entry entry;
 
-        Entry(ZipEntry entry) {
-            this.entry = Objects.requireNonNull(entry);
+        Entry(ZipDirectory.Entry entry) {
+            this.entry = entry;
         }
 
         @Override
         public long getSize() {
-            return entry.getSize();
+            return entry.size;
         }
 
         @Override
         public InputStream openStream() throws IOException {
-            return zipFile.getInputStream(entry);
+            InputStream raw = new NdxCache.CountingStream(zip.openStream(directory.dataOffset(entry)), entry.compressedSize);
+            switch (entry.method) {
+                case ZipEntry.STORED:
+                    return raw;
+                case ZipEntry.DEFLATED:
+                    return new EntryInflaterStream(raw, entry.compressedSize);
+                default:
+                    throw new ZipException("Unsupported compression method " + entry.method + " for " +
+                            entry.name + " in " + zipPath);
+            }
         }
 
         @Override
         public boolean hasData() {
             return getSize() > 0;
         }
+
+        @Override
+        public InputStream openDeflatedStream() throws IOException {
+            if (entry.method != ZipEntry.DEFLATED) return null;
+            return new NdxCache.CountingStream(zip.openStream(directory.dataOffset(entry)), entry.compressedSize);
+        }
+
+        @Override
+        public FileRegion getFileRegion() throws IOException {
+            if (entry.method != ZipEntry.STORED || !HtsUtil.isLocal(zipPath)) return null;
+            return new FileRegion(zipPath, directory.dataOffset(entry), entry.size);
+        }
+
+        @Override
+        public long getStorageOffset() {
+            return entry.localHeaderOffset;
+        }
+
+        @Override
+        public long getStoredSize() {
+            return entry.compressedSize;
+        }
+    }
+
+    /**
+     * Inflates a raw deflate stream with an Inflater of its own which is released on close.
+     */
+    private static class EntryInflaterStream extends InflaterInputStream {
+        private boolean eof = false;
+
+        EntryInflaterStream(InputStream in, long compressedSize) {
+            super(in, new Inflater(true), (int) Math.min(Math.max(compressedSize + 1, 64), 8192));
+        }
+
+        /**
+         * Like ZipFile, supplies a dummy byte after the end of the input as the inflater may need one to finish
+         * when headers are omitted.
+         */
+        @Override
+        protected void fill() throws IOException {
+            if (eof) throw new EOFException("Unexpected end of deflated entry");
+            len = in.read(buf, 0, buf.length);
+            if (len < 0) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
     }
 }
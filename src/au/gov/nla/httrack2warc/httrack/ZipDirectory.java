@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the central directory and local headers of a memory mapped zip file.
+ */
+class ZipDirectory {
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int LOC_HEADER_SIZE = 30;
+
+    private final MappedFile zip;
+    private final Path zipPath;
+
+    ZipDirectory(MappedFile zip, Path zipPath) {
+        this.zip = zip;
+        this.zipPath = zipPath;
+    }
+
+    /**
+     * Returns the offset of every central directory record.
+     */
+    long[] scan() throws IOException {
+        long[] directory = locateCentralDirectory();
+        long end = directory[0] + directory[1];
+        long[] offsets = new long[(int) Math.min(Math.max(directory[2], 16), Integer.MAX_VALUE - 8)];
+        int count = 0;
+        for (long position = directory[0]; position < end; ) {
+            ByteBuffer header = readAt(position, CEN_HEADER_SIZE);
+            if (header.getInt(0) != 0x02014b50) {
+                throw new ZipException("Bad central directory record at " + position + " in " + zipPath);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = position;
+            position += CEN_HEADER_SIZE + (header.getShort(28) & 0xffff) + (header.getShort(30) & 0xffff) +
+                    (header.getShort(32) & 0xffff);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Finds the offset, size and number of entries of the central directory from the end of central directory
+     * record, following the zip64 locator if there is one.
+     */
+    private long[] locateCentralDirectory() throws IOException {
+        long tailStart = Math.max(0, zip.size() - 65557);
+        ByteBuffer tail = readAt(tailStart, (int) (zip.size() - tailStart));
+        for (int eocd = tail.limit() - 22; eocd >= 0; eocd--) {
+            if (tail.getInt(eocd) != 0x06054b50) continue;
+            if (eocd >= 20 && tail.getInt(eocd - 20) == 0x07064b50) {
+                ByteBuffer eocd64 = readAt(tail.getLong(eocd - 12), 56);
+                if (eocd64.getInt(0) != 0x06064b50) throw new ZipException("Bad zip64 end record in " + zipPath);
+                return new long[]{eocd64.getLong(48), eocd64.getLong(40), eocd64.getLong(32)};
+            }
+            return new long[]{tail.getInt(eocd + 16) & 0xffffffffL, tail.getInt(eocd + 12) & 0xffffffffL,
+                    tail.getShort(eocd + 10) & 0xffff};
+        }
+        throw new ZipException("No end of central directory record in " + zipPath);
+    }
+
+    String readName(long position) throws IOException {
+        int nameLength = readAt(position, CEN_HEADER_SIZE).getShort(28) & 0xffff;
+        return new String(readAt(position + CEN_HEADER_SIZE, nameLength).array(), UTF_8);
+    }
+
+    Entry readEntry(long position) throws IOException {
+        ByteBuffer header = readAt(position, CEN_HEADER_SIZE);
+        if (header.getInt(0) != 0x02014b50) {
+            throw new ZipException("Bad central directory record at " + position + " in " + zipPath);
+        }
+        int method = header.getShort(10) & 0xffff;
+        long compressedSize = header.getInt(20) & 0xffffffffL;
+        long size = header.getInt(24) & 0xffffffffL;
+        int nameLength = header.getShort(28) & 0xffff;
+        int extraLength = header.getShort(30) & 0xffff;
+        long localHeaderOffset = header.getInt(42) & 0xffffffffL;
+        ByteBuffer variable = readAt(position + CEN_HEADER_SIZE, nameLength + extraLength);
+        String name = new String(variable.array(), 0, nameLength, UTF_8);
+        if (size == 0xffffffffL || compressedSize == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+            // the zip64 extra field holds whichever of size, compressed size and offset overflowed, in that order
+            for (int i = nameLength; i + 4 <= variable.limit(); ) {
+                int id = variable.getShort(i) & 0xffff;
+                int length = variable.getShort(i + 2) & 0xffff;
+                if (id == 0x0001) {
+                    int field = i + 4;
+                    if (size == 0xffffffffL) {
+                        size = variable.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = variable.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL) {
+                        localHeaderOffset = variable.getLong(field);
+                    }
+                    break;
+                }
+                i += 4 + length;
+            }
+        }
+        return new Entry(name, method, compressedSize, size, localHeaderOffset);
+    }
+
+    /**
+     * Returns where an entry's data starts. The data follows the local header whose name and extra field lengths can
+     * differ from the central directory's.
+     */
+    long dataOffset(Entry entry) throws IOException {
+        ByteBuffer header = readAt(entry.localHeaderOffset, LOC_HEADER_SIZE);
+        if (header.getInt(0) != 0x04034b50) {
+            throw new ZipException("Bad local header for " + entry.name + " in " + zipPath);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOC_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Finds an entry by name with a scan of the central directory, for looking up a handful of entries.
+     */
+    Entry find(String name) throws IOException {
+        for (long position : scan()) {
+            if (readName(position).equals(name)) {
+                return readEntry(position);
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer readAt(long position, int length) throws EOFException {
+        return zip.read(position, length).order(LITTLE_ENDIAN);
+    }
+
+    static class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BufferedChannelTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void positionTracksBufferedAndTransferredBytes() throws IOException {
+        Random random = new Random(1);
+        byte[] region = new byte[5000];
+        random.nextBytes(region);
+        Path source = temp.newFile().toPath();
+        Files.write(source, region);
+
+        Path target = temp.newFile().toPath();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (BufferedChannel channel = new BufferedChannel(FileChannel.open(target, WRITE), 1024);
+             FileChannel sourceChannel = FileChannel.open(source)) {
+            for (int size : new int[]{10, 500, 600, 2000, 3}) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                channel.write(ByteBuffer.wrap(data));
+                expected.write(data);
+                assertEquals(expected.size(), channel.position());
+            }
+
+            // small regions go through the buffer, large ones straight to the file
+            BufferedChannel.transfer(sourceChannel, 100, 200, channel);
+            expected.write(region, 100, 200);
+            assertEquals(expected.size(), channel.position());
+            BufferedChannel.transfer(sourceChannel, 10, 4000, channel);
+            expected.write(region, 10, 4000);
+            assertEquals(expected.size(), channel.position());
+
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            expected.write(new byte[]{1, 2, 3});
+        }
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(target));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.CanonicalUrls;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class CdxWriterTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static final Instant DATE = Instant.parse("2018-02-02T15:27:22Z");
+    private static final Path WARC = Paths.get("crawl-0.warc.gz");
+
+    @Test
+    public void cdxLinesAreSortedAfterTheHeader() throws IOException {
+        Path file = temp.getRoot().toPath().resolve("test.cdx");
+        try (CdxWriter cdx = new CdxWriter(file)) {
+            cdx.writeLine("http://example.org/b", "text/html", 200, "ABC", DATE, position(100, 250), WARC);
+            cdx.writeLine("http://example.org/a", "image/png", 404, null, DATE, position(0, 100), WARC);
+            cdx.finish();
+        }
+        assertEquals(Arrays.asList(" CDX N b a m s k r M S V g",
+                "http://example.org/a 20180202152722 http://example.org/a image/png 404 - - - 100 0 crawl-0.warc.gz",
+                "http://example.org/b 20180202152722 http://example.org/b text/html 200 ABC - - 150 100 crawl-0.warc.gz"),
+                Files.readAllLines(file));
+    }
+
+    @Test
+    public void cdxjLinesAreKeyedBySurtWithJsonFields() throws IOException {
+        Path file = temp.getRoot().toPath().resolve("test.cdxj");
+        try (CdxWriter cdx = new CdxWriter(file, ExternalSort.DEFAULT_MEMORY_BUDGET, CdxWriter.Format.CDXJ,
+                new CanonicalUrls())) {
+            cdx.writeLine("http://www.Example.org/z?b=2&a=1", "text/html; charset=\"utf-8\"", 200, "ABC", DATE,
+                    position(100, 250), WARC);
+            cdx.writeLine("http://example.org/a\\b", null, 302, null, DATE, position(0, 100), WARC);
+            cdx.finish();
+        }
+        assertEquals(Arrays.asList(
+                "org,example)/a/b 20180202152722 {\"url\": \"http://example.org/a\\\\b\", \"status\": \"302\", " +
+                        "\"length\": \"100\", \"offset\": \"0\", \"filename\": \"crawl-0.warc.gz\"}",
+                "org,example)/z?a=1&b=2 20180202152722 {\"url\": \"http://www.Example.org/z?b=2&a=1\", " +
+                        "\"mime\": \"text/html; charset=\\\"utf-8\\\"\", \"status\": \"200\", \"digest\": \"ABC\", " +
+                        "\"length\": \"150\", \"offset\": \"100\", \"filename\": \"crawl-0.warc.gz\"}"),
+                Files.readAllLines(file));
+    }
+
+    private static WarcWriter.RecordPosition position(long start, long end) {
+        return new WarcWriter.RecordPosition(WARC, start, end);
+    }
+}
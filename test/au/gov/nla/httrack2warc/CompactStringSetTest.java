@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CompactStringSetTest {
+    @Test
+    public void behavesLikeHashSet() {
+        CompactStringSet set = new CompactStringSet();
+        Set<String> expected = new HashSet<>();
+        Random random = new Random(0);
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 300000; i++) longString.append((char) ('a' + i % 26));
+
+        for (int i = 0; i < 50000; i++) {
+            String s = "www.example.org/" + random.nextInt(30000) + (i % 100 == 0 ? "/é中" : "/page.html");
+            assertEquals(s, expected.add(s), set.add(s));
+        }
+        assertTrue(set.add(""));
+        assertFalse(set.add(""));
+        assertTrue(set.add("noslash"));
+        assertTrue(set.add("dir/"));
+        assertTrue(set.add("/"));
+        assertFalse(set.add("dir/"));
+        assertFalse(set.contains("dir"));
+        assertFalse(set.contains("unknown/noslash"));
+        assertTrue(set.add(longString.toString()));
+        assertFalse(set.add(longString.toString()));
+        assertTrue(set.contains(longString.toString()));
+        assertFalse(set.contains(longString.substring(1)));
+        assertFalse(set.contains(null));
+        assertTrue(set.add(null));
+        assertFalse(set.add(null));
+        assertTrue(set.contains(null));
+        assertEquals(expected.size() + 6, set.size());
+
+        for (String s : expected) {
+            assertTrue(set.contains(s));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String s = "www.example.org/" + (30000 + i) + "/page.html";
+            assertFalse(set.contains(s));
+        }
+        assertTrue(set.footprint() > longString.length());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class CompressionTest {
+    @Test
+    public void writeMember() throws IOException {
+        for (Compression compression : Compression.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < 3; i++) {
+                byte[] record = ("record " + i + "\n").getBytes(UTF_8);
+                compression.writeMember(Channels.newChannel(out), stream -> stream.write(record));
+            }
+            assertEquals(compression.name(), "record 0\nrecord 1\nrecord 2\n", decompress(compression, out.toByteArray()));
+        }
+    }
+
+    private static String decompress(Compression compression, byte[] data) throws IOException {
+        InputStream stream = new ByteArrayInputStream(data);
+        if (compression == Compression.GZIP) {
+            stream = new GZIPInputStream(stream);
+        } else if (compression == Compression.ZSTD) {
+            stream = new ZstdInputStream(stream);
+        }
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        WarcRecordWriter.copyStream(stream, decompressed);
+        return decompressed.toString("UTF-8");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExternalSortTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void sortsInByteOrderAcrossManyRuns() throws IOException {
+        Random random = new Random(1);
+        List<byte[]> lines = new ArrayList<>();
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        String[] prefixes = {"http://example.org/", "http://example.org/a", "https://example.org/", "http://é.org/", ""};
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder(prefixes[random.nextInt(prefixes.length)]);
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) (random.nextInt(3) == 0 ? 0x80 + random.nextInt(0x100) : ' ' + random.nextInt(95)));
+            }
+            byte[] line = sb.toString().getBytes(UTF_8);
+            lines.add(line);
+            input.write(line);
+            if (i < 19999) input.write('\n');
+        }
+        // the last line has no newline
+        Path source = temp.newFile().toPath();
+        Files.write(source, input.toByteArray());
+
+        lines.sort((a, b) -> ExternalSort.compare(a, 0, a.length, b, 0, b.length));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] line : lines) {
+            expected.write(line);
+            expected.write('\n');
+        }
+
+        // small enough for dozens of runs and a couple of merge passes
+        Path destination = temp.getRoot().toPath().resolve("sorted");
+        new ExternalSort(20000, 3, 4).sort(source, destination);
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(destination));
+
+        Path inMemory = temp.getRoot().toPath().resolve("sorted-in-memory");
+        new ExternalSort(100 * 1024 * 1024, 2, 64).sort(source, inMemory);
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(inMemory));
+
+        try (Stream<Path> files = Files.list(temp.getRoot().toPath())) {
+            assertEquals("temporary runs should be removed", 0,
+                    files.filter(p -> p.toString().endsWith(".run")).collect(Collectors.toList()).size());
+        }
+    }
+
+    @Test
+    public void linesLongerThanTheBudget() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            longLine.append((char) ('a' + i % 26));
+        }
+        Path source = temp.newFile().toPath();
+        Files.write(source, ("b\n" + longLine + "\n\na\n").getBytes(UTF_8));
+        Path destination = temp.getRoot().toPath().resolve("sorted");
+        new ExternalSort(1000, 1, 2).sort(source, destination);
+        assertEquals("\na\n" + longLine + "\nb\n", new String(Files.readAllBytes(destination), UTF_8));
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        Path source = temp.newFile().toPath();
+        Path destination = temp.getRoot().toPath().resolve("sorted");
+        new ExternalSort(1000).sort(source, destination);
+        assertEquals(0, Files.size(destination));
+    }
+}
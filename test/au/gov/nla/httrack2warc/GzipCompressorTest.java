@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.CacheEntry;
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GzipCompressorTest {
+    @Test
+    public void membersAreValidAndDeflatersAreReused() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        try (GzipCompressor compressor = new GzipCompressor(1, Deflater.FILTERED)) {
+            for (int i = 0; i < 10; i++) {
+                String text = "record " + i + " " + new String(new char[i * 1000]).replace('\0', 'x') + "\n";
+                expected.append(text);
+                compressor.writeMember(Channels.newChannel(out), stream -> stream.write(text.getBytes(UTF_8)));
+            }
+            assertEquals(1, compressor.poolSize());
+        }
+        assertEquals("OS byte as written by Java 8's GZIPOutputStream", 0, out.toByteArray()[9]);
+
+        try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                decompressed.write(buffer, 0, n);
+            }
+            assertEquals(expected.toString(), decompressed.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void compressedPayloadsUseFastDeflate() throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (GzipCompressor compressor = new GzipCompressor(9, Deflater.DEFAULT_STRATEGY, true)) {
+            assertNull(compressor.statistics());
+            for (int i = 0; i < 40; i++) {
+                byte[] data = new byte[i * 500];
+                if (i % 2 == 0) {
+                    random.nextBytes(data);
+                } else {
+                    Arrays.fill(data, (byte) 'x');
+                }
+                expected.write(data);
+                compressor.writeMember(Channels.newChannel(out), stream -> stream.write(data),
+                        i % 2 == 0 ? "image/jpeg" : "text/html; charset=utf-8");
+            }
+            String statistics = compressor.statistics();
+            assertNotNull(statistics);
+            assertTrue(statistics, statistics.startsWith("Used fast deflate for 20 already compressed payloads"));
+            assertTrue(statistics, statistics.contains("seconds of CPU time"));
+        }
+
+        try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                decompressed.write(buffer, 0, n);
+            }
+            assertArrayEquals(expected.toByteArray(), decompressed.toByteArray());
+        }
+    }
+
+    @Test
+    public void savingsAreNotSampledByDefault() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        try (GzipCompressor compressor = new GzipCompressor(9, Deflater.DEFAULT_STRATEGY, false)) {
+            for (int i = 0; i < 20; i++) {
+                compressor.writeMember(Channels.newChannel(new ByteArrayOutputStream()), stream -> stream.write(data),
+                        "image/jpeg");
+            }
+            String statistics = compressor.statistics();
+            assertEquals("Used fast deflate for 20 already compressed payloads (2.0 MB)", statistics);
+        }
+    }
+
+    @Test
+    public void splicedDeflateStreamsRoundTrip() throws IOException {
+        Random random = new Random(7);
+        int[][] settings = {{0, Deflater.DEFAULT_STRATEGY}, {1, Deflater.DEFAULT_STRATEGY},
+                {6, Deflater.DEFAULT_STRATEGY}, {9, Deflater.FILTERED}, {6, Deflater.HUFFMAN_ONLY}};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (GzipCompressor compressor = new GzipCompressor(6, Deflater.DEFAULT_STRATEGY)) {
+            for (int[] setting : settings) {
+                Set<Integer> endBitOffsets = new TreeSet<>();
+                boolean stored = setting[0] == 0;
+                int length = 0;
+                for (int round = 0; round < 1000; round++) {
+                    byte[] payload = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        payload[i] = (byte) ('a' + random.nextInt(i % 3 == 0 ? 26 : 4));
+                    }
+                    byte[] deflated = deflate(payload, setting[0], setting[1]);
+                    DeflatedBody body = DeflatedBody.read(new HttrackRecord("x", null, "http://example.org/",
+                            "text/plain", "", "", null, null, new DeflatedEntry(deflated), 200));
+                    assertNotNull(body);
+                    assertEquals(length, body.length);
+                    assertEquals(Digests.sha1(new ByteArrayInputStream(payload)), body.digest);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    assertEquals(crc.getValue(), body.crc);
+                    endBitOffsets.add((int) (body.endBit & 7));
+
+                    byte[] prefix = ("prefix " + length + "\n").getBytes(UTF_8);
+                    byte[] suffix = "\r\n\r\n".getBytes(UTF_8);
+                    expected.write(prefix);
+                    expected.write(payload);
+                    expected.write(suffix);
+                    compressor.writeMember(Channels.newChannel(out), stream -> stream.write(prefix), body,
+                            stream -> stream.write(suffix), "text/plain");
+
+                    // a spread of lengths, then more until the streams have ended at every bit position in a byte
+                    if (length >= 100000 && (stored || endBitOffsets.size() == 8)) break;
+                    length = length < 100000 ? length * 3 / 2 + random.nextInt(50) : 100000 + random.nextInt(2000);
+                }
+                if (!stored) { // stored blocks always end on a byte boundary
+                    assertEquals(new TreeSet<>(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7)), endBitOffsets);
+                }
+            }
+            String statistics = compressor.statistics();
+            assertNotNull(statistics);
+            assertTrue(statistics, statistics.contains("Reused the deflate streams of"));
+        }
+
+        // GZIPInputStream checks each member's CRC and length against the decompressed data
+        try (InputStream stream = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                decompressed.write(buffer, 0, n);
+            }
+            assertArrayEquals(expected.toByteArray(), decompressed.toByteArray());
+        }
+    }
+
+    @Test
+    public void crc32CombineMatchesConcatenation() {
+        Random random = new Random(3);
+        for (int length : new int[]{0, 1, 7, 1000, 65537}) {
+            byte[] first = new byte[random.nextInt(100)];
+            byte[] second = new byte[length];
+            random.nextBytes(first);
+            random.nextBytes(second);
+            CRC32 crc1 = new CRC32();
+            crc1.update(first);
+            CRC32 crc2 = new CRC32();
+            crc2.update(second);
+            CRC32 both = new CRC32();
+            both.update(first);
+            both.update(second);
+            assertEquals(both.getValue(), GzipCompressor.crc32Combine(crc1.getValue(), crc2.getValue(), length));
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int level, int strategy) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setStrategy(strategy);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static class DeflatedEntry implements CacheEntry {
+        private final byte[] deflated;
+
+        DeflatedEntry(byte[] deflated) {
+            this.deflated = deflated;
+        }
+
+        @Override
+        public long getSize() {
+            return -1;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new InflaterInputStream(new ByteArrayInputStream(deflated), new Inflater(true));
+        }
+
+        @Override
+        public InputStream openDeflatedStream() {
+            return new ByteArrayInputStream(deflated);
+        }
+
+        @Override
+        public boolean hasData() {
+            return true;
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLevel() {
+        new GzipCompressor(10, Deflater.DEFAULT_STRATEGY);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Random;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderEncoderTest {
+    @Test
+    public void matchesStringEncoding() {
+        HeaderEncoder encoder = new HeaderEncoder();
+        String[] strings = {"", "http://example.org/", "café € 😀", "bad \ud800 surrogate \udc00",
+                "\ud83d"};
+        for (String s : strings) {
+            assertArrayEquals(s, s.getBytes(UTF_8), encoder.reset().utf8(s).toByteArray());
+            assertArrayEquals(s, s.getBytes(ISO_8859_1), encoder.reset().latin1(s).toByteArray());
+            assertEquals(s, s.getBytes(ISO_8859_1).length, HeaderEncoder.latin1Length(s));
+        }
+        for (long n : new long[]{0, 7, 10, -1, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(Long.toString(n), new String(encoder.reset().decimal(n).toByteArray(), UTF_8));
+        }
+
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            assertEquals(uuid.toString(), new String(encoder.reset().uuid(uuid).toByteArray(), UTF_8));
+
+            Instant instant = Instant.ofEpochSecond(Math.floorMod(random.nextLong(), 253402300800L),
+                    i % 3 == 0 ? random.nextInt(1000000000) : 0);
+            assertEquals(WarcWriter.WARC_DATE.format(instant), new String(encoder.reset().date(instant).toByteArray(), UTF_8));
+            assertEquals(instant.toString(), new String(encoder.reset().isoInstant(instant).toByteArray(), UTF_8));
+        }
+    }
+
+    @Test
+    public void encodingAResponseHeaderDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        HeaderEncoder encoder = new HeaderEncoder();
+        UUID uuid = UUID.randomUUID();
+        Instant date = Instant.parse("2018-02-02T15:27:22Z");
+        String response = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 1234\r\n\r\n";
+        int records = 100000;
+        for (int pass = 0; pass < 2; pass++) {
+            long before = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < records; i++) {
+                encoder.reset()
+                        .ascii("WARC/1.0\r\n")
+                        .ascii("WARC-Type: response\r\n")
+                        .ascii("WARC-Target-URI: ").utf8("http://example.org/café.html").ascii("\r\n")
+                        .ascii("WARC-Date: ").date(date.plusSeconds(i / 10)).ascii("\r\n")
+                        .ascii("WARC-Record-ID: <urn:uuid:").uuid(uuid).ascii(">\r\n")
+                        .ascii("Content-Length: ").decimal(1234 + i).ascii("\r\n")
+                        .ascii("\r\n")
+                        .latin1(response);
+            }
+            long perRecord = (threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / records;
+            if (pass == 1) {
+                // Instant.plusSeconds() allocates an Instant so allow for that
+                assertTrue("allocated " + perRecord + " bytes per record", perRecord <= 32);
+            }
+        }
+    }
+}
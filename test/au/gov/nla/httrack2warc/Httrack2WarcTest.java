@@ -17,20 +17,44 @@
 package au.gov.nla.httrack2warc;
 
 import au.gov.nla.httrack2warc.httrack.HttrackRecordTest;
+import com.github.luben.zstd.ZstdInputStream;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.netpreserve.jwarc.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class Httrack2WarcTest {
     @ClassRule
@@ -102,6 +126,598 @@ public class Httrack2WarcTest {
                 summary.toString());
     }
 
+    @Test
+    public void threadedOutputMatchesSerial() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path serialOutdir = temp.newFolder().toPath();
+        Httrack2Warc serial = new Httrack2Warc();
+        serial.setOutputDirectory(serialOutdir);
+        serial.setRedirectPrefix("http://prefix.example.org/");
+        serial.convert(crawlPath);
+
+        Path threadedOutdir = temp.newFolder().toPath();
+        Httrack2Warc threaded = new Httrack2Warc();
+        threaded.setOutputDirectory(threadedOutdir);
+        threaded.setRedirectPrefix("http://prefix.example.org/");
+        threaded.setThreads(4);
+        threaded.convert(crawlPath);
+
+        assertEquals(readWarcIgnoringRecordIds(serialOutdir.resolve("crawl-0.warc.gz")),
+                readWarcIgnoringRecordIds(threadedOutdir.resolve("crawl-0.warc.gz")));
+    }
+
+    @Test
+    public void threadedOutputRotatesAndIndexesLikeSerial() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path serialOutdir = temp.newFolder().toPath();
+        newRotatingConverter(serialOutdir).convert(crawlPath);
+
+        // with a tiny size target every record boundary is a rotation point, so out of order writes would show up
+        // as records in the wrong files or index lines pointing at the wrong offsets
+        Path threadedOutdir = temp.newFolder().toPath();
+        Httrack2Warc threaded = newRotatingConverter(threadedOutdir);
+        threaded.setThreads(4);
+        threaded.convert(crawlPath);
+
+        for (String name : new String[]{"crawl-0.warc.gz", "crawl-1.warc.gz", "crawl-2.warc.gz", "redirects.warc.gz",
+                "test.cdx"}) {
+            try (InputStream expected = Files.newInputStream(serialOutdir.resolve(name));
+                 InputStream actual = Files.newInputStream(threadedOutdir.resolve(name))) {
+                assertEquals(name, slurp(expected).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"),
+                        slurp(actual).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+            }
+        }
+        assertEquals(Files.list(serialOutdir).count(), Files.list(threadedOutdir).count());
+    }
+
+    @Test
+    public void tarballOutputMatchesDirectory() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        Path tarball = temp.newFolder().toPath().resolve("crawl.tar.gz");
+        TestUtils.tar(crawlPath, tarball);
+
+        Path directoryOutdir = temp.newFolder().toPath();
+        Httrack2Warc directory = new Httrack2Warc();
+        directory.setOutputDirectory(directoryOutdir);
+        directory.setRedirectPrefix("http://prefix.example.org/");
+        directory.setRewriteLinks(true);
+        directory.convert(crawlPath);
+
+        Path tarballOutdir = temp.newFolder().toPath();
+        Httrack2Warc fromTarball = new Httrack2Warc();
+        fromTarball.setOutputDirectory(tarballOutdir);
+        fromTarball.setRedirectPrefix("http://prefix.example.org/");
+        fromTarball.setRewriteLinks(true);
+        fromTarball.convert(tarball);
+
+        // records read from the archive are written in archive order after the others so compare them as a set
+        assertEquals(sortedRecords(readWarcIgnoringRecordIds(directoryOutdir.resolve("crawl-0.warc.gz"))),
+                sortedRecords(readWarcIgnoringRecordIds(tarballOutdir.resolve("crawl-0.warc.gz"))));
+    }
+
+    @Test
+    public void tarballCrawlIsFoundUnderItsDirectory() throws IOException {
+        Path parent = temp.newFolder().toPath();
+        Path crawlPath = Files.createDirectory(parent.resolve("site"));
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        // members outside the crawl directory, including one that looks like a mirror file, must be ignored
+        Files.write(parent.resolve("notes.txt"), "not part of the crawl".getBytes(UTF_8));
+        Files.createDirectories(parent.resolve("old/test.example.org"));
+        Files.write(parent.resolve("old/test.example.org/index.html"), "stale copy".getBytes(UTF_8));
+        Path tarball = temp.newFolder().toPath().resolve("crawl.tgz");
+        TestUtils.tar(parent, tarball);
+
+        Path directoryOutdir = temp.newFolder().toPath();
+        Httrack2Warc directory = new Httrack2Warc();
+        directory.setOutputDirectory(directoryOutdir);
+        directory.convert(crawlPath);
+
+        Path tarballOutdir = temp.newFolder().toPath();
+        Httrack2Warc fromTarball = new Httrack2Warc();
+        fromTarball.setOutputDirectory(tarballOutdir);
+        fromTarball.convert(tarball);
+
+        String actual = readWarcIgnoringRecordIds(tarballOutdir.resolve("crawl-0.warc.gz"));
+        assertFalse(actual.contains("stale copy"));
+        assertFalse(actual.contains("not part of the crawl"));
+        assertEquals(sortedRecords(readWarcIgnoringRecordIds(directoryOutdir.resolve("crawl-0.warc.gz"))),
+                sortedRecords(actual));
+    }
+
+    @Test
+    public void reorderedOutputMatchesLogOrder() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path logOrderOutdir = temp.newFolder().toPath();
+        Httrack2Warc logOrder = new Httrack2Warc();
+        logOrder.setOutputDirectory(logOrderOutdir);
+        logOrder.convert(crawlPath);
+        String expected = readWarcIgnoringRecordIds(logOrderOutdir.resolve("crawl-0.warc.gz"));
+
+        for (int threads : new int[]{1, 3}) {
+            Path reorderedOutdir = temp.newFolder().toPath();
+            Httrack2Warc reordered = new Httrack2Warc();
+            reordered.setOutputDirectory(reorderedOutdir);
+            reordered.setReorderWindow(100000);
+            reordered.setThreads(threads);
+            reordered.convert(crawlPath);
+            String actual = readWarcIgnoringRecordIds(reorderedOutdir.resolve("crawl-0.warc.gz"));
+            assertNotEquals(expected, actual);
+            assertEquals(sortedRecords(expected), sortedRecords(actual));
+        }
+    }
+
+    @Test
+    public void reorderWindowSmallerThanAPayloadKeepsLogOrder() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path logOrderOutdir = temp.newFolder().toPath();
+        Httrack2Warc logOrder = new Httrack2Warc();
+        logOrder.setOutputDirectory(logOrderOutdir);
+        logOrder.convert(crawlPath);
+        String expected = readWarcIgnoringRecordIds(logOrderOutdir.resolve("crawl-0.warc.gz"));
+
+        // every payload overflows a one byte window on its own so each window holds a single record
+        for (int threads : new int[]{1, 3}) {
+            Path reorderedOutdir = temp.newFolder().toPath();
+            Httrack2Warc reordered = new Httrack2Warc();
+            reordered.setOutputDirectory(reorderedOutdir);
+            reordered.setReorderWindow(1);
+            reordered.setThreads(threads);
+            reordered.convert(crawlPath);
+            assertEquals(expected, readWarcIgnoringRecordIds(reorderedOutdir.resolve("crawl-0.warc.gz")));
+        }
+    }
+
+    @Test
+    public void zipOutputMatchesDirectory() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        Path zip = temp.newFolder().toPath().resolve("crawl.zip");
+        Files.copy(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), zip);
+
+        Path directoryOutdir = temp.newFolder().toPath();
+        Httrack2Warc directory = new Httrack2Warc();
+        directory.setOutputDirectory(directoryOutdir);
+        directory.setRedirectPrefix("http://prefix.example.org/");
+        directory.setCompression(Compression.NONE);
+        directory.convert(crawlPath);
+
+        Path zipOutdir = temp.newFolder().toPath();
+        Httrack2Warc fromZip = new Httrack2Warc();
+        fromZip.setOutputDirectory(zipOutdir);
+        fromZip.setRedirectPrefix("http://prefix.example.org/");
+        fromZip.setCompression(Compression.NONE);
+        fromZip.convert(zip);
+
+        try (InputStream expected = Files.newInputStream(directoryOutdir.resolve("crawl-0.warc.gz"));
+             InputStream actual = Files.newInputStream(zipOutdir.resolve("crawl-0.warc.gz"))) {
+            assertEquals(slurp(expected).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"),
+                    slurp(actual).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+        }
+    }
+
+    private static List<String> sortedRecords(String warc) {
+        List<String> records = new ArrayList<>(Arrays.asList(warc.split("(?=WARC/1.0\r\n)")));
+        Collections.sort(records);
+        return records;
+    }
+
+    @Test
+    public void resumeMatchesUninterruptedRun() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path expectedOutdir = temp.newFolder().toPath();
+        newRotatingConverter(expectedOutdir).convert(crawlPath);
+
+        // a directory where the third WARC should go makes the first run fail part way through
+        Path outdir = temp.newFolder().toPath();
+        Files.createDirectory(outdir.resolve("crawl-2.warc.gz"));
+        try {
+            newRotatingConverter(outdir).convert(crawlPath);
+            fail("expected the conversion to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(Files.exists(outdir.resolve(Journal.FILENAME)));
+        assertFalse(Files.exists(outdir.resolve("test.cdx")));
+        byte[] finishedWarc = Files.readAllBytes(outdir.resolve("crawl-0.warc.gz"));
+
+        Httrack2Warc resumed = newRotatingConverter(outdir);
+        resumed.setResume(true);
+        resumed.convert(crawlPath);
+        assertFalse(Files.exists(outdir.resolve(Journal.FILENAME)));
+        assertArrayEquals("finished WARC should be kept as is", finishedWarc,
+                Files.readAllBytes(outdir.resolve("crawl-0.warc.gz")));
+
+        assertSameOutput(expectedOutdir, outdir);
+    }
+
+    @Test
+    public void resumeDiscardsOutputTruncatedByACrash() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path expectedOutdir = temp.newFolder().toPath();
+        newRotatingConverter(expectedOutdir).convert(crawlPath);
+
+        Path outdir = temp.newFolder().toPath();
+        Files.createDirectory(outdir.resolve("crawl-2.warc.gz"));
+        try {
+            newRotatingConverter(outdir).convert(crawlPath);
+            fail("expected the conversion to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // make it look like the process was killed part way through writing the last WARC, a redirect record and
+        // the next journal entry
+        Files.delete(outdir.resolve("crawl-2.warc.gz"));
+        byte[] lastWarc = Files.readAllBytes(expectedOutdir.resolve("crawl-2.warc.gz"));
+        Files.write(outdir.resolve("crawl-2.warc.gz"), Arrays.copyOf(lastWarc, lastWarc.length / 2));
+        Files.write(outdir.resolve("redirects.warc.gz"), "WARC/1.0\r\nWARC-Type: resp".getBytes(UTF_8),
+                StandardOpenOption.APPEND);
+        Files.write(outdir.resolve(Journal.FILENAME), "cdx\t5000\nhttp://".getBytes(UTF_8),
+                StandardOpenOption.APPEND);
+
+        Httrack2Warc resumed = newRotatingConverter(outdir);
+        resumed.setResume(true);
+        resumed.convert(crawlPath);
+        assertSameOutput(expectedOutdir, outdir);
+    }
+
+    /**
+     * Checks two output directories have the same files with the same contents apart from the record ids.
+     */
+    private static void assertSameOutput(Path expectedOutdir, Path outdir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(expectedOutdir)) {
+            files = stream.sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            try (InputStream expected = Files.newInputStream(file);
+                 InputStream actual = Files.newInputStream(outdir.resolve(file.getFileName()))) {
+                assertEquals(file.getFileName().toString(),
+                        slurp(expected).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"),
+                        slurp(actual).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+            }
+        }
+        try (Stream<Path> stream = Files.list(outdir)) {
+            assertEquals(files.size(), stream.count());
+        }
+    }
+
+    private static Httrack2Warc newRotatingConverter(Path outdir) {
+        Httrack2Warc httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(outdir);
+        httrack2Warc.setCompression(Compression.NONE);
+        httrack2Warc.setWarcSizeTarget(1);
+        httrack2Warc.setCdxName("test.cdx");
+        httrack2Warc.setRedirectPrefix("http://prefix.example.org/");
+        httrack2Warc.setRedirectFile("redirects.warc.gz");
+        return httrack2Warc;
+    }
+
+    @Test
+    public void uncompressedOutputMatchesGzip() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path gzipOutdir = temp.newFolder().toPath();
+        Httrack2Warc gzip = new Httrack2Warc();
+        gzip.setOutputDirectory(gzipOutdir);
+        gzip.convert(crawlPath);
+
+        Path plainOutdir = temp.newFolder().toPath();
+        Httrack2Warc plain = new Httrack2Warc();
+        plain.setOutputDirectory(plainOutdir);
+        plain.setCompression(Compression.NONE);
+        plain.convert(crawlPath);
+
+        String expected = readWarcIgnoringRecordIds(gzipOutdir.resolve("crawl-0.warc.gz"));
+        try (InputStream stream = Files.newInputStream(plainOutdir.resolve("crawl-0.warc.gz"))) {
+            assertEquals(expected, slurp(stream).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+        }
+    }
+
+    @Test
+    public void largeUncompressedPayloadsAreCopiedFromTheirFile() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        // bigger than the spill buffer's memory limit so it's digested and then transferred rather than spooled
+        byte[] image = new byte[9 * 1024 * 1024];
+        Arrays.fill(image, (byte) 'x');
+        Files.write(crawlPath.resolve("test.example.org/image.gif"), image);
+
+        Path gzipOutdir = temp.newFolder().toPath();
+        Httrack2Warc gzip = new Httrack2Warc();
+        gzip.setOutputDirectory(gzipOutdir);
+        gzip.convert(crawlPath);
+
+        Path plainOutdir = temp.newFolder().toPath();
+        Httrack2Warc plain = new Httrack2Warc();
+        plain.setOutputDirectory(plainOutdir);
+        plain.setCompression(Compression.NONE);
+        plain.convert(crawlPath);
+
+        String expected = readWarcIgnoringRecordIds(gzipOutdir.resolve("crawl-0.warc.gz"));
+        try (InputStream stream = Files.newInputStream(plainOutdir.resolve("crawl-0.warc.gz"))) {
+            assertEquals(expected, slurp(stream).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+        }
+        String digest = "sha1:" + Digests.sha1(new ByteArrayInputStream(image));
+        try (WarcReader reader = new WarcReader(plainOutdir.resolve("crawl-0.warc.gz"))) {
+            for (WarcRecord record : reader) {
+                if (record instanceof WarcResponse
+                        && ((WarcResponse) record).target().equals("http://test.example.org/image.gif")) {
+                    assertEquals(digest, record.headers().first("WARC-Payload-Digest").orElse(null));
+                    return;
+                }
+            }
+        }
+        fail("no response record for image.gif");
+    }
+
+    @Test
+    public void reusedDeflateMatchesRecompressed() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path recompressedOutdir = temp.newFolder().toPath();
+        Httrack2Warc recompressed = new Httrack2Warc();
+        recompressed.setOutputDirectory(recompressedOutdir);
+        recompressed.convert(crawlPath);
+
+        Path reusedOutdir = temp.newFolder().toPath();
+        Httrack2Warc reused = new Httrack2Warc();
+        reused.setOutputDirectory(reusedOutdir);
+        reused.setReuseDeflate(true);
+        reused.setCdxName("test.cdx");
+        reused.convert(crawlPath);
+
+        assertNotEquals(Files.size(recompressedOutdir.resolve("crawl-0.warc.gz")),
+                Files.size(reusedOutdir.resolve("crawl-0.warc.gz")));
+        assertEquals(readWarcIgnoringRecordIds(recompressedOutdir.resolve("crawl-0.warc.gz")),
+                readWarcIgnoringRecordIds(reusedOutdir.resolve("crawl-0.warc.gz")));
+        assertCdxOffsetsMatchRecords(reusedOutdir, "test.cdx");
+    }
+
+    @Test
+    public void zstdOutputMatchesGzip() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path gzipOutdir = temp.newFolder().toPath();
+        Httrack2Warc gzip = new Httrack2Warc();
+        gzip.setOutputDirectory(gzipOutdir);
+        gzip.convert(crawlPath);
+
+        Path zstdOutdir = temp.newFolder().toPath();
+        Httrack2Warc zstd = new Httrack2Warc();
+        zstd.setOutputDirectory(zstdOutdir);
+        zstd.setCompression(Compression.ZSTD);
+        zstd.setCdxName("test.cdx");
+        zstd.setCompressionThreads(2);
+        zstd.convert(crawlPath);
+
+        String expected = readWarcIgnoringRecordIds(gzipOutdir.resolve("crawl-0.warc.gz"));
+        try (InputStream stream = new ZstdInputStream(Files.newInputStream(zstdOutdir.resolve("crawl-0.warc.zst")))) {
+            assertEquals(expected, slurp(stream).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>"));
+        }
+
+        // each CDX entry should point at a frame that decodes to exactly one record
+        List<String> lines = Files.readAllLines(zstdOutdir.resolve("test.cdx"));
+        byte[] warc = Files.readAllBytes(zstdOutdir.resolve("crawl-0.warc.zst"));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(" ");
+            InputStream frame = new ByteArrayInputStream(warc, Integer.parseInt(fields[9]), Integer.parseInt(fields[8]));
+            try (InputStream stream = new ZstdInputStream(frame)) {
+                String record = slurp(stream);
+                assertTrue(record.startsWith("WARC/1.0\r\n"));
+                assertTrue(record.contains("WARC-Target-URI: " + fields[2] + "\r\n"));
+                assertEquals(1, record.split("WARC/1.0\r\n", -1).length - 1);
+            }
+        }
+    }
+
+    @Test
+    public void zstdRedirectFileEmbedsDictionary() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        // the test crawl alone has too few pages to train a dictionary from
+        Files.createDirectories(crawlPath.resolve("samples"));
+        for (int i = 0; i < 200; i++) {
+            Files.write(crawlPath.resolve("samples/page" + i + ".html"), ZstdCompressorTest.page(i).getBytes(UTF_8));
+        }
+
+        Path outdir = temp.newFolder().toPath();
+        Httrack2Warc httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(outdir);
+        httrack2Warc.setCompression(Compression.ZSTD);
+        httrack2Warc.setRedirectPrefix("http://prefix.example.org/");
+        httrack2Warc.setRedirectFile("redirects.warc.gz");
+        httrack2Warc.convert(crawlPath);
+
+        String redirects = readZstdWarcWithDictionary(outdir.resolve("redirects.warc.zst"));
+        assertTrue(redirects.startsWith("WARC/1.0\r\nWARC-Type: warcinfo\r\n"));
+        assertTrue(redirects.contains("HTTP/1.1 301 Moved Permanently\r\n"));
+        assertTrue(readZstdWarcWithDictionary(outdir.resolve("crawl-0.warc.zst")).contains("WARC-Type: response\r\n"));
+    }
+
+    @Test
+    public void zstdTarballTrainsDictionaryFromCache() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+        // the mirror files of a tarball aren't extracted before the compressor is created so the samples must come
+        // from the cache
+        Path cache = crawlPath.resolve("hts-cache/new.zip");
+        Path newCache = crawlPath.resolve("hts-cache/new.zip.tmp");
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(cache));
+             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(newCache))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                WarcRecordWriter.copyStream(in, out);
+                out.closeEntry();
+            }
+            ZstdCompressorTest.writeCachePages(out);
+        }
+        Files.move(newCache, cache, StandardCopyOption.REPLACE_EXISTING);
+        Path tarball = temp.newFolder().toPath().resolve("crawl.tar.gz");
+        TestUtils.tar(crawlPath, tarball);
+
+        Path outdir = temp.newFolder().toPath();
+        Httrack2Warc httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(outdir);
+        httrack2Warc.setCompression(Compression.ZSTD);
+        httrack2Warc.convert(tarball);
+
+        assertTrue(readZstdWarcWithDictionary(outdir.resolve("crawl-0.warc.zst")).contains("WARC-Type: response\r\n"));
+    }
+
+    /**
+     * Decodes a zstd WARC file using the dictionary in the skippable frame it must start with.
+     */
+    private static String readZstdWarcWithDictionary(Path warc) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(warc)).order(LITTLE_ENDIAN);
+        assertEquals(ZstdCompressor.DICTIONARY_FRAME_MAGIC, data.getInt());
+        byte[] dictionary = new byte[data.getInt()];
+        data.get(dictionary);
+        InputStream frames = new ByteArrayInputStream(data.array(), data.position(), data.remaining());
+        try (InputStream stream = new ZstdInputStream(frames).setDict(dictionary)) {
+            return slurp(stream);
+        }
+    }
+
+    @Test
+    public void parallelCompressionIndexesExactOffsets() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        Path outdir = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Httrack2Warc httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(outdir);
+        httrack2Warc.setCdxName("test.cdx");
+        httrack2Warc.setCompressionThreads(4);
+        httrack2Warc.convert(crawlPath);
+
+        assertCdxOffsetsMatchRecords(outdir, "test.cdx");
+    }
+
+    @Test
+    public void parallelCompressionKeepsMembersInTheirRotatedFiles() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path serialOutdir = temp.newFolder().toPath();
+        Httrack2Warc serial = newRotatingConverter(serialOutdir);
+        serial.setCompression(Compression.GZIP);
+        serial.convert(crawlPath);
+
+        // members still being compressed when a rotation is due must be written to the file they started in
+        Path parallelOutdir = temp.newFolder().toPath();
+        Httrack2Warc parallel = newRotatingConverter(parallelOutdir);
+        parallel.setCompression(Compression.GZIP);
+        parallel.setCompressionThreads(4);
+        parallel.convert(crawlPath);
+
+        List<Path> warcs;
+        try (Stream<Path> stream = Files.list(serialOutdir)) {
+            warcs = stream.filter(path -> path.toString().endsWith(".warc.gz")).sorted().collect(Collectors.toList());
+        }
+        assertTrue(warcs.size() > 2);
+        for (Path warc : warcs) {
+            assertEquals(warc.getFileName().toString(), readWarcIgnoringRecordIds(warc),
+                    readWarcIgnoringRecordIds(parallelOutdir.resolve(warc.getFileName())));
+        }
+        assertEquals(Files.list(serialOutdir).count(), Files.list(parallelOutdir).count());
+        assertCdxOffsetsMatchRecords(parallelOutdir, "test.cdx");
+    }
+
+    @Test
+    public void zipnumIndexMatchesCdxj() throws IOException {
+        Path crawlPath = temp.newFolder().toPath();
+        TestUtils.unzip(HttrackRecordTest.class.getResourceAsStream("testcrawl-3.49-2.zip"), crawlPath);
+
+        Path cdxjOut = temp.newFolder().toPath();
+        Httrack2Warc httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(cdxjOut);
+        httrack2Warc.setCdxName("test.cdxj");
+        httrack2Warc.setCdxFormat(CdxWriter.Format.CDXJ);
+        httrack2Warc.convert(crawlPath);
+
+        List<String> cdxj = Files.readAllLines(cdxjOut.resolve("test.cdxj"));
+        assertTrue(cdxj.get(0), cdxj.get(0).startsWith("org,example,test)/ 20180202152722 " +
+                "{\"url\": \"http://test.example.org/\", \"mime\": \"text/html\", \"status\": \"200\", " +
+                "\"digest\": \"TV4VXHV4LUHK5253PHP7ZLTVYGFDMU3M\", \"length\": "));
+        for (String line : cdxj) {
+            Matcher m = Pattern.compile("\"length\": \"(\\d+)\", \"offset\": \"(\\d+)\", \"filename\": \"([^\"]+)\"")
+                    .matcher(line);
+            assertTrue(line, m.find());
+            long offset = Long.parseLong(m.group(2));
+            try (FileChannel channel = FileChannel.open(cdxjOut.resolve(m.group(3)))) {
+                channel.position(offset);
+                WarcReader reader = new WarcReader(channel);
+                reader.next().get();
+                reader.next();
+                assertEquals(Long.parseLong(m.group(1)), reader.position() - offset);
+            }
+        }
+
+        Path zipnumOut = temp.newFolder().toPath();
+        httrack2Warc = new Httrack2Warc();
+        httrack2Warc.setOutputDirectory(zipnumOut);
+        httrack2Warc.setCdxName("test");
+        httrack2Warc.setCdxFormat(CdxWriter.Format.ZIPNUM);
+        httrack2Warc.convert(crawlPath);
+
+        List<String> summary = Files.readAllLines(zipnumOut.resolve("test.idx"));
+        assertEquals(1, summary.size());
+        String[] fields = summary.get(0).split("\t");
+        assertEquals("org,example,test)/ 20180202152722", fields[0]);
+        assertEquals("test.gz", fields[1]);
+        assertEquals("0", fields[2]);
+        assertEquals(Files.size(zipnumOut.resolve("test.gz")), Long.parseLong(fields[3]));
+        assertEquals("1", fields[4]);
+        assertEquals("test.gz\ttest.gz", new String(Files.readAllBytes(zipnumOut.resolve("test.loc")), "UTF-8").trim());
+
+        // the compressed record sizes vary with the random record ids but otherwise the index should be the same
+        String positions = "\"length\": \"\\d+\", \"offset\": \"\\d+\"";
+        try (InputStream stream = new GZIPInputStream(Files.newInputStream(zipnumOut.resolve("test.gz")))) {
+            assertEquals((String.join("\n", cdxj) + "\n").replaceAll(positions, ""),
+                    slurp(stream).replaceAll(positions, ""));
+        }
+    }
+
+    static void assertCdxOffsetsMatchRecords(Path outdir, String cdxName) throws IOException {
+        List<String> lines = Files.readAllLines(outdir.resolve(cdxName));
+        assertTrue(lines.size() > 1);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(" ");
+            long offset = Long.parseLong(fields[9]);
+            try (FileChannel channel = FileChannel.open(outdir.resolve(fields[10]))) {
+                channel.position(offset);
+                WarcReader reader = new WarcReader(channel);
+                WarcRecord record = reader.next().get();
+                assertEquals(fields[0], ((WarcTargetRecord) record).target());
+                reader.next();
+                assertEquals(Long.parseLong(fields[8]), reader.position() - offset);
+            }
+        }
+    }
+
+    private static String readWarcIgnoringRecordIds(Path warc) throws IOException {
+        try (InputStream stream = new GZIPInputStream(Files.newInputStream(warc))) {
+            return slurp(stream).replaceAll("<urn:uuid:[^>]*>", "<urn:uuid:...>");
+        }
+    }
+
     @Test
     public void removeTransferEncodingHeader() {
         String header = "HTTP/1.1 200 OK\r\n" +
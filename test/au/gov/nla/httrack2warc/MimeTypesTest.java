@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.nio.file.Paths;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MimeTypesTest {
 
@@ -34,4 +36,19 @@ public class MimeTypesTest {
         assertEquals("image/jpeg", mimeTypes.forPath(Paths.get("foo.bar.jpg")));
         assertEquals("image/jpeg", mimeTypes.forPath((Paths.get("foo.zip.jpeg"))));
     }
+
+    @Test
+    public void isCompressed() {
+        assertTrue(MimeTypes.isCompressed("image/jpeg"));
+        assertTrue(MimeTypes.isCompressed("IMAGE/PNG"));
+        assertTrue(MimeTypes.isCompressed("video/mp4"));
+        assertTrue(MimeTypes.isCompressed("application/pdf"));
+        assertTrue(MimeTypes.isCompressed("application/zip; foo=bar"));
+        assertTrue(MimeTypes.isCompressed("application/epub+zip"));
+        assertFalse(MimeTypes.isCompressed("image/svg+xml"));
+        assertFalse(MimeTypes.isCompressed("image/bmp"));
+        assertFalse(MimeTypes.isCompressed("text/html; charset=utf-8"));
+        assertFalse(MimeTypes.isCompressed("application/octet-stream"));
+        assertFalse(MimeTypes.isCompressed(null));
+    }
 }
\ No newline at end of file
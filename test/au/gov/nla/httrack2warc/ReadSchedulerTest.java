@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.FileIndex;
+import au.gov.nla.httrack2warc.httrack.HttrackRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReadSchedulerTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void windowsAreBoundedByStoredBytes() throws IOException {
+        Path root = temp.newFolder().toPath();
+        for (int i = 0; i < 10; i++) {
+            Files.write(root.resolve("file" + i), new byte[100]);
+        }
+        FileIndex files = FileIndex.scan(root);
+        List<HttrackRecord> added = new ArrayList<>();
+        List<HttrackRecord> written = new ArrayList<>();
+        try (ReadScheduler scheduler = new ReadScheduler(250, files, written::add)) {
+            for (int i = 0; i < 10; i++) {
+                HttrackRecord record = new HttrackRecord("file" + i, LocalDateTime.now(), "http://example.org/" + i,
+                        "text/plain", null, null, null, root.resolve("file" + i), null, 200, files);
+                added.add(record);
+                scheduler.add(record);
+            }
+            scheduler.flush();
+            String statistics = scheduler.statistics();
+            assertNotNull(statistics);
+            assertTrue(statistics, statistics.startsWith("Read 0.0 MB of payloads in storage order"));
+        }
+
+        // windows close once they hold 250 bytes, so every three records, and are only reordered within themselves
+        assertEquals(added.size(), written.size());
+        for (int start = 0; start < added.size(); start += 3) {
+            int end = Math.min(start + 3, added.size());
+            assertEquals(new HashSet<>(added.subList(start, end)), new HashSet<>(written.subList(start, end)));
+        }
+    }
+}
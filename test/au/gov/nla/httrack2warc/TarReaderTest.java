@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class TarReaderTest {
+    @Test
+    public void readsMembers() throws IOException {
+        String longName = "./site/" + new String(new char[150]).replace('\0', 'x') + ".html";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TestUtils.writeTarMember(out, "./site/", '5', new byte[0]);
+        TestUtils.writeTarMember(out, "./site/a.txt", '0', "hello".getBytes(UTF_8));
+        TestUtils.writeTarMember(out, longName, '0', new byte[1000]);
+        TestUtils.writeTarMember(out, "./site/b.txt", '0', "world".getBytes(UTF_8));
+        out.write(new byte[1024]);
+
+        try (TarReader tar = new TarReader(new ByteArrayInputStream(out.toByteArray()))) {
+            TarReader.Entry entry = tar.next();
+            assertEquals("./site/", entry.name);
+            assertTrue(entry.isDirectory());
+
+            entry = tar.next();
+            assertEquals("./site/a.txt", entry.name);
+            assertTrue(entry.isRegularFile());
+            assertEquals(5, entry.size);
+            assertEquals("hello", slurp(tar.openStream()));
+
+            entry = tar.next(); // left unread
+            assertEquals(longName, entry.name);
+            assertEquals(1000, entry.size);
+
+            entry = tar.next();
+            assertEquals("./site/b.txt", entry.name);
+            assertEquals("world", slurp(tar.openStream()));
+
+            assertNull(tar.next());
+            assertNull(tar.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptHeader() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TestUtils.writeTarMember(out, "a.txt", '0', "hello".getBytes(UTF_8));
+        byte[] bytes = out.toByteArray();
+        bytes[0] = 'b';
+        new TarReader(new ByteArrayInputStream(bytes)).next();
+    }
+
+    @Test
+    public void memberNames() {
+        assertEquals("crawl/hts-cache/new.zip", Httrack2Warc.tarMemberName("./crawl/hts-cache/new.zip"));
+        assertEquals("crawl", Httrack2Warc.tarMemberName("crawl/"));
+        assertEquals("", Httrack2Warc.tarMemberName("./"));
+        assertNull(Httrack2Warc.tarMemberName("/etc/passwd"));
+        assertNull(Httrack2Warc.tarMemberName("crawl/../../x"));
+        assertEquals("crawl/", Httrack2Warc.cacheDirPrefix("crawl/hts-cache/new.zip"));
+        assertEquals("", Httrack2Warc.cacheDirPrefix("hts-cache"));
+        assertNull(Httrack2Warc.cacheDirPrefix("crawl/not-hts-cache/new.zip"));
+    }
+
+    private static String slurp(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
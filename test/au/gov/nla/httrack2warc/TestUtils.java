@@ -18,11 +18,18 @@ package au.gov.nla.httrack2warc;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public class TestUtils {
     public static void unzip(InputStream stream, Path dest) throws IOException {
         try (ZipInputStream zip = new ZipInputStream(stream)) {
@@ -39,4 +46,62 @@ public class TestUtils {
             }
         }
     }
+
+    /**
+     * Writes the contents of a directory to a gzipped tarball with member names prefixed by "./" like
+     * "tar -C dir -czf tarball ." produces.
+     */
+    public static void tar(Path dir, Path tarball) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(dir)) {
+            paths = stream.sorted().collect(Collectors.toList());
+        }
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tarball))) {
+            for (Path path : paths) {
+                String name = "./" + dir.relativize(path).toString().replace('\\', '/');
+                if (Files.isDirectory(path)) {
+                    writeTarMember(out, name.endsWith("/") ? name : name + "/", '5', new byte[0]);
+                } else {
+                    writeTarMember(out, name, '0', Files.readAllBytes(path));
+                }
+            }
+            out.write(new byte[1024]);
+        }
+    }
+
+    /**
+     * Writes a tar header followed by the data padded to the block size. Names too long for the header are
+     * given a pax extended header.
+     */
+    public static void writeTarMember(OutputStream out, String name, char type, byte[] data) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF_8);
+        if (nameBytes.length > 100) {
+            String record = " path=" + name + "\n";
+            int length = record.getBytes(UTF_8).length;
+            length += Integer.toString(length + Integer.toString(length).length()).length();
+            writeTarMember(out, "PaxHeader", 'x', (length + record).getBytes(UTF_8));
+            nameBytes = name.substring(name.length() - 50).getBytes(UTF_8);
+        }
+        byte[] header = new byte[512];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, data.length);
+        putOctal(header, 136, 12, 1517585242);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(UTF_8), 0, header, 257, 8);
+        for (int i = 148; i < 156; i++) header[i] = ' ';
+        long sum = 0;
+        for (byte b : header) sum += b & 0xff;
+        putOctal(header, 148, 7, sum);
+        out.write(header);
+        out.write(data);
+        out.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String s = String.format("%0" + (length - 1) + "o", value);
+        System.arraycopy(s.getBytes(UTF_8), 0, header, offset, s.length());
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares building a response record header by string concatenation with HeaderEncoder. Run main() from the test
+ * classpath, or org.openjdk.jmh.Main with "WarcHeaderBenchmark -prof gc", and compare gc.alloc.rate.norm which is
+ * the bytes allocated per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WarcHeaderBenchmark {
+    private final String url = "http://www.example.org/some/path/page.html?query=1";
+    private final String contentType = "text/html";
+    private final String digest = "TV4VXHV4LUHK5253PHP7ZLTVYGFDMU3M";
+    private final UUID uuid = UUID.randomUUID();
+    private final Instant date = Instant.parse("2018-02-02T15:27:22Z");
+    private final String responseHeader = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 1234\r\n\r\n";
+    private final HeaderCapturingWriter writer = new HeaderCapturingWriter();
+
+    @Benchmark
+    public byte[] concatenation() {
+        byte[] responseHeaderBytes = responseHeader.getBytes(ISO_8859_1);
+        long blockLength = 1234 + responseHeaderBytes.length;
+        String header = "WARC/1.0\r\n" +
+                "WARC-Type: response\r\n" +
+                "WARC-Target-URI: " + url + "\r\n" +
+                "WARC-Date: " + WarcWriter.WARC_DATE.format(date) + "\r\n" +
+                "WARC-Payload-Digest: sha1:" + digest + "\r\n" +
+                "WARC-Record-ID: <urn:uuid:" + uuid + ">\r\n" +
+                "Content-Type: application/http; msgtype=response\r\n" +
+                "Content-Length: " + blockLength + "\r\n" +
+                "\r\n";
+        Integer.parseInt(responseHeader.split(" ", 3)[1]);
+        return header.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public int encoder() throws IOException {
+        writer.writeResponseRecord(url, contentType, digest, uuid, date, 1234, responseHeader,
+                WarcHeaderBenchmark::emptyBody, null);
+        return writer.length;
+    }
+
+    private static void emptyBody(OutputStream out) {
+    }
+
+    /**
+     * Builds headers using the real WarcWriter code but discards them instead of writing them out.
+     */
+    private static class HeaderCapturingWriter extends WarcRecordWriter {
+        int length;
+
+        HeaderCapturingWriter() {
+            super(MemberCompressor.UNCOMPRESSED);
+        }
+
+        @Override
+        void writeRecord(HeaderEncoder header, StreamWriter body, IndexEntry index) {
+            length = header.length();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WarcHeaderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarcWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Instant DATE = Instant.parse("2020-12-01T04:01:25Z");
+
+    @Test
+    public void malformedStatusLinesAreWrittenWithoutAnIndex() throws IOException {
+        Path warcFile = folder.newFolder().toPath().resolve("test.warc");
+        try (WarcWriter warc = new WarcWriter(warcFile.toString(), Compression.NONE, null)) {
+            writeMalformedResponses(warc);
+            warc.finish();
+        }
+        String data = new String(Files.readAllBytes(warcFile), ISO_8859_1);
+        assertTrue(data.contains("\r\n\r\nHTTP/1.1 200OK\r\n"));
+        assertTrue(data.contains("\r\n\r\nHTTP/1.1 2000 Big\r\n"));
+    }
+
+    @Test
+    public void malformedStatusLinesAreIndexedAsZero() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (CdxWriter cdxWriter = new CdxWriter(dir.resolve("test.cdx"));
+             WarcWriter warc = new WarcWriter(dir.resolve("test.warc").toString(), Compression.NONE, cdxWriter)) {
+            writeMalformedResponses(warc);
+            warc.writeResponseRecord("http://example.org/ok", "text/html", null, UUID.randomUUID(), DATE, 0,
+                    "HTTP/1.1 404 Not Found\r\n\r\n", StreamWriter.of(new byte[0]), null);
+            warc.finish();
+        }
+        List<String> lines = Files.readAllLines(dir.resolve("test.cdx"));
+        assertEquals(4, lines.size());
+        assertEquals("0", lines.get(1).split(" ")[4]);
+        assertEquals("0", lines.get(2).split(" ")[4]);
+        assertEquals("404", lines.get(3).split(" ")[4]);
+    }
+
+    private static void writeMalformedResponses(WarcWriter warc) throws IOException {
+        warc.writeResponseRecord("http://example.org/a", "text/html", null, UUID.randomUUID(), DATE, 0,
+                "HTTP/1.1 200OK\r\n\r\n", StreamWriter.of(new byte[0]), null);
+        warc.writeResponseRecord("http://example.org/b", "text/html", null, UUID.randomUUID(), DATE, 0,
+                "HTTP/1.1 2000 Big\r\n\r\n", StreamWriter.of(new byte[0]), null);
+    }
+
+    @Test
+    public void parseStatus() {
+        assertEquals(200, WarcRecordWriter.parseStatus("HTTP/1.1 200 OK\r\n"));
+        assertEquals(301, WarcRecordWriter.parseStatus("HTTP/1.0 301\r\n"));
+        assertEquals(0, WarcRecordWriter.parseStatus("HTTP/1.1 200OK\r\n"));
+        assertEquals(0, WarcRecordWriter.parseStatus("HTTP/1.1 2000 OK\r\n"));
+        assertEquals(0, WarcRecordWriter.parseStatus("garbage"));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package au.gov.nla.httrack2warc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class ZipNumWriterTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void blocksAreSummarisedByTheirFirstKey() throws IOException {
+        Path dir = temp.newFolder().toPath();
+        Path sorted = dir.resolve("sorted");
+        StringBuilder cdxj = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            cdxj.append(String.format("org,example)/%02d 20180202152722 {\"url\": \"http://example.org/%02d\"}\n", i, i));
+        }
+        Files.write(sorted, cdxj.toString().getBytes(UTF_8));
+        ZipNumWriter.write(sorted, dir.resolve("a.gz"), dir.resolve("a.idx"), dir.resolve("a.loc"), 10);
+
+        List<String> summary = Files.readAllLines(dir.resolve("a.idx"));
+        assertEquals(3, summary.size());
+        StringBuilder decoded = new StringBuilder();
+        long expectedOffset = 0;
+        for (int i = 0; i < summary.size(); i++) {
+            String[] fields = summary.get(i).split("\t");
+            assertEquals(String.format("org,example)/%02d 20180202152722", i * 10), fields[0]);
+            assertEquals("a.gz", fields[1]);
+            assertEquals(expectedOffset, Long.parseLong(fields[2]));
+            assertEquals(String.valueOf(i + 1), fields[4]);
+            byte[] block = new byte[Integer.parseInt(fields[3])];
+            try (FileChannel channel = FileChannel.open(dir.resolve("a.gz"))) {
+                channel.read(ByteBuffer.wrap(block), expectedOffset);
+            }
+            decoded.append(gunzip(new ByteArrayInputStream(block)));
+            expectedOffset += block.length;
+        }
+        assertEquals(Files.size(dir.resolve("a.gz")), expectedOffset);
+        assertEquals(cdxj.toString(), decoded.toString());
+        assertEquals("a.gz\ta.gz", new String(Files.readAllBytes(dir.resolve("a.loc")), UTF_8).trim());
+    }
+
+    @Test
+    public void emptyIndex() throws IOException {
+        Path dir = temp.newFolder().toPath();
+        Path sorted = dir.resolve("sorted");
+        Files.write(sorted, new byte[0]);
+        ZipNumWriter.write(sorted, dir.resolve("a.gz"), dir.resolve("a.idx"), dir.resolve("a.loc"), 10);
+
+        assertEquals(0, Files.readAllLines(dir.resolve("a.idx")).size());
+        assertEquals(0, Files.size(dir.resolve("a.gz")));
+    }
+
+    private static String gunzip(InputStream compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream stream = new GZIPInputStream(compressed)) {
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toString("UTF-8");
+    }
+}
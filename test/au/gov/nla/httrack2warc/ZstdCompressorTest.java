@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc;
+
+import au.gov.nla.httrack2warc.httrack.HttrackCrawl;
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ZstdCompressorTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void framesDecodeWithEmbeddedDictionary() throws IOException {
+        Path crawl = temp.newFolder().toPath();
+        Files.createDirectories(crawl.resolve("hts-cache"));
+        Files.write(crawl.resolve("hts-cache/new.txt"), "not a sample".getBytes(UTF_8));
+        for (int i = 0; i < 200; i++) {
+            Files.write(crawl.resolve("page" + i + ".html"), page(i).getBytes(UTF_8));
+        }
+        byte[] dictionary;
+        try (HttrackCrawl httrackCrawl = new HttrackCrawl(crawl)) {
+            dictionary = ZstdCompressor.trainDictionary(httrackCrawl);
+        }
+        assertNotNull(dictionary);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        StringBuilder expected = new StringBuilder();
+        try (ZstdCompressor compressor = new ZstdCompressor(3, dictionary)) {
+            compressor.writeFileHeader(channel);
+            for (int i = 0; i < 10; i++) {
+                String text = page(1000 + i);
+                expected.append(text);
+                compressor.writeMember(channel, stream -> stream.write(text.getBytes(UTF_8)));
+            }
+            assertEquals(1, compressor.poolSize());
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(out.toByteArray()).order(LITTLE_ENDIAN);
+        assertEquals(ZstdCompressor.DICTIONARY_FRAME_MAGIC, header.getInt());
+        byte[] embedded = new byte[header.getInt()];
+        header.get(embedded);
+        assertArrayEquals(dictionary, embedded);
+
+        try (InputStream stream = new ZstdInputStream(new ByteArrayInputStream(out.toByteArray())).setDict(embedded)) {
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                decompressed.write(buffer, 0, n);
+            }
+            assertEquals(expected.toString(), decompressed.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void dictionaryIsTrainedFromCacheEntries() throws IOException {
+        // a tarball crawl only has its cache extracted when the compressor is created
+        Path crawl = temp.newFolder().toPath();
+        Files.createDirectories(crawl.resolve("hts-cache"));
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(crawl.resolve("hts-cache/new.zip")))) {
+            writeCachePages(zip);
+        }
+        try (HttrackCrawl httrackCrawl = new HttrackCrawl(crawl)) {
+            assertNotNull(ZstdCompressor.trainDictionary(httrackCrawl));
+        }
+    }
+
+    @Test
+    public void noDictionaryWithoutSamples() throws IOException {
+        Path crawl = temp.newFolder().toPath();
+        Files.write(crawl.resolve("image.gif"), new byte[100]);
+        try (HttrackCrawl httrackCrawl = new HttrackCrawl(crawl)) {
+            assertNull(ZstdCompressor.trainDictionary(httrackCrawl));
+        }
+    }
+
+    /**
+     * Adds cache entries for 200 similar pages, named by URL as HTTrack does.
+     */
+    static void writeCachePages(ZipOutputStream zip) throws IOException {
+        for (int i = 0; i < 200; i++) {
+            zip.putNextEntry(new ZipEntry("http://test.example.org/samples/page" + i + ".html"));
+            zip.write(page(i).getBytes(UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    static String page(int i) {
+        return "<!DOCTYPE html>\n<html><head><title>Page " + i + "</title>" +
+                "<link rel=stylesheet href=\"/style.css\"></head>\n<body><div class=\"nav\"><a href=\"/\">Home</a> " +
+                "<a href=\"/about.html\">About</a></div>\n<p>Item number " + i * 7919 + " of the collection.</p>\n" +
+                "</body></html>\n";
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidLevel() {
+        new ZstdCompressor(23, null);
+    }
+}
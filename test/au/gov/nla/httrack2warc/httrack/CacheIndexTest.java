@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CacheIndexTest {
+    @Test
+    public void findsVerifiedOffsets() throws Exception {
+        List<String> names = new ArrayList<>();
+        CacheIndex index = new CacheIndex();
+        for (int i = 0; i < 10000; i++) {
+            String url = "http://example.org/page" + i + ".html";
+            index.add(url, names.size());
+            names.add(url);
+        }
+        for (int i = 0; i < 10000; i++) {
+            String url = "http://example.org/page" + i + ".html";
+            assertEquals(i, index.find(url, offset -> names.get((int) offset).equals(url)));
+        }
+        assertEquals(-1, index.find("http://example.org/other.html", offset -> false));
+        assertEquals(10000, index.size());
+    }
+
+    @Test
+    public void lastDuplicateWins() throws Exception {
+        CacheIndex index = new CacheIndex();
+        index.add("http://example.org/", 5);
+        index.add("http://example.org/a", 7);
+        index.add("http://example.org/", 9);
+        assertEquals(9, index.find("http://example.org/", offset -> offset != 7));
+        // a colliding candidate the verifier rejects is skipped
+        assertEquals(5, index.find("http://example.org/", offset -> offset == 5));
+    }
+
+    @Test
+    public void footprintIsFractionOfHashMap() {
+        int n = 100000;
+        CacheIndex index = new CacheIndex(n);
+        long hashMapBytes = 0;
+        for (int i = 0; i < n; i++) {
+            String url = "http://www.example.org/some/path/page" + i + ".html";
+            index.add(url, i * 1000L);
+            // HashMap<String,Long>: 32 byte node, 16 byte Long, 24 byte String plus a 16 byte header on its latin1
+            // bytes and a table slot. A ZipEntry in place of the Long is several times bigger again.
+            hashMapBytes += 32 + 16 + 24 + 16 + url.length() + 8;
+        }
+        assertTrue("index used " + index.footprint() + " bytes against " + hashMapBytes + " for a HashMap",
+                index.footprint() * 3 < hashMapBytes);
+    }
+}
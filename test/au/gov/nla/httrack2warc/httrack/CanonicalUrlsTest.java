@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CanonicalUrlsTest {
+    @Test
+    public void matchesUncachedFunctions() {
+        CanonicalUrls urls = new CanonicalUrls(2);
+        String[] raws = {"www.example.org/a b.html", "https://Example.org:443/?z=1&a=2", "http://example.org/%7e/",
+                "www.example.org/a b.html"};
+        for (String raw : raws) {
+            String fixed = HtsUtil.fixupUrl(raw);
+            assertEquals(fixed, urls.fixup(raw));
+            assertEquals(HtsUtil.stripProtocol(fixed), urls.headerKey(raw));
+            assertEquals(HtsUtil.surt(fixed), urls.surt(raw));
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        CanonicalUrls urls = new CanonicalUrls(2);
+        CanonicalUrls.Entry a = urls.get("http://a/");
+        CanonicalUrls.Entry b = urls.get("http://b/");
+        assertSame(a, urls.get("http://a/"));
+        urls.get("http://c/"); // evicts b, which is now the least recently used
+        assertSame(a, urls.get("http://a/"));
+        assertNotSame(b, urls.get("http://b/"));
+    }
+}
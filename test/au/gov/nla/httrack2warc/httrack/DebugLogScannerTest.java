@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+
+public class DebugLogScannerTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void findsRecordsInOrderAcrossChunks() throws IOException {
+        StringBuilder log = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        String[] endings = {"\n", "\r\n", "\r"};
+        for (int i = 0; i < 500; i++) {
+            String time = String.format("%02d:%02d:%02d", i / 3600 % 24, i / 60 % 60, i % 60);
+            String ending = endings[i % endings.length];
+            log.append(time).append("\tDebug: \tEngine: opened connection ").append(i).append(ending);
+            if (i % 7 == 0) log.append(ending);
+            String url = "www.example.org/page" + i + (i % 11 == 0 ? " -> x" : "") + ".html";
+            String file = "/crawl/www.example.org/page" + i + "é.html";
+            log.append(time).append("\tDebug: \tRecord: ").append(url).append(" -> ").append(file).append(ending);
+            expected.add(LocalTime.parse(time) + "|" + url + "|" + file);
+            log.append(time).append("\tInfo: \tRecord: not a debug line -> no").append(ending);
+        }
+        log.append("00:00:01\tDebug: \tRecord: last -> line without a newline");
+        expected.add(LocalTime.of(0, 0, 1) + "|last|line without a newline");
+
+        Path path = temp.newFile().toPath();
+        Files.write(path, log.toString().getBytes(ISO_8859_1));
+
+        for (int chunkSize : new int[]{1, 7, 64, 1000, DebugLogScanner.DEFAULT_CHUNK_SIZE}) {
+            for (int threads : new int[]{1, 3}) {
+                List<String> actual = new ArrayList<>();
+                try (DebugLogScanner scanner = new DebugLogScanner(path, threads, chunkSize)) {
+                    scanner.forEach(entry -> actual.add(entry.time + "|" + entry.url + "|" + entry.file));
+                }
+                assertEquals("chunkSize " + chunkSize + " threads " + threads, expected, actual);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void matchesFilesystem() throws IOException {
+        Path root = temp.newFolder().toPath();
+        Files.createDirectories(root.resolve("a/b/c"));
+        Files.write(root.resolve("top.html"), new byte[3]);
+        Files.write(root.resolve("a/b/c/deep file.html"), new byte[10]);
+        Files.write(root.resolve("a/empty"), new byte[0]);
+        Files.createSymbolicLink(root.resolve("link-to-a"), root.resolve("a"));
+        Files.createSymbolicLink(root.resolve("link-to-top"), root.resolve("top.html"));
+        Files.createSymbolicLink(root.resolve("broken"), root.resolve("missing"));
+
+        FileIndex index = FileIndex.scan(root, 3);
+
+        assertTrue(index.isRegularFile(root.resolve("top.html")));
+        assertEquals(3, index.size(root.resolve("top.html")));
+        assertTrue(index.isRegularFile(root.resolve("a/b/c/deep file.html")));
+        assertTrue(index.isRegularFile(root.resolve("a/b/../b/c/deep file.html")));
+        assertEquals(10, index.size(root.resolve("a/b/c/deep file.html")));
+        assertTrue(index.isRegularFile(root.resolve("a/empty")));
+        assertTrue(index.isRegularFile(root.resolve("link-to-top")));
+        assertEquals(3, index.size(root.resolve("link-to-top")));
+        assertFalse(index.isRegularFile(root.resolve("a/b")));
+        assertFalse(index.isRegularFile(root.resolve("broken")));
+        assertFalse(index.isRegularFile(root.resolve("missing")));
+        assertFalse(index.isRegularFile(root.resolve("link-to-a/empty"))); // not followed, like Files.walk
+        assertEquals(0, index.size(root.resolve("missing")));
+        if (root.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            long inode = (Long) Files.getAttribute(root.resolve("top.html"), "unix:ino");
+            assertEquals(inode, index.inode(root.resolve("top.html")));
+            assertEquals(inode, index.inode(root.resolve("link-to-top")));
+        }
+        assertEquals(0, index.inode(root.resolve("missing")));
+
+        List<String> files = new ArrayList<>();
+        index.forEachNonDirectory(files::add);
+        assertEquals(Arrays.asList("a/b/c/deep file.html", "a/empty", "broken", "link-to-top", "top.html"), files);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the regex new.txt parser with HtsTxtParser on the test-resources new.txt files, reading the same
+ * fields HttrackCrawl does. Run main() from the test classpath, or org.openjdk.jmh.Main with
+ * "HtsTxtParserBenchmark -prof gc".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtsTxtParserBenchmark {
+    @Param({"test-hts-new.txt", "test-hts-new2.txt"})
+    public String resource;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream stream = HtsTxtParserBenchmark.class.getResourceAsStream(resource)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            for (int n = stream.read(b); n >= 0; n = stream.read(b)) {
+                buffer.write(b, 0, n);
+            }
+            data = buffer.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public int regex() throws IOException {
+        int hash = 0;
+        try (RegexHtsTxtParser parser = new RegexHtsTxtParser(new ByteArrayInputStream(data))) {
+            while (parser.readRecord()) {
+                if (parser.localfile().isEmpty()) continue;
+                hash += parser.time().toSecondOfDay() + parser.url().length() + parser.mime().length()
+                        + parser.status() + (parser.referrer() == null ? 0 : 1);
+            }
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public int scanner() throws IOException {
+        int hash = 0;
+        try (HtsTxtParser parser = new HtsTxtParser(new ByteArrayInputStream(data))) {
+            while (parser.readRecord()) {
+                if (!parser.hasLocalfile()) continue;
+                parser.localfile();
+                hash += parser.secondOfDay() + parser.url().length() + parser.mime().length()
+                        + parser.status() + (parser.referrer() == null ? 0 : 1);
+            }
+        }
+        return hash;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HtsTxtParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -16,20 +16,22 @@
 
 package au.gov.nla.httrack2warc.httrack;
 
+import au.gov.nla.httrack2warc.ParsingException;
 import org.junit.Test;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.time.LocalTime;
+import java.util.function.IntSupplier;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.*;
 
 public class HtsTxtParserTest {
     @Test
     public void testModern() throws Exception {
-        try (HtsTxtParser parser = new HtsTxtParser(new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("test-hts-new.txt"))))) {
+        try (HtsTxtParser parser = new HtsTxtParser(getClass().getResourceAsStream("test-hts-new.txt"))) {
             assertTrue(parser.readRecord());
             assertEquals(LocalTime.of(16, 24, 26), parser.time());
             assertEquals("http://www-test.nla.gov.au/xinq/", parser.url());
@@ -45,7 +47,7 @@ public class HtsTxtParserTest {
 
     @Test
     public void testEarly() throws Exception {
-        try (HtsTxtParser parser = new HtsTxtParser(new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("test-hts-new2.txt"))))) {
+        try (HtsTxtParser parser = new HtsTxtParser(getClass().getResourceAsStream("test-hts-new2.txt"))) {
             assertTrue(parser.readRecord());
             assertEquals(LocalTime.of(1, 0, 14), parser.time());
             assertEquals("www.industry.gov.au/acreagereleases/ar_home.html", parser.url());
@@ -62,11 +64,90 @@ public class HtsTxtParserTest {
 
     @Test
     public void test303() throws IOException {
-        try (HtsTxtParser parser = new HtsTxtParser(new BufferedReader(new StringReader("date\tsize'/'remotesize\tflags(request:Update,Range state:File response:Modified,Chunked,gZipped)\tstatuscode\tstatus ('servermsg')\tMIME\tEtag|Date\tURL\tlocalfile\t(from URL)\n15:55:04\t0/0\t---M--\t303\terror ('')\t\t\thttp://www.antisf.com.au/component/weblinks/weblink/9-aussie-worldcon-2010?Itemid=89\t/pandoraworking/working/10063/20140108-1525/www.antisf.com.au/component/weblinks/weblink/9-aussie-worldcon-2010.80cd8f2.delayed\t(from http://www.antisf.com.au/the-stories/star-light-star-bright/42-content/newsflashes)")))) {
+        try (HtsTxtParser parser = new HtsTxtParser(stream("date\tsize'/'remotesize\tflags(request:Update,Range state:File response:Modified,Chunked,gZipped)\tstatuscode\tstatus ('servermsg')\tMIME\tEtag|Date\tURL\tlocalfile\t(from URL)\n15:55:04\t0/0\t---M--\t303\terror ('')\t\t\thttp://www.antisf.com.au/component/weblinks/weblink/9-aussie-worldcon-2010?Itemid=89\t/pandoraworking/working/10063/20140108-1525/www.antisf.com.au/component/weblinks/weblink/9-aussie-worldcon-2010.80cd8f2.delayed\t(from http://www.antisf.com.au/the-stories/star-light-star-bright/42-content/newsflashes)"))) {
             while (parser.readRecord()) {
                 assertNotNull(parser.url());
                 assertEquals(303, parser.status());
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void matchesRegexParser() throws IOException {
+        for (String resource : new String[]{"test-hts-new.txt", "test-hts-new2.txt"}) {
+            try (HtsTxtParser parser = new HtsTxtParser(getClass().getResourceAsStream(resource));
+                 RegexHtsTxtParser regexParser = new RegexHtsTxtParser(getClass().getResourceAsStream(resource))) {
+                while (regexParser.readRecord()) {
+                    assertTrue(parser.readRecord());
+                    assertEquals(regexParser.time(), parser.time());
+                    assertEquals(regexParser.time().toSecondOfDay(), parser.secondOfDay());
+                    assertEquals(regexParser.url(), parser.url());
+                    assertEquals(regexParser.referrer(), parser.referrer());
+                    assertEquals(regexParser.mime(), parser.mime());
+                    assertEquals(regexParser.localfile(), parser.localfile());
+                    assertEquals(regexParser.status(), parser.status());
+                }
+                assertFalse(parser.readRecord());
+            }
+        }
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        String[] lines = {
+                "01:02:03\t-1/-1\t------\t-5\terror ('it\tbroke')\ta/b\tetag\thttp://a/\tb\tc\t\t(from http://x/)",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\thttp://a/\t(from x)\t/f\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\t\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\tte xt\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDE\t200\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\tx\t\t(from \u2028)",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\tx\u0085\ty\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\tx\t\t(from )x",
+                "1:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t/2\tABCDEF\t200\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t99999999999\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t-2147483648\tOK ('')\t\t\tx\t\t(from )",
+                "01:02:03\t1/2\tABCDEF\t200\tOK ('')\t\t\thttp://\u00e9/\t/\u00e9\t(from \u00e9)",
+        };
+        for (String line : lines) {
+            String header = "date\tsize'/'remotesize\tflags(request:Update,Range state:File response:Modified,Chunked,gZipped)\tstatuscode\tstatus ('servermsg')\tMIME\tEtag|Date\tURL\tlocalfile\t(from URL)\r\n";
+            String expected = describe(() -> new RegexHtsTxtParser(stream(header + line)));
+            String actual = describe(() -> new HtsTxtParser(stream(header + line)));
+            assertEquals(line, expected, actual);
+        }
+    }
+
+    private interface ParserFactory {
+        Object open() throws IOException;
+    }
+
+    private static String describe(ParserFactory factory) throws IOException {
+        Object parser = factory.open();
+        try {
+            if (parser instanceof HtsTxtParser) {
+                HtsTxtParser p = (HtsTxtParser) parser;
+                if (!p.readRecord()) return "eof";
+                return p.url() + "|" + p.localfile() + "|" + p.referrer() + "|" + p.mime() + "|" + status(p::status);
+            } else {
+                RegexHtsTxtParser p = (RegexHtsTxtParser) parser;
+                if (!p.readRecord()) return "eof";
+                return p.url() + "|" + p.localfile() + "|" + p.referrer() + "|" + p.mime() + "|" + status(p::status);
+            }
+        } catch (ParsingException e) {
+            return "invalid";
+        }
+    }
+
+    private static String status(IntSupplier status) {
+        try {
+            return String.valueOf(status.getAsInt());
+        } catch (NumberFormatException e) {
+            return "bad status";
+        }
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(UTF_8));
+    }
+}
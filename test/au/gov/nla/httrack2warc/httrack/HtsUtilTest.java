@@ -6,4 +6,13 @@ public class HtsUtilTest extends TestCase {
     public void testPercentEncode() {
         assertEquals("a%20b%20%00%20%22c%22", HtsUtil.percentEncode("a b \0 \"c\""));
     }
-}
\ No newline at end of file
+
+    public void testSurt() {
+        assertEquals("org,example)/a/b.html?b=2&z=1", HtsUtil.surt("http://www.Example.org:80/a/B.html?z=1&b=2#frag"));
+        assertEquals("org,example,test)/", HtsUtil.surt("https://test.example.org"));
+        assertEquals("1.2.3.4:8080)/x", HtsUtil.surt("http://user:pw@1.2.3.4:8080/x"));
+        assertEquals("org,example)/page%20with%20\"special\"%20chars.html",
+                HtsUtil.surt("http://example.org/page%20WITH%20%22special%22%20chars.html"));
+        assertEquals("dns:example.org", HtsUtil.surt("dns:example.org"));
+    }
+}
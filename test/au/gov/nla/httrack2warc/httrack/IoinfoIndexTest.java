@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.Assert.*;
+
+public class IoinfoIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void pollsSameHeadersAsParser() throws IOException {
+        Path path = temp.newFile().toPath();
+        try (InputStream stream = getClass().getResourceAsStream("test-hts-ioinfo.txt")) {
+            Files.copy(stream, path, REPLACE_EXISTING);
+        }
+
+        // index every record under the same key so they all come back in file order
+        List<String> requests = new ArrayList<>();
+        List<String> responses = new ArrayList<>();
+        try (HtsIoinfoParser parser = new HtsIoinfoParser(Files.newInputStream(path))) {
+            while (parser.parseRecord()) {
+                (parser.request ? requests : responses).add(parser.header);
+            }
+        }
+        assertTrue(requests.size() > 2);
+
+        try (IoinfoIndex index = new IoinfoIndex(path, url -> "same")) {
+            for (String request : requests) {
+                assertEquals(request, index.pollRequest("same"));
+            }
+            assertNull(index.pollRequest("same"));
+            for (String response : responses) {
+                assertEquals(response, index.pollResponse("same"));
+            }
+            assertNull(index.pollResponse("same"));
+            assertNull(index.pollResponse("other"));
+        }
+
+        // and under their own keys
+        try (IoinfoIndex index = new IoinfoIndex(path, url -> url);
+             HtsIoinfoParser parser = new HtsIoinfoParser(Files.newInputStream(path))) {
+            assertTrue(parser.parseRecord());
+            assertEquals("www.industry.gov.au/acreagereleases/ar_home.html", parser.url);
+            assertEquals(parser.header, index.pollRequest(parser.url));
+            assertTrue(parser.parseRecord());
+            assertEquals(parser.header, index.pollResponse(parser.url));
+            assertNull(index.pollResponse(parser.url));
+        }
+    }
+
+    @Test
+    public void mappedFileStreamsAcrossSegments() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Path path = temp.newFile().toPath();
+        Files.write(path, data);
+        try (MappedFile file = new MappedFile(path, 4)) {
+            for (int offset : new int[]{0, 15, 16, 17, 999, 1000}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                InputStream stream = file.openStream(offset);
+                byte[] buffer = new byte[7];
+                for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                    out.write(buffer, 0, n);
+                }
+                assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), out.toByteArray());
+            }
+        }
+    }
+}
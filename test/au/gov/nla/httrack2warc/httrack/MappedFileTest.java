@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void storedZipEntriesAreMappedInPlace() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] data = text.toString().getBytes(UTF_8);
+
+        Path zip = temp.newFolder("with space").toPath().resolve("crawl.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("crawl dir/padding.txt"));
+            out.write(data);
+            out.closeEntry();
+
+            ZipEntry stored = new ZipEntry("crawl dir/hts-ioinfo.txt");
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(data.length);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(data);
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("crawl dir/logs/debug"));
+            out.write(data);
+            out.closeEntry();
+        }
+
+        try (FileSystem fs = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            assertEquals(zip, HtsUtil.archiveFile(fs.getPath("/crawl dir/hts-ioinfo.txt")));
+            assertEquals(null, HtsUtil.archiveFile(zip));
+
+            // small segments so reads cross from one mapping of the zip to the next
+            try (MappedFile stored = new MappedFile(fs.getPath("/crawl dir/hts-ioinfo.txt"), 10)) {
+                assertFalse(stored.isTemporaryCopy());
+                assertEquals(data.length, stored.size());
+                assertEquals(text.toString(), slurp(stored.openStream(0)));
+                assertEquals("line 100\n", new String(stored.read(text.indexOf("line 100"), 9).array(), UTF_8));
+            }
+            try (MappedFile deflated = new MappedFile(fs.getPath("/crawl dir/logs/debug"), 10)) {
+                assertTrue(deflated.isTemporaryCopy());
+                assertEquals(text.toString(), slurp(deflated.openStream(0)));
+            }
+        }
+    }
+
+    private static String slurp(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+}
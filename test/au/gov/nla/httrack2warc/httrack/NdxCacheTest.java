@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+public class NdxCacheTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void readsEntries() throws Exception {
+        Path dir = temp.newFolder().toPath();
+        Files.createDirectory(dir.resolve("hts-cache"));
+        ByteArrayOutputStream ndx = new ByteArrayOutputStream();
+        ByteArrayOutputStream dat = new ByteArrayOutputStream();
+        writeString(ndx, "CACHE-1.5");
+        writeString(ndx, "Fri, 02 Feb 2018 15:27:22 GMT");
+        List<String> payloads = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String payload = "<html>page " + i + "</html>";
+            payloads.add(payload);
+            writeString(ndx, "example.org\n/page" + i + ".html\n");
+            ndx.write((dat.size() + "\n").getBytes(ISO_8859_1));
+            for (String field : new String[]{"200", Integer.toString(payload.length()), "OK", "text/html",
+                    "Fri, 02 Feb 2018 15:27:22 GMT", "\"etag" + i + "\"", "SD", "supplementary", "HTS",
+                    Integer.toString(payload.length())}) {
+                writeString(dat, field);
+            }
+            dat.write(payload.getBytes(ISO_8859_1));
+        }
+        writeString(ndx, "example.org\n/missing.html\n");
+        ndx.write("-5\n".getBytes(ISO_8859_1));
+        Files.write(dir.resolve("hts-cache/new.ndx"), ndx.toByteArray());
+        Files.write(dir.resolve("hts-cache/new.dat"), dat.toByteArray());
+
+        CanonicalUrls canonicalUrls = new CanonicalUrls();
+        try (NdxCache cache = new NdxCache(dir, canonicalUrls)) {
+            assertNull(cache.getEntry(canonicalUrls.fixup("example.org/unknown.html")));
+            assertFalse(cache.getEntry(canonicalUrls.fixup("example.org/missing.html")).hasData());
+
+            CacheEntry first = cache.getEntry(canonicalUrls.fixup("example.org/page0.html"));
+            assertTrue(first.hasData());
+            assertEquals(payloads.get(0).length(), first.getSize());
+            FileRegion region = first.getFileRegion();
+            try (InputStream stream = region.openStream()) {
+                assertEquals(payloads.get(0), slurp(stream));
+            }
+
+            // every entry read at once by several threads from the shared mapping
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<String>> futures = new ArrayList<>();
+                for (int i = 0; i < payloads.size(); i++) {
+                    CacheEntry entry = cache.getEntry(canonicalUrls.fixup("example.org/page" + i + ".html"));
+                    futures.add(executor.submit(() -> {
+                        try (InputStream stream = entry.openStream()) {
+                            return slurp(stream);
+                        }
+                    }));
+                }
+                for (int i = 0; i < payloads.size(); i++) {
+                    assertEquals(payloads.get(i), futures.get(i).get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(ISO_8859_1);
+        out.write((bytes.length + "\n").getBytes(ISO_8859_1));
+        out.write(bytes);
+    }
+
+    private static String slurp(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), ISO_8859_1);
+    }
+}
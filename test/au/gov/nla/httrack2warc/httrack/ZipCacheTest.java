@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 National Library of Australia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.gov.nla.httrack2warc.httrack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ZipCacheTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void readsEntriesConcurrently() throws Exception {
+        Path zip = temp.newFile("new.zip").toPath();
+        List<String> payloads = new ArrayList<>();
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip)))) {
+            for (int i = 0; i < 200; i++) {
+                StringBuilder payload = new StringBuilder();
+                for (int j = 0; j <= i; j++) {
+                    payload.append("<p>page ").append(i).append(" paragraph ").append(j).append("</p>\n");
+                }
+                payloads.add(payload.toString());
+                write(out, "http://example.org/page" + i + ".html", payload.toString(), i % 2 == 0);
+            }
+        }
+
+        CanonicalUrls canonicalUrls = new CanonicalUrls();
+        try (ZipCache cache = new ZipCache(zip, canonicalUrls)) {
+            assertNull(cache.getEntry(canonicalUrls.fixup("http://example.org/unknown.html")));
+
+            CacheEntry stored = cache.getEntry(canonicalUrls.fixup("http://example.org/page0.html"));
+            try (InputStream stream = stored.getFileRegion().openStream()) {
+                assertEquals(payloads.get(0), slurp(stream));
+            }
+            assertNull(cache.getEntry(canonicalUrls.fixup("http://example.org/page1.html")).getFileRegion());
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<String>> futures = new ArrayList<>();
+                for (int i = 0; i < payloads.size(); i++) {
+                    CacheEntry entry = cache.getEntry(canonicalUrls.fixup("http://example.org/page" + i + ".html"));
+                    assertEquals(payloads.get(i).length(), entry.getSize());
+                    futures.add(executor.submit(() -> {
+                        try (InputStream stream = entry.openStream()) {
+                            return slurp(stream);
+                        }
+                    }));
+                }
+                for (int i = 0; i < payloads.size(); i++) {
+                    assertEquals(payloads.get(i), futures.get(i).get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void readsZip64Directory() throws Exception {
+        // more than 65535 entries makes ZipOutputStream write a zip64 end of central directory record
+        Path zip = temp.newFile("new.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip)))) {
+            for (int i = 0; i < 70000; i++) {
+                write(out, "http://example.org/" + i, Integer.toString(i), false);
+            }
+        }
+        CanonicalUrls canonicalUrls = new CanonicalUrls();
+        try (ZipCache cache = new ZipCache(zip, canonicalUrls)) {
+            for (int i : new int[]{0, 65535, 65536, 69999}) {
+                try (InputStream stream = cache.getEntry(canonicalUrls.fixup("http://example.org/" + i)).openStream()) {
+                    assertEquals(Integer.toString(i), slurp(stream));
+                }
+            }
+        }
+    }
+
+    private static void write(ZipOutputStream out, String name, String payload, boolean stored) throws IOException {
+        byte[] data = payload.getBytes(UTF_8);
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static String slurp(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}